@@ -0,0 +1,120 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * BackgroundSaver writes MapFileMaps to files on a thread of its own, so the
+ * server's main thread does not have to wait for the disk. You give it a
+ * snapshot of the data, which it must be safe to read from another thread;
+ * the caller must not change it afterwards.
+ *
+ * If several saves for the same file are requested before the first one gets
+ * started, only the last one is actually written.
+ *
+ * @author DanJ
+ */
+public final class BackgroundSaver implements Executor {
+
+    private final Logger logger;
+    private final ExecutorService executor;
+    private final Map<File, Map<?, ?>> pendingWrites = Maps.newHashMap();
+
+    public BackgroundSaver(Logger logger) {
+        this.logger = Preconditions.checkNotNull(logger);
+        this.executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().
+                setNameFormat("HomeSoil Saver").
+                setDaemon(true).
+                build());
+    }
+
+    /**
+     * This method schedules a write of 'snapshot' to 'file'; if a write to
+     * that file is already waiting, this replaces the data it will write
+     * instead.
+     *
+     * @param file The file to write to.
+     * @param snapshot The data to write; this must not change after this call.
+     */
+    public void write(final File file, Map<?, ?> snapshot) {
+        Preconditions.checkNotNull(snapshot);
+
+        synchronized (pendingWrites) {
+            if (pendingWrites.put(file, snapshot) == null) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writePending(file);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * This method writes whatever snapshot is pending for a file; it runs on
+     * the saver's own thread.
+     *
+     * @param file The file to write.
+     */
+    private void writePending(File file) {
+        Map<?, ?> snapshot;
+
+        synchronized (pendingWrites) {
+            snapshot = pendingWrites.remove(file);
+        }
+
+        if (snapshot != null) {
+            try {
+                MapFileMap.write(file, snapshot);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, String.format("Unable to save '%s'", file), e);
+            }
+        }
+    }
+
+    /**
+     * This method runs a task on the saver thread; tasks run in the order they
+     * are given, after any writes requested before them have started. Any
+     * RuntimeException the task throws is logged.
+     *
+     * @param task The task to run.
+     */
+    @Override
+    public void execute(final Runnable task) {
+        Preconditions.checkNotNull(task);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "HomeSoil background task failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * This method finishes any writes that are pending and then shuts down
+     * the saver thread. No further writes may be requested after this.
+     */
+    public void close() {
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.severe("Timed out waiting for HomeSoil files to be saved");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
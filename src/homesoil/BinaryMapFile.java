@@ -0,0 +1,509 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class reads and writes the binary encoding of a MapFileMap. This holds
+ * the same data as the text encoding, but much more compactly: integers are
+ * stored as variable length numbers, and each distinct string (such as a key
+ * or a world name) is written out only once, and then referred to by its
+ * index in a string table.
+ *
+ * A binary file starts with MAGIC, so read() can tell it from a text file;
+ * after that is the top level map. A map is a count and then that many keys
+ * and values; a list is a count and then that many values. Each value starts
+ * with a tag byte that says what kind of value it is.
+ *
+ * A StreamStorable object is written as an 'open' map instead, since we don't
+ * know how many entries it has until it has written them. Each entry of an
+ * open map is a tag, a key, and then the value that goes with the tag; the
+ * map ends with END_TAG where the next tag would be.
+ *
+ * @author DanJ
+ */
+final class BinaryMapFile {
+
+    /**
+     * This is the header of every binary file; text files can't start with a
+     * zero byte, so we can't mistake one for the other.
+     */
+    static final byte[] MAGIC = {0, 'H', 'S', 'B', 1};
+    private static final int STRING_TAG = 0;
+    private static final int INTEGER_TAG = 1;
+    private static final int MAP_TAG = 2;
+    private static final int LIST_TAG = 3;
+    private static final int OPEN_MAP_TAG = 4;
+    private static final int END_TAG = 5;
+
+    private BinaryMapFile() {
+    }
+
+    /**
+     * This method returns true if the header given is the header of a binary
+     * file.
+     *
+     * @param header The first bytes of the file; this may be shorter than
+     * MAGIC if the file is very short.
+     * @param length The number of bytes in 'header' that are valid.
+     * @return True if the file is binary.
+     */
+    static boolean isBinaryHeader(byte[] header, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+
+        for (int i = 0; i < MAGIC.length; ++i) {
+            if (header[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    ////////////////////////////////
+    // Writing
+    /**
+     * This method writes a map to a stream in the binary format, including the
+     * header. Storable values are converted to maps as they are for text, and
+     * collections are written as lists. The stream is not closed.
+     *
+     * @param out The stream to write to.
+     * @param map The map to encode.
+     */
+    static void write(OutputStream out, Map<?, ?> map) throws IOException {
+        out.write(MAGIC);
+        new Encoder(out).writeMap(map);
+        out.flush();
+    }
+
+    /**
+     * This method writes the header of a binary file, and returns a writer
+     * for the entries of its top level map. Since the header includes the
+     * size of that map, you must write exactly the number of entries given.
+     * The stream is not closed or flushed.
+     *
+     * @param out The stream to write to.
+     * @param entryCount The number of entries that will be written.
+     * @return A writer for the top level entries.
+     */
+    static MapFileWriter newWriter(OutputStream out, int entryCount) throws IOException {
+        out.write(MAGIC);
+        writeVarInt(out, entryCount);
+
+        final Encoder encoder = new Encoder(out);
+
+        return new MapFileWriter() {
+            @Override
+            public void writeEntry(String key, String value) throws IOException {
+                encoder.writeMapEntry(key, value);
+            }
+
+            @Override
+            public void writeEntry(String key, int value) throws IOException {
+                encoder.writeMapEntry(key, value);
+            }
+
+            @Override
+            public void writeEntry(String key, Object value) throws IOException {
+                encoder.writeMapEntry(key, value);
+            }
+        };
+    }
+
+    /**
+     * This class holds the state needed while writing a file; that's mainly
+     * the string table.
+     */
+    private static final class Encoder extends MapFileWriter {
+
+        private final OutputStream out;
+        private final Map<String, Integer> stringTable = Maps.newHashMap();
+
+        public Encoder(OutputStream out) {
+            this.out = out;
+        }
+
+        public void writeMap(Map<?, ?> map) throws IOException {
+            writeVarInt(out, map.size());
+
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                writeMapEntry(e.getKey(), e.getValue());
+            }
+        }
+
+        public void writeMapEntry(Object key, Object value) throws IOException {
+            writeString(key.toString());
+            writeValue(value);
+        }
+
+        private void writeValue(Object value) throws IOException {
+            value = toWritable(value);
+            int tag = getTag(value);
+            out.write(tag);
+            writePayload(tag, value);
+        }
+
+        // These methods write the entries of an open map.
+        @Override
+        public void writeEntry(String key, String value) throws IOException {
+            out.write(STRING_TAG);
+            writeString(key);
+            writeString(value);
+        }
+
+        @Override
+        public void writeEntry(String key, int value) throws IOException {
+            out.write(INTEGER_TAG);
+            writeString(key);
+            writeSignedVarLong(out, value);
+        }
+
+        @Override
+        public void writeEntry(String key, Object value) throws IOException {
+            value = toWritable(value);
+            int tag = getTag(value);
+            out.write(tag);
+            writeString(key);
+            writePayload(tag, value);
+        }
+
+        /**
+         * This method converts storable objects that must be written as maps
+         * into those maps; other values are returned unchanged.
+         *
+         * @param value The value to be written.
+         * @return The value to write in its place.
+         */
+        private static Object toWritable(Object value) {
+            if (value instanceof MapFileMap.Storable
+                    && !(value instanceof MapFileMap.StreamStorable)) {
+                return ((MapFileMap.Storable) value).toMap();
+            }
+
+            return value;
+        }
+
+        /**
+         * This method works out which tag a value is written with.
+         *
+         * @param value The value to be written.
+         * @return The tag that should precede it.
+         */
+        private static int getTag(Object value) {
+            if (value instanceof MapFileMap.StreamStorable) {
+                return OPEN_MAP_TAG;
+            } else if (value instanceof Map<?, ?>) {
+                return MAP_TAG;
+            } else if (value instanceof Collection<?>) {
+                return LIST_TAG;
+            } else if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                return INTEGER_TAG;
+            } else {
+                return STRING_TAG;
+            }
+        }
+
+        /**
+         * This method writes the part of a value that follows its tag.
+         *
+         * @param tag The tag that was written for the value.
+         * @param value The value to write.
+         */
+        private void writePayload(int tag, Object value) throws IOException {
+            switch (tag) {
+                case OPEN_MAP_TAG:
+                    ((MapFileMap.StreamStorable) value).write(this);
+                    out.write(END_TAG);
+                    break;
+                case MAP_TAG:
+                    writeMap((Map<?, ?>) value);
+                    break;
+                case LIST_TAG:
+                    Collection<?> list = (Collection<?>) value;
+                    writeVarInt(out, list.size());
+
+                    for (Object element : list) {
+                        writeValue(element);
+                    }
+                    break;
+                case INTEGER_TAG:
+                    writeSignedVarLong(out, ((Number) value).longValue());
+                    break;
+                default:
+                    writeString(value.toString());
+                    break;
+            }
+        }
+
+        /**
+         * This method writes a reference to a string; the first time we see a
+         * string we write 0 and then the string itself; after that we write
+         * its index in the table plus one.
+         *
+         * @param text The string to write.
+         */
+        private void writeString(String text) throws IOException {
+            Integer index = stringTable.get(text);
+
+            if (index != null) {
+                writeVarInt(out, index + 1);
+            } else {
+                stringTable.put(text, stringTable.size());
+
+                byte[] bytes = text.getBytes(Charsets.UTF_8);
+                writeVarInt(out, 0);
+                writeVarInt(out, bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Reading
+    /**
+     * This method returns a reader for a map in the binary format; the header
+     * must already have been read from the stream. Lists are read as maps
+     * whose keys are the indices, just as with the text format.
+     *
+     * @param in The stream to read from.
+     * @return The new reader.
+     */
+    static MapFileReader newReader(InputStream in) throws IOException {
+        return new EntryReader(in);
+    }
+
+    /**
+     * This class reads a binary file an entry at a time; it keeps the string
+     * table, and a stack that records how many entries remain in each map we
+     * are inside. For an open map we don't know that; we read until END_TAG.
+     */
+    private static final class EntryReader extends MapFileReader {
+
+        private final InputStream in;
+        private final List<String> stringTable = Lists.newArrayList();
+        private final Deque<Frame> frames = new ArrayDeque<Frame>();
+        private String key;
+        private String value;
+        private long intValue;
+        private int tag;
+
+        public EntryReader(InputStream in) throws IOException {
+            this.in = in;
+            frames.push(new Frame(readVarInt(in), false));
+        }
+
+        @Override
+        public boolean nextEntry() throws IOException {
+            Frame frame = frames.peek();
+
+            if (frame == null) {
+                return false;
+            }
+
+            if (frame.isOpen) {
+                tag = readByte(in);
+
+                if (tag == END_TAG) {
+                    frames.pop();
+                    return false;
+                }
+
+                key = readString();
+            } else {
+                if (frame.remaining == 0) {
+                    frames.pop();
+                    return false;
+                }
+
+                --frame.remaining;
+                key = frame.isList ? Integer.toString(frame.index++) : readString();
+                tag = readByte(in);
+            }
+
+            value = null;
+
+            switch (tag) {
+                case STRING_TAG:
+                    value = readString();
+                    break;
+                case INTEGER_TAG:
+                    intValue = readSignedVarLong(in);
+                    break;
+                case MAP_TAG:
+                    frames.push(new Frame(readVarInt(in), false));
+                    break;
+                case LIST_TAG:
+                    frames.push(new Frame(readVarInt(in), true));
+                    break;
+                case OPEN_MAP_TAG:
+                    frames.push(Frame.open());
+                    break;
+                default:
+                    throw new IOException(String.format("Invalid value tag %d in binary map file.", tag));
+            }
+
+            return true;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public boolean isMap() {
+            return tag == MAP_TAG || tag == LIST_TAG || tag == OPEN_MAP_TAG;
+        }
+
+        @Override
+        public String getValue() {
+            if (tag == INTEGER_TAG) {
+                return Long.toString(intValue);
+            }
+
+            return value;
+        }
+
+        @Override
+        public int getIntValue() {
+            if (tag == INTEGER_TAG) {
+                return (int) intValue;
+            }
+
+            return super.getIntValue();
+        }
+
+        private String readString() throws IOException {
+            int index = readVarInt(in);
+
+            if (index < 0 || index > stringTable.size()) {
+                throw new IOException(String.format("Invalid string index %d in binary map file.", index));
+            } else if (index > 0) {
+                return stringTable.get(index - 1);
+            }
+
+            int length = readVarInt(in);
+
+            if (length < 0) {
+                throw new IOException(String.format("Invalid string length %d in binary map file.", length));
+            }
+
+            byte[] bytes = new byte[length];
+            readFully(in, bytes);
+            String text = new String(bytes, Charsets.UTF_8);
+            stringTable.add(text);
+            return text;
+        }
+
+        /**
+         * This class holds our place in a map or list.
+         */
+        private static final class Frame {
+
+            public final boolean isList;
+            public final boolean isOpen;
+            public int remaining;
+            public int index;
+
+            public Frame(int remaining, boolean isList) {
+                this(remaining, isList, false);
+            }
+
+            private Frame(int remaining, boolean isList, boolean isOpen) {
+                this.remaining = remaining;
+                this.isList = isList;
+                this.isOpen = isOpen;
+            }
+
+            public static Frame open() {
+                return new Frame(0, false, true);
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Numbers
+    /**
+     * This method writes a non-negative integer in as few bytes as it can,
+     * seven bits per byte; the high bit of each byte is set if more follow.
+     *
+     * @param out The stream to write to.
+     * @param value The value to write.
+     */
+    static void writeVarInt(OutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        out.write((int) value);
+    }
+
+    /**
+     * This method writes a signed integer as a varint; we 'zig-zag' encode it
+     * first so small negative numbers are short too.
+     *
+     * @param out The stream to write to.
+     * @param value The value to write.
+     */
+    static void writeSignedVarLong(OutputStream out, long value) throws IOException {
+        writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+
+    static int readVarInt(InputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Malformed variable length integer in binary map file.");
+    }
+
+    static long readSignedVarLong(InputStream in) throws IOException {
+        long encoded = readVarLong(in);
+        return (encoded >>> 1) ^ -(encoded & 1);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+
+        if (b < 0) {
+            throw new EOFException("Unexpected end of binary map file.");
+        }
+
+        return b;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+
+        while (offset < buffer.length) {
+            int read = in.read(buffer, offset, buffer.length - offset);
+
+            if (read < 0) {
+                throw new EOFException("Unexpected end of binary map file.");
+            }
+
+            offset += read;
+        }
+    }
+}
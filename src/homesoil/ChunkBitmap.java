@@ -0,0 +1,514 @@
+package homesoil;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ChunkBitmap is a compact set of chunk co-ordinates within one world, after
+ * the manner of a Roaring bitmap. The chunks are grouped into regions of 256
+ * by 256 chunks; each region that holds any chunks has a container, which
+ * holds the chunks' positions within the region as 16-bit numbers. A
+ * container of up to 4096 chunks is a sorted array of these, and a fuller one
+ * is a bitmap of all 65536; either way a chunk costs at most two bytes.
+ *
+ * The containers are kept sorted by region, so we can binary search them, and
+ * so that two bitmaps can be merged by walking them side by side. This is
+ * also the order the chunks are iterated and written in.
+ *
+ * This class is not thread-safe.
+ *
+ * @author DanJ
+ */
+final class ChunkBitmap {
+
+    private static final int REGION_BITS = 8;
+    private static final int REGION_MASK = (1 << REGION_BITS) - 1;
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 1 << (REGION_BITS * 2 - 6);
+    private long[] keys = new long[2];
+    private Container[] containers = new Container[2];
+    private int containerCount;
+    private int size;
+
+    public ChunkBitmap() {
+    }
+
+    /**
+     * This constructor makes a copy of another bitmap; the copy shares
+     * nothing with the original.
+     *
+     * @param other The bitmap to copy.
+     */
+    public ChunkBitmap(ChunkBitmap other) {
+        keys = Arrays.copyOf(other.keys, Math.max(2, other.containerCount));
+        containers = new Container[keys.length];
+        containerCount = other.containerCount;
+        size = other.size;
+
+        for (int index = 0; index < containerCount; ++index) {
+            containers[index] = new Container(other.containers[index]);
+        }
+    }
+
+    ////////////////////////////////
+    // Keys
+    private static long getRegionKey(int x, int z) {
+        return ((long) (x >> REGION_BITS) << 32) | ((z >> REGION_BITS) & 0xFFFFFFFFL);
+    }
+
+    private static char getLowBits(int x, int z) {
+        return (char) (((x & REGION_MASK) << REGION_BITS) | (z & REGION_MASK));
+    }
+
+    private static int getX(long key, char low) {
+        return ((int) (key >> 32) << REGION_BITS) | (low >>> REGION_BITS);
+    }
+
+    private static int getZ(long key, char low) {
+        return ((int) key << REGION_BITS) | (low & REGION_MASK);
+    }
+
+    /**
+     * This method finds the container for a region.
+     *
+     * @param key The key of the region.
+     * @return The index of its container, or if there is none, the index
+     * where it would go as a negative number: -1 for 0, -2 for 1 and so on.
+     */
+    private int findContainer(long key) {
+        return Arrays.binarySearch(keys, 0, containerCount, key);
+    }
+
+    private void insertContainer(int index, long key, Container container) {
+        if (containerCount == keys.length) {
+            keys = Arrays.copyOf(keys, containerCount * 2);
+            containers = Arrays.copyOf(containers, containerCount * 2);
+        }
+
+        System.arraycopy(keys, index, keys, index + 1, containerCount - index);
+        System.arraycopy(containers, index, containers, index + 1, containerCount - index);
+        keys[index] = key;
+        containers[index] = container;
+        ++containerCount;
+    }
+
+    ////////////////////////////////
+    // Set Operations
+    /**
+     * This method returns the number of chunks in the bitmap.
+     *
+     * @return The number of chunks.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * This method checks whether a chunk is in the bitmap.
+     *
+     * @param x The X co-ordinate of the chunk.
+     * @param z The Z co-ordinate of the chunk.
+     * @return True if the chunk is present.
+     */
+    public boolean contains(int x, int z) {
+        int index = findContainer(getRegionKey(x, z));
+        return index >= 0 && containers[index].contains(getLowBits(x, z));
+    }
+
+    /**
+     * This method adds a chunk to the bitmap.
+     *
+     * @param x The X co-ordinate of the chunk.
+     * @param z The Z co-ordinate of the chunk.
+     * @return True if the chunk was added, false if it was already present.
+     */
+    public boolean add(int x, int z) {
+        long key = getRegionKey(x, z);
+        int index = findContainer(key);
+
+        if (index < 0) {
+            index = -index - 1;
+            insertContainer(index, key, new Container());
+        }
+
+        if (containers[index].add(getLowBits(x, z))) {
+            ++size;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * This method adds every chunk of another bitmap to this one. This works
+     * a container at a time, so it's much faster than adding the chunks one
+     * by one.
+     *
+     * @param other The bitmap whose chunks are to be added.
+     * @return True if any chunk was added.
+     */
+    public boolean addAll(ChunkBitmap other) {
+        int oldSize = size;
+
+        for (int otherIndex = 0; otherIndex < other.containerCount; ++otherIndex) {
+            long key = other.keys[otherIndex];
+            Container otherContainer = other.containers[otherIndex];
+            int index = findContainer(key);
+
+            if (index < 0) {
+                insertContainer(-index - 1, key, new Container(otherContainer));
+                size += otherContainer.cardinality;
+            } else {
+                Container container = containers[index];
+                size -= container.cardinality;
+                container.addAll(otherContainer);
+                size += container.cardinality;
+            }
+        }
+
+        return size != oldSize;
+    }
+
+    /**
+     * This method iterates over the chunks in the bitmap, in order by region,
+     * and then by X and Z within each. The iterator does not support
+     * remove().
+     *
+     * @param worldName The world to give the chunk positions.
+     * @return An iterator of chunk positions in that world.
+     */
+    public Iterator<ChunkPosition> iterator(final String worldName) {
+        return new Iterator<ChunkPosition>() {
+            private int index;
+            private int low = -1;
+
+            {
+                advance();
+            }
+
+            private void advance() {
+                while (index < containerCount) {
+                    low = containers[index].next(low + 1);
+
+                    if (low >= 0) {
+                        return;
+                    }
+
+                    ++index;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return index < containerCount;
+            }
+
+            @Override
+            public ChunkPosition next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                long key = keys[index];
+                char bits = (char) low;
+                ChunkPosition position = new ChunkPosition(getX(key, bits), getZ(key, bits), worldName);
+                advance();
+                return position;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    ////////////////////////////////
+    // Serialization
+    /**
+     * This method writes the bitmap out: the number of containers, then each
+     * container's region, its cardinality less one, and its contents. A
+     * container of up to 4096 chunks is written as its array, and a fuller
+     * one as its bitmap, so either way the smaller form is written.
+     *
+     * @param out The output to write to.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(containerCount);
+
+        for (int index = 0; index < containerCount; ++index) {
+            out.writeLong(keys[index]);
+            containers[index].write(out);
+        }
+    }
+
+    /**
+     * This method reads a bitmap that write() wrote.
+     *
+     * @param in The input to read from.
+     * @return The new bitmap.
+     * @throws IOException If the input is invalid or cut short.
+     */
+    public static ChunkBitmap read(DataInput in) throws IOException {
+        ChunkBitmap bitmap = new ChunkBitmap();
+        int count = in.readInt();
+
+        if (count < 0) {
+            throw new IOException("Invalid chunk bitmap.");
+        }
+
+        long previousKey = Long.MIN_VALUE;
+
+        for (int index = 0; index < count; ++index) {
+            long key = in.readLong();
+
+            if (index > 0 && key <= previousKey) {
+                throw new IOException("Invalid chunk bitmap.");
+            }
+
+            Container container = Container.read(in);
+            bitmap.insertContainer(index, key, container);
+            bitmap.size += container.cardinality;
+            previousKey = key;
+        }
+
+        return bitmap;
+    }
+
+    ////////////////////////////////
+    // Containers
+    /**
+     * This class holds the chunks in one region: as a sorted array if there
+     * are up to ARRAY_LIMIT of them, and as a bitmap if there are more.
+     */
+    private static final class Container {
+
+        // exactly one of these is non-null.
+        private char[] array;
+        private long[] bitmap;
+        private int cardinality;
+
+        public Container() {
+            array = new char[4];
+        }
+
+        public Container(Container other) {
+            cardinality = other.cardinality;
+
+            if (other.bitmap != null) {
+                bitmap = other.bitmap.clone();
+            } else {
+                array = Arrays.copyOf(other.array, Math.max(4, cardinality));
+            }
+        }
+
+        public boolean contains(char low) {
+            if (bitmap != null) {
+                return (bitmap[low >>> 6] & (1L << low)) != 0;
+            }
+
+            return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+        }
+
+        public boolean add(char low) {
+            if (bitmap != null) {
+                long word = bitmap[low >>> 6];
+                long bit = 1L << low;
+
+                if ((word & bit) != 0) {
+                    return false;
+                }
+
+                bitmap[low >>> 6] = word | bit;
+                ++cardinality;
+                return true;
+            }
+
+            int index = Arrays.binarySearch(array, 0, cardinality, low);
+
+            if (index >= 0) {
+                return false;
+            }
+
+            if (cardinality == ARRAY_LIMIT) {
+                convertToBitmap();
+                return add(low);
+            }
+
+            index = -index - 1;
+
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_LIMIT, cardinality * 2));
+            }
+
+            System.arraycopy(array, index, array, index + 1, cardinality - index);
+            array[index] = low;
+            ++cardinality;
+            return true;
+        }
+
+        /**
+         * This method adds every chunk of another container of the same
+         * region to this one.
+         *
+         * @param other The container to add.
+         */
+        public void addAll(Container other) {
+            if (bitmap == null && other.bitmap == null
+                    && cardinality + other.cardinality <= ARRAY_LIMIT) {
+                mergeArrays(other);
+                return;
+            }
+
+            if (bitmap == null) {
+                convertToBitmap();
+            }
+
+            if (other.bitmap != null) {
+                int count = 0;
+
+                for (int word = 0; word < BITMAP_WORDS; ++word) {
+                    bitmap[word] |= other.bitmap[word];
+                    count += Long.bitCount(bitmap[word]);
+                }
+
+                cardinality = count;
+            } else {
+                for (int index = 0; index < other.cardinality; ++index) {
+                    char low = other.array[index];
+                    long bit = 1L << low;
+
+                    if ((bitmap[low >>> 6] & bit) == 0) {
+                        bitmap[low >>> 6] |= bit;
+                        ++cardinality;
+                    }
+                }
+            }
+        }
+
+        private void mergeArrays(Container other) {
+            char[] merged = new char[Math.max(4, cardinality + other.cardinality)];
+            int count = 0;
+            int mine = 0;
+            int theirs = 0;
+
+            while (mine < cardinality || theirs < other.cardinality) {
+                if (theirs == other.cardinality
+                        || (mine < cardinality && array[mine] < other.array[theirs])) {
+                    merged[count++] = array[mine++];
+                } else if (mine == cardinality || other.array[theirs] < array[mine]) {
+                    merged[count++] = other.array[theirs++];
+                } else {
+                    merged[count++] = array[mine++];
+                    ++theirs;
+                }
+            }
+
+            array = merged;
+            cardinality = count;
+        }
+
+        private void convertToBitmap() {
+            bitmap = new long[BITMAP_WORDS];
+
+            for (int index = 0; index < cardinality; ++index) {
+                char low = array[index];
+                bitmap[low >>> 6] |= 1L << low;
+            }
+
+            array = null;
+        }
+
+        /**
+         * This method finds the first chunk in the container at or after the
+         * one given.
+         *
+         * @param from The low bits to start at.
+         * @return The low bits of the chunk found, or -1 if there is none.
+         */
+        public int next(int from) {
+            if (bitmap != null) {
+                int word = from >>> 6;
+
+                if (word >= BITMAP_WORDS) {
+                    return -1;
+                }
+
+                long bits = bitmap[word] & (-1L << from);
+
+                for (;;) {
+                    if (bits != 0) {
+                        return (word << 6) + Long.numberOfTrailingZeros(bits);
+                    }
+
+                    if (++word == BITMAP_WORDS) {
+                        return -1;
+                    }
+
+                    bits = bitmap[word];
+                }
+            }
+
+            if (from > Character.MAX_VALUE) {
+                return -1;
+            }
+
+            int index = Arrays.binarySearch(array, 0, cardinality, (char) from);
+
+            if (index < 0) {
+                index = -index - 1;
+            }
+
+            return index < cardinality ? array[index] : -1;
+        }
+
+        public void write(DataOutput out) throws IOException {
+            out.writeShort(cardinality - 1);
+
+            if (cardinality <= ARRAY_LIMIT) {
+                for (int low = next(0), count = 0; count < cardinality; low = next(low + 1), ++count) {
+                    out.writeChar(low);
+                }
+            } else {
+                for (long word : bitmap) {
+                    out.writeLong(word);
+                }
+            }
+        }
+
+        public static Container read(DataInput in) throws IOException {
+            Container container = new Container();
+            int cardinality = in.readUnsignedShort() + 1;
+
+            if (cardinality <= ARRAY_LIMIT) {
+                container.array = new char[Math.max(4, cardinality)];
+
+                for (int index = 0; index < cardinality; ++index) {
+                    char low = in.readChar();
+
+                    if (index > 0 && low <= container.array[index - 1]) {
+                        throw new IOException("Invalid chunk bitmap.");
+                    }
+
+                    container.array[index] = low;
+                }
+            } else {
+                container.array = null;
+                container.bitmap = new long[BITMAP_WORDS];
+                int count = 0;
+
+                for (int word = 0; word < BITMAP_WORDS; ++word) {
+                    container.bitmap[word] = in.readLong();
+                    count += Long.bitCount(container.bitmap[word]);
+                }
+
+                if (count != cardinality) {
+                    throw new IOException("Invalid chunk bitmap.");
+                }
+            }
+
+            container.cardinality = cardinality;
+            return container;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package homesoil;
 
 import com.google.common.base.*;
 import com.google.common.collect.*;
+import java.io.*;
 import java.util.*;
 import org.bukkit.*;
 import org.bukkit.entity.*;
@@ -12,13 +13,17 @@ import org.bukkit.entity.*;
  * complex objects. The plain data fields are directly exposed; there's no point
  * in pretending that this class is object-oriented. It's a record.
  *
+ * We also keep the world's id from the WorldRegistry, which is what we compare
+ * and hash; only the name is ever saved, since the ids differ from run to run.
+ *
  * @author DanJ
  */
-public final class ChunkPosition implements MapFileMap.Storable, Comparable<ChunkPosition> {
+public final class ChunkPosition implements MapFileMap.StreamStorable, Comparable<ChunkPosition> {
 
     public final int x;
     public final int z;
     public final String worldName;
+    public final int worldId;
 
     public ChunkPosition(int x, int z, World world) {
         this(x, z, world.getName());
@@ -27,7 +32,8 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
     public ChunkPosition(int x, int z, String worldName) {
         this.x = x;
         this.z = z;
-        this.worldName = Preconditions.checkNotNull(worldName);
+        this.worldId = WorldRegistry.getId(worldName);
+        this.worldName = WorldRegistry.getName(worldId);
     }
 
     /**
@@ -52,13 +58,14 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
     }
 
     /**
-     * This method returns the world that contains the chunk named.
+     * This method returns the world that contains the chunk named; the
+     * WorldRegistry keeps it, so we look it up by name only the first time.
      *
      * @return The specific world that contains this position.
      * @throws IllegalStateException If the world named does not exist at all.
      */
     public World getWorld() {
-        World world = Bukkit.getWorld(worldName);
+        World world = WorldRegistry.getWorld(worldId);
 
         if (world == null) {
             throw new IllegalStateException(String.format(
@@ -76,7 +83,7 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
      * @return True if the entity is in the chunk.
      */
     public boolean contains(Entity entity) {
-        if (entity.getWorld().getName().equals(worldName)) {
+        if (entity.getWorld() == WorldRegistry.getWorld(worldId)) {
             Chunk ch = entity.getLocation().getChunk();
             return ch.getX() == x && ch.getZ() == z;
         }
@@ -92,7 +99,7 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
      * @return True if the entity is in the chunk.
      */
     public boolean contains(Location location) {
-        if (location.getWorld().getName().equals(worldName)) {
+        if (location.getWorld() == WorldRegistry.getWorld(worldId)) {
             Chunk ch = location.getChunk();
             return ch.getX() == x && ch.getZ() == z;
         }
@@ -106,6 +113,7 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
         int result = 1;
         result = prime * result + x;
         result = prime * result + z;
+        result = prime * result + worldId;
         return result;
     }
 
@@ -119,7 +127,7 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
             ChunkPosition other = (ChunkPosition) obj;
 
             return this.x == other.x && this.z == other.z
-                    && this.worldName.equals(other.worldName);
+                    && this.worldId == other.worldId;
         }
 
         return false;
@@ -167,11 +175,50 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
     ////////////////////////////////
     // MapFileMap Storage
     public ChunkPosition(MapFileMap map) {
-        this.x = map.getInteger("x");
-        this.z = map.getInteger("z");
-        this.worldName = map.getString("world");
+        this(map.getInteger("x"), map.getInteger("z"), map.getString("world"));
     }
 
+    /**
+     * This decoder reads a chunk position directly from a map file, without
+     * building a MapFileMap first.
+     */
+    static final MapFileMap.Decoder<ChunkPosition> DECODER = new MapFileMap.Decoder<ChunkPosition>() {
+        @Override
+        public ChunkPosition decode(MapFileReader reader) throws IOException {
+            Integer x = null;
+            Integer z = null;
+            String worldName = null;
+
+            while (reader.nextEntry()) {
+                String key = reader.getKey();
+
+                if (reader.isMap()) {
+                    reader.skipMap();
+                } else if (key.equals("x")) {
+                    x = reader.getIntValue();
+                } else if (key.equals("z")) {
+                    z = reader.getIntValue();
+                } else if (key.equals("world")) {
+                    worldName = reader.getValue();
+                }
+            }
+
+            return new ChunkPosition(
+                    checkFound(x, "x"),
+                    checkFound(z, "z"),
+                    checkFound(worldName, "world"));
+        }
+
+        private <T> T checkFound(T value, String key) {
+            if (value == null) {
+                throw new IllegalArgumentException(String.format(
+                        "Key '%s' is not found in map file map.", key));
+            }
+
+            return value;
+        }
+    };
+
     @Override
     public Map<?, ?> toMap() {
         Map<String, Object> map = Maps.newHashMap();
@@ -181,12 +228,23 @@ public final class ChunkPosition implements MapFileMap.Storable, Comparable<Chun
         return map;
     }
 
+    @Override
+    public void write(MapFileWriter writer) throws IOException {
+        writer.writeEntry("world", worldName);
+        writer.writeEntry("x", x);
+        writer.writeEntry("z", z);
+    }
+
     @Override
     public int compareTo(ChunkPosition other) {
         int cmp = this.x - other.x;
         if (cmp != 0) {
             return cmp;
         }
-        return this.z - other.z;
+        cmp = this.z - other.z;
+        if (cmp != 0 || this.worldId == other.worldId) {
+            return cmp;
+        }
+        return this.worldName.compareTo(other.worldName);
     }
 }
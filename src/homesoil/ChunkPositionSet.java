@@ -0,0 +1,285 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * ChunkPositionSet is a set of chunk positions that keeps a ChunkBitmap for
+ * each world; we use it for historical home chunks, which only ever grow and
+ * are most of what we store. It takes a couple of bytes a chunk where a
+ * HashSet takes eighty or more, and adding one set to another merges the
+ * bitmaps rather than adding each chunk.
+ *
+ * Chunks can't be removed, and the set iterates in order by world name and
+ * then by region, creating a ChunkPosition for each chunk as it goes.
+ *
+ * In the player files, the set is stored as a map from each world name to
+ * its bitmap, written out as binary and encoded in base 64; see
+ * toEncodedMap(). This class is not thread-safe.
+ *
+ * @author DanJ
+ */
+public final class ChunkPositionSet extends AbstractSet<ChunkPosition> {
+
+    private static final char[] BASE64_DIGITS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private final SortedMap<String, ChunkBitmap> bitmaps;
+    private final boolean modifiable;
+
+    public ChunkPositionSet() {
+        this.bitmaps = Maps.newTreeMap();
+        this.modifiable = true;
+    }
+
+    /**
+     * This constructor makes a copy of another set; the copy shares nothing
+     * with the original.
+     *
+     * @param other The set to copy.
+     */
+    public ChunkPositionSet(ChunkPositionSet other) {
+        this();
+
+        for (Map.Entry<String, ChunkBitmap> e : other.bitmaps.entrySet()) {
+            bitmaps.put(e.getKey(), new ChunkBitmap(e.getValue()));
+        }
+    }
+
+    private ChunkPositionSet(SortedMap<String, ChunkBitmap> bitmaps, boolean modifiable) {
+        this.bitmaps = bitmaps;
+        this.modifiable = modifiable;
+    }
+
+    /**
+     * This method returns a view of this set that can't be changed, but
+     * which can still be added to other sets as quickly as this one.
+     *
+     * @return The unmodifiable view.
+     */
+    public ChunkPositionSet unmodifiableView() {
+        return modifiable ? new ChunkPositionSet(bitmaps, false) : this;
+    }
+
+    /**
+     * This method returns a view of the chunks of this set that are in one
+     * world; the view changes as this set does, but can't be changed itself.
+     *
+     * @param worldName The name of the world.
+     * @return An unmodifiable view of the chunks in that world.
+     */
+    public Set<ChunkPosition> inWorld(final String worldName) {
+        Preconditions.checkNotNull(worldName);
+
+        return new AbstractSet<ChunkPosition>() {
+            @Override
+            public boolean contains(Object o) {
+                if (o instanceof ChunkPosition && ((ChunkPosition) o).worldName.equals(worldName)) {
+                    return ChunkPositionSet.this.contains(o);
+                }
+
+                return false;
+            }
+
+            @Override
+            public Iterator<ChunkPosition> iterator() {
+                ChunkBitmap bitmap = bitmaps.get(worldName);
+                return bitmap != null ? bitmap.iterator(worldName) : Iterators.<ChunkPosition>emptyIterator();
+            }
+
+            @Override
+            public int size() {
+                ChunkBitmap bitmap = bitmaps.get(worldName);
+                return bitmap != null ? bitmap.size() : 0;
+            }
+        };
+    }
+
+    ////////////////////////////////
+    // Set
+    @Override
+    public boolean contains(Object o) {
+        if (o instanceof ChunkPosition) {
+            ChunkPosition position = (ChunkPosition) o;
+            ChunkBitmap bitmap = bitmaps.get(position.worldName);
+            return bitmap != null && bitmap.contains(position.x, position.z);
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean add(ChunkPosition position) {
+        return getBitmap(position.worldName).add(position.x, position.z);
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends ChunkPosition> chunks) {
+        if (chunks instanceof ChunkPositionSet) {
+            boolean changed = false;
+
+            for (Map.Entry<String, ChunkBitmap> e : ((ChunkPositionSet) chunks).bitmaps.entrySet()) {
+                changed |= getBitmap(e.getKey()).addAll(e.getValue());
+            }
+
+            return changed;
+        }
+
+        return super.addAll(chunks);
+    }
+
+    @Override
+    public Iterator<ChunkPosition> iterator() {
+        List<Iterator<ChunkPosition>> iterators = Lists.newArrayList();
+
+        for (Map.Entry<String, ChunkBitmap> e : bitmaps.entrySet()) {
+            iterators.add(e.getValue().iterator(e.getKey()));
+        }
+
+        return Iterators.concat(iterators.iterator());
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+
+        for (ChunkBitmap bitmap : bitmaps.values()) {
+            size += bitmap.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * This method returns the bitmap of a world, and creates it if there is
+     * none yet.
+     *
+     * @param worldName The name of the world.
+     * @return The bitmap for the world.
+     * @throws UnsupportedOperationException If this is an unmodifiable view.
+     */
+    private ChunkBitmap getBitmap(String worldName) {
+        if (!modifiable) {
+            throw new UnsupportedOperationException("This set of chunks can't be changed.");
+        }
+
+        ChunkBitmap bitmap = bitmaps.get(worldName);
+
+        if (bitmap == null) {
+            bitmap = new ChunkBitmap();
+            bitmaps.put(worldName, bitmap);
+        }
+
+        return bitmap;
+    }
+
+    ////////////////////////////////
+    // Storage
+    /**
+     * This method returns the set as it is stored in the player files: a map
+     * from each world's name to its bitmap, in base 64. Worlds with no chunks
+     * are left out.
+     *
+     * @return A new sorted map of the encoded bitmaps.
+     */
+    public SortedMap<String, String> toEncodedMap() {
+        SortedMap<String, String> encoded = Maps.newTreeMap();
+
+        try {
+            for (Map.Entry<String, ChunkBitmap> e : bitmaps.entrySet()) {
+                if (e.getValue().size() > 0) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    e.getValue().write(out);
+                    out.flush();
+                    encoded.put(e.getKey(), encodeBase64(bytes.toByteArray()));
+                }
+            }
+        } catch (IOException e) {
+            // we are writing to memory, so this can't happen.
+            throw new RuntimeException(e);
+        }
+
+        return encoded;
+    }
+
+    /**
+     * This method adds to this set the chunks of one world, as toEncodedMap()
+     * encoded them.
+     *
+     * @param worldName The name of the world.
+     * @param encoded The encoded bitmap of the world's chunks.
+     * @throws IllegalArgumentException If the text is not a valid bitmap.
+     */
+    public void addEncoded(String worldName, String encoded) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(decodeBase64(encoded)));
+            getBitmap(worldName).addAll(ChunkBitmap.read(in));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(String.format(
+                    "The chunks for '%s' are not valid.", worldName), e);
+        }
+    }
+
+    /**
+     * This method encodes bytes in base 64, without the padding; the padding
+     * would need escaping in the text format.
+     */
+    private static String encodeBase64(byte[] bytes) {
+        StringBuilder b = new StringBuilder((bytes.length * 4 + 2) / 3);
+        int bits = 0;
+        int bitCount = 0;
+
+        for (byte value : bytes) {
+            bits = (bits << 8) | (value & 0xFF);
+            bitCount += 8;
+
+            while (bitCount >= 6) {
+                bitCount -= 6;
+                b.append(BASE64_DIGITS[(bits >> bitCount) & 63]);
+            }
+        }
+
+        if (bitCount > 0) {
+            b.append(BASE64_DIGITS[(bits << (6 - bitCount)) & 63]);
+        }
+
+        return b.toString();
+    }
+
+    private static byte[] decodeBase64(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length() * 3 / 4);
+        int bits = 0;
+        int bitCount = 0;
+
+        for (int index = 0; index < text.length(); ++index) {
+            char c = text.charAt(index);
+            int digit;
+
+            if (c >= 'A' && c <= 'Z') {
+                digit = c - 'A';
+            } else if (c >= 'a' && c <= 'z') {
+                digit = c - 'a' + 26;
+            } else if (c >= '0' && c <= '9') {
+                digit = c - '0' + 52;
+            } else if (c == '+') {
+                digit = 62;
+            } else if (c == '/') {
+                digit = 63;
+            } else {
+                throw new IOException(String.format("'%c' is not a base 64 digit.", c));
+            }
+
+            bits = (bits << 6) | digit;
+            bitCount += 6;
+
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                bytes.write((bits >> bitCount) & 0xFF);
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,175 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * ColdPlayerFile holds the data of players who have been offline a long time,
+ * so PlayerInfoMap need not keep their PlayerInfos in memory. Each evicted
+ * player is appended to a temporary file in the text format; we keep only
+ * where his data is and his current home chunks, which the chunk owner index
+ * needs anyway. The PlayerInfo is read back when someone asks for it.
+ *
+ * The file lasts only as long as the server runs; the player data is still
+ * saved to the PlayerInfoStore as usual, and the saver reads evicted players
+ * from this file to do it. Space is never reused, but each player takes only
+ * a few hundred bytes, and only when he is evicted.
+ *
+ * Entries are written on the BackgroundSaver's thread, but may be read on any
+ * thread.
+ *
+ * @author DanJ
+ */
+final class ColdPlayerFile {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private long size;
+
+    private ColdPlayerFile(RandomAccessFile file) {
+        this.file = file;
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * This method creates a new, empty cold storage file; it is deleted when
+     * the server exits.
+     *
+     * @return The new ColdPlayerFile.
+     */
+    public static ColdPlayerFile create() {
+        try {
+            File tempFile = File.createTempFile("HomeSoil", ".cold");
+            tempFile.deleteOnExit();
+            return new ColdPlayerFile(new RandomAccessFile(tempFile, "rw"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method appends a player's data to the file.
+     *
+     * @param info The player's data; this is not changed.
+     * @return The entry that can read the data back.
+     */
+    public Entry write(PlayerInfo info) {
+        StringWriter text = new StringWriter();
+        MapFileMap.write(text, info.toMap());
+        ByteBuffer bytes = Charsets.UTF_8.encode(text.toString());
+
+        long start = size;
+        int length = bytes.remaining();
+
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes, start + length - bytes.remaining());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        size += length;
+        return new Entry(start, length, info);
+    }
+
+    /**
+     * This method reads part of the file as UTF8 text. This uses positional
+     * reads only, so it is safe to call from any thread.
+     *
+     * @param start The offset of the first byte to read.
+     * @param length The number of bytes to read.
+     * @return The text read.
+     */
+    private String read(long start, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, start + bytes.position()) < 0) {
+                throw new EOFException("The HomeSoil cold storage file is truncated.");
+            }
+        }
+
+        bytes.flip();
+        return Charsets.UTF_8.decode(bytes).toString();
+    }
+
+    /**
+     * This method closes the file; no entry can be read after this.
+     */
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    ////////////////////////////////
+    // Entries
+    /**
+     * This class describes where a player's data is in the file, and keeps
+     * his home chunks and the version of the PlayerInfo he was evicted from.
+     */
+    public final class Entry implements UnloadedPlayerInfo {
+
+        private final long start;
+        private final int length;
+        private final List<ChunkPosition> homeChunks;
+        private final int version;
+
+        private Entry(long start, int length, PlayerInfo info) {
+            this.start = start;
+            this.length = length;
+            this.homeChunks = ImmutableList.copyOf(info.getHomeChunks());
+            this.version = info.getVersion();
+        }
+
+        @Override
+        public List<ChunkPosition> getHomeChunks() {
+            return homeChunks;
+        }
+
+        /**
+         * This method reads the player's historical home chunks back from
+         * the file; we don't keep them in memory, since they are most of
+         * what eviction saves.
+         *
+         * @return An unmodifiable set of the chunks.
+         */
+        @Override
+        public Set<ChunkPosition> getHistoricalHomeChunks() {
+            return toPlayerInfo().getHistoricalHomeChunks();
+        }
+
+        @Override
+        public PlayerInfo toPlayerInfo() {
+            try {
+                Iterator<String> lines = Splitter.on(MapFileMap.NEW_LINE).split(read(start, length)).iterator();
+                PlayerInfo info = PlayerInfo.DECODER.decode(MapFileReader.forText(lines));
+                info.restoreVersion(version);
+                return info;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public MapFileMap toMap() {
+            try {
+                return MapFileMap.read(new StringReader(read(start, length)));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * DatabasePlayerInfoStore keeps the player data in an SQLite database file.
+ * There is a row for each chunk each player has ever owned; the row's
+ * 'home_index' is the chunk's place in the player's home chunks, or null if
+ * it is only a historical home chunk now.
+ *
+ * A save writes rows only for players who changed since the last save, and
+ * for those only the rows for their current and former home chunks; this
+ * keeps the cost of a save independent of how many players there are.
+ *
+ * Loading reads only the home chunk rows, which are what the chunk owners
+ * are built from; an index on 'home_index' lets us find these without
+ * reading the historical rows, which are most of the table. Each player is
+ * left unloaded, and his historical home chunks are read by player name
+ * when PlayerInfoMap first needs them. Every player has a home chunk, so
+ * every player is found this way.
+ *
+ * The connection is used on the main thread for these reads, and on the
+ * saver thread for saves, so we synchronize on the store to use it.
+ *
+ * The SQLite JDBC driver comes with CraftBukkit, so we need no library of our
+ * own; to run the tests, put sqlite-jdbc in the lib directory. If the
+ * database is empty when we load it, we import the data from the store we
+ * are given instead, so the first save fills in the database.
+ *
+ * @author DanJ
+ */
+public final class DatabasePlayerInfoStore implements PlayerInfoStore {
+
+    private final File databaseFile;
+    private final PlayerInfoStore importStore;
+    private Connection connection;
+    // these are the snapshots last saved for each player; we use them only
+    // on the saver thread. Players still unloaded have no entry here.
+    private final Map<String, PlayerInfo> savedInfos = Maps.newHashMap();
+
+    /**
+     * This constructor creates the store; it does not open the database until
+     * load() is called.
+     *
+     * @param databaseFile The SQLite database file.
+     * @param importStore The store to import data from if the database is
+     * empty.
+     */
+    public DatabasePlayerInfoStore(File databaseFile, PlayerInfoStore importStore) {
+        this.databaseFile = Preconditions.checkNotNull(databaseFile);
+        this.importStore = Preconditions.checkNotNull(importStore);
+    }
+
+    ////////////////////////////////
+    // Loading
+    @Override
+    public synchronized boolean load(PlayerInfoMap playerInfos) {
+        try {
+            open();
+
+            Map<String, Entry> loaded = readEntries();
+
+            if (loaded.isEmpty()) {
+                // whatever we import must be saved to the database
+                importStore.load(playerInfos);
+                return true;
+            }
+
+            playerInfos.loadUnloaded(loaded);
+            return false;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method opens the database, and creates the table and its index if
+     * they are not there yet.
+     */
+    private void open() throws SQLException {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The SQLite JDBC driver is not available.", e);
+        }
+
+        connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFile.getPath());
+
+        Statement statement = connection.createStatement();
+
+        try {
+            statement.executeUpdate(
+                    "CREATE TABLE IF NOT EXISTS home_chunks ("
+                    + "player TEXT NOT NULL, "
+                    + "world TEXT NOT NULL, "
+                    + "x INTEGER NOT NULL, "
+                    + "z INTEGER NOT NULL, "
+                    + "home_index INTEGER, "
+                    + "PRIMARY KEY (player, world, x, z))");
+            statement.executeUpdate(
+                    "CREATE INDEX IF NOT EXISTS home_chunks_by_position "
+                    + "ON home_chunks (world, x, z)");
+            // this holds every column we load, so loading need not read
+            // the table itself. The nulls of historical rows sort first; we
+            // skip them with 'home_index >= 0', since older SQLites won't
+            // use an index for 'IS NOT NULL'.
+            statement.executeUpdate(
+                    "CREATE INDEX IF NOT EXISTS home_chunks_by_home_index "
+                    + "ON home_chunks (home_index, player, world, x, z)");
+        } finally {
+            statement.close();
+        }
+
+        connection.setAutoCommit(false);
+        connection.commit();
+    }
+
+    /**
+     * This method reads the home chunk rows of the database, and makes an
+     * unloaded entry for each player who has any.
+     *
+     * @return The players read, keyed by name.
+     */
+    private Map<String, Entry> readEntries() throws SQLException {
+        Map<String, List<ChunkPosition>> homeChunks = Maps.newHashMap();
+        Statement statement = connection.createStatement();
+
+        try {
+            ResultSet rows = statement.executeQuery(
+                    "SELECT player, world, x, z FROM home_chunks "
+                    + "WHERE home_index >= 0 "
+                    + "ORDER BY player, home_index");
+
+            while (rows.next()) {
+                String playerName = rows.getString(1);
+                List<ChunkPosition> chunks = homeChunks.get(playerName);
+
+                if (chunks == null) {
+                    chunks = Lists.newArrayList();
+                    homeChunks.put(playerName, chunks);
+                }
+
+                chunks.add(new ChunkPosition(rows.getInt(3), rows.getInt(4), rows.getString(2)));
+            }
+        } finally {
+            statement.close();
+        }
+
+        Map<String, Entry> entries = Maps.newHashMap();
+
+        for (Map.Entry<String, List<ChunkPosition>> e : homeChunks.entrySet()) {
+            entries.put(e.getKey(), new Entry(e.getKey(), e.getValue()));
+        }
+
+        return entries;
+    }
+
+    /**
+     * This method reads every chunk that has ever been a home chunk of a
+     * player; the primary key starts with the player, so this reads only his
+     * rows.
+     *
+     * @param playerName The player whose chunks are wanted.
+     * @return The chunks read.
+     */
+    private synchronized Set<ChunkPosition> readHistoricalHomeChunks(String playerName) {
+        Preconditions.checkState(connection != null, "The database is closed.");
+
+        try {
+            PreparedStatement query = connection.prepareStatement(
+                    "SELECT world, x, z FROM home_chunks WHERE player = ?");
+
+            try {
+                query.setString(1, playerName);
+                ResultSet rows = query.executeQuery();
+                Set<ChunkPosition> chunks = Sets.newHashSet();
+
+                while (rows.next()) {
+                    chunks.add(new ChunkPosition(rows.getInt(2), rows.getInt(3), rows.getString(1)));
+                }
+
+                return chunks;
+            } finally {
+                query.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    ////////////////////////////////
+    // Saving
+    @Override
+    public synchronized void save(Map<String, ? extends MapFileMap.Storable> snapshot) {
+        try {
+            PreparedStatement upsert = connection.prepareStatement(
+                    "INSERT OR REPLACE INTO home_chunks (player, world, x, z, home_index) "
+                    + "VALUES (?, ?, ?, ?, ?)");
+
+            try {
+                Map<String, PlayerInfo> written = Maps.newHashMap();
+
+                for (Map.Entry<String, ? extends MapFileMap.Storable> e : snapshot.entrySet()) {
+                    String playerName = e.getKey();
+                    PlayerInfo before = savedInfos.get(playerName);
+                    MapFileMap.Storable value = e.getValue();
+
+                    if (value instanceof Entry) {
+                        continue; // still just as we loaded it
+                    } else if (before != null && before.getVersion() == PlayerInfo.getVersionOf(value)) {
+                        continue;
+                    }
+
+                    PlayerInfo now = PlayerInfo.fromStorable(value);
+                    addUpserts(upsert, playerName, before, now);
+                    written.put(playerName, now);
+                }
+
+                upsert.executeBatch();
+                connection.commit();
+                savedInfos.putAll(written);
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                upsert.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method adds the rows that must be written for a player to the
+     * batch. If we don't know what we saved before, we write a row for every
+     * chunk the player has ever owned; if we do, we write only rows for the
+     * chunks that were homes before, those that are homes now, and those that
+     * are new historical home chunks, since only those rows can have changed.
+     * The last are needed for chunks gained and lost again between saves.
+     *
+     * @param upsert The statement that writes a row.
+     * @param playerName The player to write.
+     * @param before The player's data as last saved, or null if unknown.
+     * @param now The player's data as it is now.
+     */
+    private static void addUpserts(PreparedStatement upsert, String playerName, PlayerInfo before, PlayerInfo now) throws SQLException {
+        List<ChunkPosition> homeChunks = now.getHomeChunks();
+        Set<ChunkPosition> changed = Sets.newLinkedHashSet();
+
+        if (before == null) {
+            changed.addAll(now.getHistoricalHomeChunks());
+        } else {
+            changed.addAll(before.getHomeChunks());
+            changed.addAll(Sets.difference(now.getHistoricalHomeChunks(), before.getHistoricalHomeChunks()));
+        }
+
+        changed.addAll(homeChunks);
+
+        for (ChunkPosition chunk : changed) {
+            int homeIndex = homeChunks.indexOf(chunk);
+
+            upsert.setString(1, playerName);
+            upsert.setString(2, chunk.worldName);
+            upsert.setInt(3, chunk.x);
+            upsert.setInt(4, chunk.z);
+
+            if (homeIndex >= 0) {
+                upsert.setInt(5, homeIndex);
+            } else {
+                upsert.setNull(5, Types.INTEGER);
+            }
+
+            upsert.addBatch();
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return FilePlayerInfoStore.getVersion(Collections.singletonList(databaseFile));
+    }
+
+    @Override
+    public synchronized void close() {
+        // this releases anything the import left open, such as lazy copies.
+        importStore.close();
+
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            } finally {
+                connection = null;
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Entries
+    /**
+     * This class is a player loaded from the database, but not yet made into
+     * a PlayerInfo; we have his home chunks, but read the rest only when
+     * asked.
+     */
+    private final class Entry implements UnloadedPlayerInfo {
+
+        private final String playerName;
+        private final List<ChunkPosition> homeChunks;
+
+        public Entry(String playerName, List<ChunkPosition> homeChunks) {
+            this.playerName = playerName;
+            this.homeChunks = ImmutableList.copyOf(homeChunks);
+        }
+
+        @Override
+        public List<ChunkPosition> getHomeChunks() {
+            return homeChunks;
+        }
+
+        @Override
+        public Set<ChunkPosition> getHistoricalHomeChunks() {
+            return Collections.unmodifiableSet(readHistoricalHomeChunks(playerName));
+        }
+
+        @Override
+        public PlayerInfo toPlayerInfo() {
+            return new PlayerInfo(homeChunks, readHistoricalHomeChunks(playerName));
+        }
+
+        @Override
+        public int getVersion() {
+            return 0; // just as it was loaded
+        }
+
+        @Override
+        public Map<?, ?> toMap() {
+            return toPlayerInfo().toMap();
+        }
+    }
+}
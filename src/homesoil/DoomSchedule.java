@@ -63,6 +63,7 @@ public final class DoomSchedule implements Listener {
      * this.
      */
     public void start() {
+        stopped = false;
         Bukkit.getPluginManager().registerEvents(this, plugin);
         runDoomScheduleLater();
 
@@ -82,11 +83,22 @@ public final class DoomSchedule implements Listener {
      * all over again.
      */
     public void stop() {
+        stopped = true;
+
         if (nextDoomPillar != null) {
             nextDoomPillar.cancel();
         }
 
+        if (nextSave != null) {
+            nextSave.cancel();
+            nextSave = null;
+        }
+
         HandlerList.unregisterAll(this);
+
+        // any pillars still waiting for a save are never placed; their
+        // chunks are saved as doomed, and so regenerated on restart.
+        pillarsAwaitingSave.clear();
         saveDoomedChunks();
     }
 
@@ -155,8 +167,8 @@ public final class DoomSchedule implements Listener {
     /**
      * This method starts the process of regenerating a chunk; it records the
      * chunk as 'doomed' in the doomed chunk file, and kicks off the glowstone
-     * pillar. Lifetime is the time it'll take to perform the pillar and
-     * then call for regen.
+     * pillar once that is saved. Lifetime is the time it'll take to perform
+     * the pillar and then call for regen.
      *
      * @param where The chunk that is doomed.
      */
@@ -165,22 +177,89 @@ public final class DoomSchedule implements Listener {
             System.out.println(String.format(
                     "Doom at %d, %d (%s)", where.x * 16 + 8, where.z * 16 + 8, where.worldName));
 
-            saveDoomedChunks();
+            pillarsAwaitingSave.add(where);
+            saveDoomedChunksLater();
+        }
+    }
+
+    /**
+     * This method places the pillar for a doomed chunk, and schedules the
+     * chunk to be regenerated; we do this only once the chunk has been saved
+     * as doomed.
+     *
+     * @param where The chunk that is doomed.
+     */
+    private void raisePillarOfDoom(ChunkPosition where) {
+        placePillarOfDoom(where);
+        regenerateChunkLater(where, doomChunkLifetime);
+    }
+    ////////////////////////////////////////////////////////////////
+    // Saving Doomed Chunks
+    //
+    // We don't write the doomed chunk file each time a chunk is doomed or
+    // regenerated; instead we save at most once every 'doom-save-interval'
+    // ticks, on the plugin's saver thread. A chunk's pillar is not placed
+    // until the save that records it is finished, so a pillar is never left
+    // standing if the server stops before its chunk is regenerated.
+    private final List<ChunkPosition> pillarsAwaitingSave = Lists.newArrayList();
+    private BukkitTask nextSave;
+    // set by stop(); a save still running on the saver thread then places no
+    // pillars, and schedules nothing, since a disabled plugin can't.
+    private volatile boolean stopped;
 
-            placePillarOfDoom(where);
-            regenerateChunkLater(where, doomChunkLifetime);
+    /**
+     * This method schedules a save of the doomed chunks, unless one is already
+     * scheduled; changes made before it runs are saved together.
+     */
+    private void saveDoomedChunksLater() {
+        if (nextSave == null) {
+            long interval = Math.max(1, plugin.getConfig().getLong("doom-save-interval", 100));
+
+            nextSave = new BukkitRunnable() {
+                @Override
+                public void run() {
+                    nextSave = null;
+                    saveDoomedChunks();
+                }
+            }.runTaskLater(plugin, interval);
         }
     }
 
     /**
-     * This writes the set of doomed chunks out to a file. Recording these
-     * chunks lets us regenerate them when the server restarts; this way we
-     * don't leave abandoned doom pillars all over.
+     * This writes the set of doomed chunks out to a file, on the saver
+     * thread. Recording these chunks lets us regenerate them when the server
+     * restarts; this way we don't leave abandoned doom pillars all over. Once
+     * the file is written, we place the pillars that were waiting for it,
+     * unless the schedule has been stopped by then.
      */
     private void saveDoomedChunks() {
-        MapFileMap map = new MapFileMap();
-        map.put("doomed", doomedChunks);
-        MapFileMap.write(regenFile, map);
+        final MapFileMap map = new MapFileMap();
+        map.put("doomed", ImmutableSet.copyOf(doomedChunks));
+
+        final List<ChunkPosition> pillars = ImmutableList.copyOf(pillarsAwaitingSave);
+        pillarsAwaitingSave.clear();
+
+        final MapFileMap.Format format = plugin.getStorageFormat();
+
+        plugin.getSaver().execute(new Runnable() {
+            @Override
+            public void run() {
+                MapFileMap.write(regenFile, map, format);
+
+                if (!pillars.isEmpty() && !stopped && plugin.isEnabled()) {
+                    new BukkitRunnable() {
+                        @Override
+                        public void run() {
+                            if (!stopped) {
+                                for (ChunkPosition where : pillars) {
+                                    raisePillarOfDoom(where);
+                                }
+                            }
+                        }
+                    }.runTask(plugin);
+                }
+            }
+        });
     }
 
     /**
@@ -255,7 +334,7 @@ public final class DoomSchedule implements Listener {
         World world = where.getWorld();
         world.regenerateChunk(where.x, where.z);
         if (doomedChunks.remove(where)) {
-            saveDoomedChunks();
+            saveDoomedChunksLater();
         }
     }
     ////////////////////////////////////////////////////////////////
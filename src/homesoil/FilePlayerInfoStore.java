@@ -0,0 +1,181 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.io.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * FilePlayerInfoStore keeps the player data in the HomeSoil file, or in a
+ * SegmentedPlayerFile or WorldPartitionedPlayerFile if we are given one. This
+ * is the default store.
+ *
+ * If the player data is found in another layout from the one we are given
+ * (a single file, segments or world files), we load it anyway, and the first
+ * save writes it in the right layout and deletes the old files.
+ *
+ * @author DanJ
+ */
+public final class FilePlayerInfoStore implements PlayerInfoStore {
+
+    private final File playersFile;
+    private final File segmentsDirectory;
+    private final MapFileMap.Format format;
+    private final SegmentedPlayerFile segments;
+    private final File worldsDirectory;
+    private final WorldPartitionedPlayerFile worlds;
+    private final boolean lazy;
+    private final ExecutorService executor;
+    private boolean deleteSegmentsAfterSave;
+    private boolean deleteWorldsAfterSave;
+    // the copies of the files we loaded lazily; we close them when we close.
+    private final List<Closeable> lazyFiles = Lists.newArrayList();
+
+    /**
+     * This constructor creates the store.
+     *
+     * @param playersFile The single HomeSoil file.
+     * @param segmentsDirectory The directory that holds the segment files.
+     * @param format The format to write the files in.
+     * @param segments The segmented file to use, or null to use the single
+     * file.
+     * @param worldsDirectory The directory that holds the world files.
+     * @param worlds The world files to use, or null; if given, these are used
+     * rather than 'segments' or the single file.
+     * @param lazy True to load the files with PlayerInfoMap.loadLazily().
+     * @param executor The executor to parse and render the single file on,
+     * or null to do it all on the calling thread.
+     */
+    public FilePlayerInfoStore(File playersFile, File segmentsDirectory, MapFileMap.Format format, SegmentedPlayerFile segments, File worldsDirectory, WorldPartitionedPlayerFile worlds, boolean lazy, ExecutorService executor) {
+        this.playersFile = Preconditions.checkNotNull(playersFile);
+        this.segmentsDirectory = Preconditions.checkNotNull(segmentsDirectory);
+        this.format = Preconditions.checkNotNull(format);
+        this.segments = segments;
+        this.worldsDirectory = Preconditions.checkNotNull(worldsDirectory);
+        this.worlds = worlds;
+        this.lazy = lazy;
+        this.executor = executor;
+    }
+
+    @Override
+    public boolean load(PlayerInfoMap playerInfos) {
+        List<File> segmentFiles = SegmentedPlayerFile.listFiles(segmentsDirectory);
+        boolean hasWorldFiles = !WorldPartitionedPlayerFile.listFiles(worldsDirectory).isEmpty();
+
+        if (worlds != null && hasWorldFiles) {
+            playerInfos.load(WorldPartitionedPlayerFile.load(worldsDirectory));
+            worlds.markLoaded(playerInfos.takeSaveSnapshot());
+            deleteSegmentsAfterSave = !segmentFiles.isEmpty();
+            return false;
+        } else if (segments != null && !segmentFiles.isEmpty()) {
+            loadFiles(playerInfos, segmentFiles);
+            segments.markLoaded(playerInfos.takeSaveSnapshot());
+            deleteWorldsAfterSave = hasWorldFiles;
+            return worlds != null;
+        } else if (playersFile.exists()) {
+            loadFiles(playerInfos, Collections.singletonList(playersFile));
+            deleteSegmentsAfterSave = !segmentFiles.isEmpty();
+            deleteWorldsAfterSave = hasWorldFiles;
+            return segments != null || worlds != null;
+        } else if (!segmentFiles.isEmpty()) {
+            loadFiles(playerInfos, segmentFiles);
+            deleteSegmentsAfterSave = true;
+            deleteWorldsAfterSave = hasWorldFiles;
+            return true;
+        } else if (hasWorldFiles) {
+            playerInfos.load(WorldPartitionedPlayerFile.load(worldsDirectory));
+            deleteWorldsAfterSave = true;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * This method loads player data from each of the files given.
+     *
+     * @param playerInfos The map to load the players into.
+     * @param files The files to load.
+     */
+    private void loadFiles(PlayerInfoMap playerInfos, List<File> files) {
+        for (File file : files) {
+            if (lazy) {
+                Closeable lazyFile = playerInfos.loadLazily(file);
+
+                if (lazyFile != null) {
+                    lazyFiles.add(lazyFile);
+                }
+            } else {
+                playerInfos.load(file, executor);
+            }
+        }
+    }
+
+    @Override
+    public void save(Map<String, ? extends MapFileMap.Storable> snapshot) {
+        if (worlds != null) {
+            worlds.write(snapshot);
+            // the single file is out of date now
+            playersFile.delete();
+        } else if (segments != null) {
+            segments.write(snapshot);
+            // the single file is out of date now
+            playersFile.delete();
+        } else {
+            MapFileMap.write(playersFile, snapshot, format, executor);
+        }
+
+        if (deleteSegmentsAfterSave && (worlds != null || segments == null)) {
+            SegmentedPlayerFile.deleteFiles(segmentsDirectory);
+        }
+
+        if (deleteWorldsAfterSave && worlds == null) {
+            WorldPartitionedPlayerFile.deleteFiles(worldsDirectory);
+        }
+
+        deleteSegmentsAfterSave = false;
+        deleteWorldsAfterSave = false;
+    }
+
+    @Override
+    public long getVersion() {
+        List<File> files = Lists.newArrayList(playersFile);
+        files.addAll(SegmentedPlayerFile.listFiles(segmentsDirectory));
+        files.addAll(WorldPartitionedPlayerFile.listFiles(worldsDirectory));
+        return getVersion(files);
+    }
+
+    /**
+     * This method works out a version for a set of files, as getVersion()
+     * describes; files that do not exist are skipped, and the order of the
+     * files does not matter.
+     *
+     * @param files The files that hold the data.
+     * @return The version of the files.
+     */
+    static long getVersion(Iterable<File> files) {
+        long version = 0;
+
+        for (File file : files) {
+            if (file.exists()) {
+                long h = file.getName().hashCode();
+                h = h * 31 + file.length();
+                h = h * 31 + file.lastModified();
+                version += h;
+            }
+        }
+
+        return version;
+    }
+
+    @Override
+    public void close() {
+        for (Closeable lazyFile : lazyFiles) {
+            Closeables.closeQuietly(lazyFile);
+        }
+
+        lazyFiles.clear();
+    }
+}
@@ -0,0 +1,714 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * HomeChunkOwnerIndex keeps the owner of each home chunk in a memory-mapped
+ * file, so PlayerInfoMap can use it at once when the server starts, rather
+ * than working out every chunk's owner from the player data again.
+ *
+ * The file is an open-addressing hash table with linear probing, which
+ * LinearProbing does for us. Each slot holds a chunk position packed into a
+ * long, and the id of its owner; a zero id marks an empty slot. The world and
+ * player names are given ids by a second file of names, to which each new
+ * name is appended.
+ *
+ * The header records whether the index was closed cleanly. If it was not, as
+ * after a crash, we can't know if it matches the player data, and open()
+ * returns an empty index instead, to be rebuilt. Chunks too far out to pack
+ * are kept in memory instead, as are any we could not fit because the table
+ * could not be grown; if there are any, we don't mark the index clean, so
+ * it's rebuilt at the next start.
+ *
+ * Even a clean index may not match the player data, if that was restored or
+ * edited while the server was down. So the header also holds a stamp, which
+ * is the sum of stampOf() for each chunk and its owner; PlayerInfoMap works
+ * out the same sum from the player data it loads, and uses the index only if
+ * the two agree.
+ *
+ * We never change the length of the mapped file, since on Windows that fails
+ * while the file is mapped. To grow the table, we write a new file beside it
+ * and rename that over the old one.
+ *
+ * This is used only on the main thread.
+ *
+ * @author DanJ
+ */
+final class HomeChunkOwnerIndex extends AbstractMap<ChunkPosition, String> implements HomeChunkOwners {
+
+    private static final int MAGIC = 0x48534F49; // 'HSOI'
+    private static final int FORMAT_VERSION = 2;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+    private static final int CLEAN_OFFSET = 16;
+    private static final int STAMP_OFFSET = 24;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 12;
+    private static final int MINIMUM_CAPACITY = 1024;
+    // chunk coordinates are packed in 22 bits each, and world ids in 19,
+    // so packed keys are never negative.
+    private static final int COORDINATE_BITS = 22;
+    private static final int COORDINATE_BIAS = 1 << (COORDINATE_BITS - 1);
+    private static final int MAXIMUM_WORLD_ID = (1 << 19) - 1;
+    private final File path;
+    private final File namesFile;
+    // the file that holds the table now; this is 'path' unless we could not
+    // rename a new table over it, and then we try again on close.
+    private File tableFile;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int size;
+    private long stamp;
+    private final boolean wasClean;
+    private final List<String> worldNames = Lists.newArrayList();
+    private final Map<String, Integer> worldIds = Maps.newHashMap();
+    private final List<String> playerNames = Lists.newArrayList();
+    private final Map<String, Integer> playerIds = Maps.newHashMap();
+    private Writer namesWriter;
+    private final Map<ChunkPosition, String> unpackedOwners = Maps.newHashMap();
+
+    private HomeChunkOwnerIndex(File path, File namesFile) throws IOException {
+        this.path = path;
+        this.namesFile = namesFile;
+        this.tableFile = path;
+        this.wasClean = readHeader() && readNames();
+
+        if (!wasClean) {
+            reset();
+        }
+
+        // until we are closed, the file may not match the player data.
+        buffer.put(CLEAN_OFFSET, (byte) 0);
+        buffer.force();
+
+        if (namesWriter == null) {
+            namesWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(namesFile, true), Charsets.UTF_8));
+        }
+    }
+
+    /**
+     * This method opens the index in the file given; the names are kept in a
+     * second file beside it, whose name ends with '.names'. If the files do
+     * not exist, or were not closed cleanly, this empties them.
+     *
+     * @param file The file that holds the hash table.
+     * @return The index.
+     */
+    public static HomeChunkOwnerIndex open(File file) {
+        try {
+            return new HomeChunkOwnerIndex(file, new File(file.getPath() + ".names"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method indicates if the index was closed cleanly the last time it
+     * was used; if so, it holds what it held then. If not, it was emptied
+     * when it was opened.
+     *
+     * @return True if the index's contents were kept.
+     */
+    public boolean wasClosedCleanly() {
+        return wasClean;
+    }
+
+    /**
+     * This method returns the stamp of the index: the sum of stampOf() for
+     * each chunk in it and its owner.
+     *
+     * @return The stamp.
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * This method returns a number worked out from a chunk and its owner; the
+     * sum of these over the chunks of a world is the stamp of that world's
+     * index, and changes if any chunk is given to someone else.
+     *
+     * @param owner The name of the chunk's owner.
+     * @param x The X co-ordinate of the chunk.
+     * @param z The Z co-ordinate of the chunk.
+     * @return The stamp for the chunk and owner.
+     */
+    public static long stampOf(String owner, int x, int z) {
+        long h = owner.hashCode();
+        h = h * 0x9E3779B97F4A7C15L + x;
+        h = h * 0x9E3779B97F4A7C15L + z;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * This method writes out any changes and closes the files; the index may
+     * not be used after this.
+     */
+    public void close() {
+        try {
+            namesWriter.close();
+            buffer.put(CLEAN_OFFSET, (byte) (unpackedOwners.isEmpty() ? 1 : 0));
+            buffer.force();
+            closeTable();
+            moveTableIntoPlace();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    ////////////////////////////////
+    // Files
+    /**
+     * This method maps the file and checks its header; if the header is
+     * valid and marked clean, this reads the table's size from it.
+     *
+     * @return True if the table can be used as it is.
+     */
+    private boolean readHeader() throws IOException {
+        // a new table left over from a crash is of no use.
+        new File(path.getPath() + ".new").delete();
+
+        long length = path.length();
+
+        if (length < HEADER_SIZE) {
+            return false;
+        }
+
+        file = new RandomAccessFile(path, "rw");
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC
+                || buffer.getInt(VERSION_OFFSET) != FORMAT_VERSION
+                || buffer.get(CLEAN_OFFSET) != 1) {
+            return false;
+        }
+
+        capacity = buffer.getInt(CAPACITY_OFFSET);
+        size = buffer.getInt(SIZE_OFFSET);
+        stamp = buffer.getLong(STAMP_OFFSET);
+
+        return capacity >= MINIMUM_CAPACITY
+                && Integer.bitCount(capacity) == 1
+                && length == HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    /**
+     * This method reads the names file; each line gives a world or player
+     * name, and its id is the number of names of that kind before it.
+     *
+     * @return True if the file could be read.
+     */
+    private boolean readNames() throws IOException {
+        if (!namesFile.exists()) {
+            return false;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(namesFile), Charsets.UTF_8));
+
+        try {
+            for (;;) {
+                String line = reader.readLine();
+
+                if (line == null) {
+                    return true;
+                }
+
+                int split = line.indexOf('=');
+                String kind = split >= 0 ? line.substring(0, split) : "";
+                String name = MapFileMap.unescape(line.substring(split + 1));
+
+                if (kind.equals("world")) {
+                    addName(worldNames, worldIds, name);
+                } else if (kind.equals("player")) {
+                    addName(playerNames, playerIds, name);
+                } else {
+                    return false;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * This method empties the index, and sizes the table to its minimum.
+     */
+    private void reset() throws IOException {
+        worldNames.clear();
+        worldIds.clear();
+        playerNames.clear();
+        playerIds.clear();
+        unpackedOwners.clear();
+        stamp = 0;
+
+        if (namesWriter != null) {
+            namesWriter.close();
+        }
+
+        namesWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(namesFile, false), Charsets.UTF_8));
+
+        replaceTable(MINIMUM_CAPACITY, new long[0], new int[0]);
+    }
+
+    /**
+     * This method writes a new table to a file of its own, maps it, and puts
+     * the entries given into it; then it closes the old table and renames
+     * the new file over it. If the rename fails, as it does on Windows while
+     * the new file is open, we keep using the new file and try again on
+     * close(). The new table is marked as not closed cleanly, as the old one
+     * was.
+     *
+     * If this fails, the old table is left as it was.
+     *
+     * @param newCapacity The number of slots wanted; a power of two.
+     * @param keys The keys of the entries to put in the table.
+     * @param owners The owner ids of the entries, plus one.
+     */
+    private void replaceTable(int newCapacity, long[] keys, int[] owners) throws IOException {
+        // if the table is still in the new file, we write this one to the
+        // old file's place, which should be free by now.
+        File newFile = tableFile.equals(path) ? new File(path.getPath() + ".new") : path;
+        long length = HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+        RandomAccessFile oldFile = file;
+        MappedByteBuffer oldBuffer = buffer;
+        int oldCapacity = capacity;
+
+        newFile.delete();
+        RandomAccessFile newTable = new RandomAccessFile(newFile, "rw");
+
+        try {
+            newTable.setLength(length);
+            buffer = newTable.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            capacity = newCapacity;
+
+            byte[] zeros = new byte[SLOT_SIZE * 256];
+            buffer.position(0);
+
+            while (buffer.hasRemaining()) {
+                buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+            }
+
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, FORMAT_VERSION);
+            buffer.putInt(CAPACITY_OFFSET, capacity);
+
+            for (int i = 0; i < keys.length; ++i) {
+                setSlot(-LinearProbing.findSlot(slots, keys[i]) - 1, keys[i], owners[i]);
+            }
+
+            setSize(keys.length);
+            setStamp(stamp);
+            buffer.force();
+        } catch (IOException e) {
+            buffer = oldBuffer;
+            capacity = oldCapacity;
+            newTable.close();
+            newFile.delete();
+            throw e;
+        }
+
+        File oldTableFile = tableFile;
+        file = newTable;
+        tableFile = newFile;
+
+        if (oldFile != null) {
+            oldFile.close();
+            unmap(oldBuffer);
+            oldTableFile.delete();
+        }
+
+        moveTableIntoPlace();
+    }
+
+    /**
+     * This method renames the table's file to the index's own name, if the
+     * table is in some other file.
+     */
+    private void moveTableIntoPlace() {
+        if (!tableFile.equals(path)) {
+            path.delete();
+
+            if (tableFile.renameTo(path)) {
+                tableFile = path;
+            }
+        }
+    }
+
+    /**
+     * This method closes the table's file and unmaps it; the table may not be
+     * used after this.
+     */
+    private void closeTable() throws IOException {
+        file.close();
+        unmap(buffer);
+        file = null;
+        buffer = null;
+    }
+
+    /**
+     * This method unmaps a buffer at once, rather than when it is collected;
+     * a file can't be deleted or renamed on Windows while it is mapped. This
+     * needs an internal API; if we can't get at it, we leave the buffer to
+     * the collector.
+     *
+     * @param buffer The buffer to unmap; it must not be used after this.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception e) {
+            // the buffer will be unmapped when it is collected.
+        }
+    }
+
+    private void setSize(int size) {
+        this.size = size;
+        buffer.putInt(SIZE_OFFSET, size);
+    }
+
+    private void setStamp(long stamp) {
+        this.stamp = stamp;
+        buffer.putLong(STAMP_OFFSET, stamp);
+    }
+
+    ////////////////////////////////
+    // Names
+    private static void addName(List<String> names, Map<String, Integer> ids, String name) {
+        ids.put(name, names.size());
+        names.add(name);
+    }
+
+    /**
+     * This method returns the id of a name, and gives it one if it has none.
+     *
+     * @param kind The kind of name, 'world' or 'player'.
+     * @param names The names of this kind, by id.
+     * @param ids The ids of each name of this kind.
+     * @param name The name whose id is wanted.
+     * @return The id of the name.
+     */
+    private int getOrAddId(String kind, List<String> names, Map<String, Integer> ids, String name) {
+        Integer id = ids.get(name);
+
+        if (id != null) {
+            return id;
+        }
+
+        try {
+            namesWriter.write(kind);
+            namesWriter.write('=');
+            namesWriter.write(MapFileMap.escape(name));
+            namesWriter.write('\n');
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        addName(names, ids, name);
+        return names.size() - 1;
+    }
+
+    ////////////////////////////////
+    // Keys
+    /**
+     * This method packs a chunk position into a key.
+     *
+     * @param position The chunk position to pack.
+     * @param addWorld True to give the chunk's world an id if it has none.
+     * @return The key, or -1 if the position can't be packed.
+     */
+    private long pack(ChunkPosition position, boolean addWorld) {
+        return pack(position.worldName, position.x, position.z, addWorld);
+    }
+
+    private long pack(String worldName, int chunkX, int chunkZ, boolean addWorld) {
+        long x = chunkX + COORDINATE_BIAS;
+        long z = chunkZ + COORDINATE_BIAS;
+
+        if (x < 0 || x >> COORDINATE_BITS != 0 || z < 0 || z >> COORDINATE_BITS != 0) {
+            return -1;
+        }
+
+        Integer worldId = worldIds.get(worldName);
+
+        if (worldId == null) {
+            if (!addWorld || worldNames.size() > MAXIMUM_WORLD_ID) {
+                return -1;
+            }
+
+            worldId = getOrAddId("world", worldNames, worldIds, worldName);
+        }
+
+        return ((long) worldId << (COORDINATE_BITS * 2)) | (x << COORDINATE_BITS) | z;
+    }
+
+    private ChunkPosition unpack(long key) {
+        int mask = (1 << COORDINATE_BITS) - 1;
+        int x = (int) (key >> COORDINATE_BITS) & mask;
+        int z = (int) key & mask;
+        String worldName = worldNames.get((int) (key >> (COORDINATE_BITS * 2)));
+        return new ChunkPosition(x - COORDINATE_BIAS, z - COORDINATE_BIAS, worldName);
+    }
+
+    ////////////////////////////////
+    // Slots
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private long getKey(int slot) {
+        return buffer.getLong(slotOffset(slot));
+    }
+
+    /**
+     * This method returns the owner id stored in a slot, plus one; zero means
+     * the slot is empty.
+     */
+    private int getOwner(int slot) {
+        return buffer.getInt(slotOffset(slot) + 8);
+    }
+
+    private void setSlot(int slot, long key, int owner) {
+        buffer.putLong(slotOffset(slot), key);
+        buffer.putInt(slotOffset(slot) + 8, owner);
+    }
+
+    private final LinearProbing.Slots slots = new LinearProbing.Slots() {
+        @Override
+        public int getCapacity() {
+            return capacity;
+        }
+
+        @Override
+        public boolean isEmpty(int slot) {
+            return getOwner(slot) == 0;
+        }
+
+        @Override
+        public long getKey(int slot) {
+            return HomeChunkOwnerIndex.this.getKey(slot);
+        }
+
+        @Override
+        public void moveSlot(int from, int to) {
+            setSlot(to, HomeChunkOwnerIndex.this.getKey(from), getOwner(from));
+        }
+
+        @Override
+        public void clearSlot(int slot) {
+            setSlot(slot, 0, 0);
+        }
+    };
+
+    /**
+     * This method doubles the size of the table, and puts each entry back.
+     */
+    private void grow() throws IOException {
+        long[] keys = new long[size];
+        int[] owners = new int[size];
+        int count = 0;
+
+        for (int slot = 0; slot < capacity; ++slot) {
+            if (getOwner(slot) != 0) {
+                keys[count] = getKey(slot);
+                owners[count] = getOwner(slot);
+                ++count;
+            }
+        }
+
+        replaceTable(capacity * 2, keys, owners);
+    }
+
+    ////////////////////////////////
+    // Map
+    /**
+     * This method returns the owner of the chunk at the co-ordinates given.
+     * Only a chunk kept in memory needs a ChunkPosition to look it up.
+     */
+    @Override
+    public String getOwner(String worldName, int x, int z) {
+        long packed = pack(worldName, x, z, false);
+
+        if (packed >= 0) {
+            int slot = LinearProbing.findSlot(slots, packed);
+
+            if (slot >= 0) {
+                return playerNames.get(getOwner(slot) - 1);
+            }
+        }
+
+        return unpackedOwners.isEmpty() ? null : unpackedOwners.get(new ChunkPosition(x, z, worldName));
+    }
+
+    @Override
+    public String get(Object key) {
+        if (!(key instanceof ChunkPosition)) {
+            return null;
+        }
+
+        ChunkPosition position = (ChunkPosition) key;
+        return getOwner(position.worldName, position.x, position.z);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String put(ChunkPosition position, String owner) {
+        Preconditions.checkNotNull(owner);
+
+        long packed = pack(position, true);
+
+        if (packed < 0 || unpackedOwners.containsKey(position)) {
+            return putUnpacked(position, owner);
+        }
+
+        int ownerId = getOrAddId("player", playerNames, playerIds, owner) + 1;
+        int slot = LinearProbing.findSlot(slots, packed);
+
+        if (slot >= 0) {
+            String previous = playerNames.get(getOwner(slot) - 1);
+            setSlot(slot, packed, ownerId);
+            setStamp(stamp - stampOf(previous, position.x, position.z) + stampOf(owner, position.x, position.z));
+            return previous;
+        }
+
+        if ((size + 1) * 2 > capacity) {
+            try {
+                grow();
+            } catch (IOException e) {
+                // the chunk must still be recorded, or the caller's change
+                // would be lost; we keep it in memory, and rebuild the index
+                // next time.
+                return putUnpacked(position, owner);
+            }
+
+            slot = LinearProbing.findSlot(slots, packed);
+        }
+
+        setSlot(-slot - 1, packed, ownerId);
+        setSize(size + 1);
+        setStamp(stamp + stampOf(owner, position.x, position.z));
+        return null;
+    }
+
+    /**
+     * This method records the owner of a chunk in memory, rather than in the
+     * table.
+     *
+     * @param position The chunk.
+     * @param owner The name of the chunk's owner.
+     * @return The chunk's previous owner, or null if it had none.
+     */
+    private String putUnpacked(ChunkPosition position, String owner) {
+        String previous = unpackedOwners.put(position, owner);
+
+        if (previous != null) {
+            stamp -= stampOf(previous, position.x, position.z);
+        }
+
+        stamp += stampOf(owner, position.x, position.z);
+        return previous;
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (!(key instanceof ChunkPosition)) {
+            return null;
+        }
+
+        ChunkPosition position = (ChunkPosition) key;
+        long packed = pack(position, false);
+
+        if (packed < 0 || unpackedOwners.containsKey(position)) {
+            String previous = unpackedOwners.remove(position);
+
+            if (previous != null) {
+                stamp -= stampOf(previous, position.x, position.z);
+            }
+
+            return previous;
+        }
+
+        int slot = LinearProbing.findSlot(slots, packed);
+
+        if (slot < 0) {
+            return null;
+        }
+
+        String previous = playerNames.get(getOwner(slot) - 1);
+        LinearProbing.removeSlot(slots, slot);
+        setSize(size - 1);
+        setStamp(stamp - stampOf(previous, position.x, position.z));
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        try {
+            reset();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size + unpackedOwners.size();
+    }
+
+    @Override
+    public Set<Map.Entry<ChunkPosition, String>> entrySet() {
+        return new AbstractSet<Map.Entry<ChunkPosition, String>>() {
+            @Override
+            public Iterator<Map.Entry<ChunkPosition, String>> iterator() {
+                Iterator<Map.Entry<ChunkPosition, String>> packed = new AbstractIterator<Map.Entry<ChunkPosition, String>>() {
+                    private int slot;
+
+                    @Override
+                    protected Map.Entry<ChunkPosition, String> computeNext() {
+                        for (; slot < capacity; ++slot) {
+                            int owner = getOwner(slot);
+
+                            if (owner != 0) {
+                                long key = getKey(slot++);
+                                return Maps.immutableEntry(unpack(key), playerNames.get(owner - 1));
+                            }
+                        }
+
+                        return endOfData();
+                    }
+                };
+
+                return Iterators.unmodifiableIterator(Iterators.concat(
+                        packed, unpackedOwners.entrySet().iterator()));
+            }
+
+            @Override
+            public int size() {
+                return HomeChunkOwnerIndex.this.size();
+            }
+        };
+    }
+}
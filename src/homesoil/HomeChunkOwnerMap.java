@@ -0,0 +1,227 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.util.*;
+
+/**
+ * HomeChunkOwnerMap keeps the owners of the home chunks of one world in
+ * memory; PlayerInfoMap uses one of these for each world when the owner
+ * indexes are not open.
+ *
+ * This is an open-addressing hash table with linear probing, like
+ * HomeChunkOwnerIndex and using the same LinearProbing code, but in plain
+ * arrays: each slot holds a chunk's X and Z co-ordinates packed into a long,
+ * and the id of its owner. Owner names are given ids as they are first seen,
+ * and a zero id marks an empty slot. The world is the same for every chunk,
+ * so it is not stored at all. Looking up an owner neither allocates nor boxes
+ * anything.
+ *
+ * This is used only on the main thread.
+ *
+ * @author DanJ
+ */
+final class HomeChunkOwnerMap extends AbstractMap<ChunkPosition, String> implements HomeChunkOwners {
+
+    private static final int MINIMUM_CAPACITY = 64;
+    private final String worldName;
+    private long[] keys = new long[MINIMUM_CAPACITY];
+    // the owner id in each slot, plus one; zero means the slot is empty.
+    private int[] owners = new int[MINIMUM_CAPACITY];
+    private int size;
+    private final List<String> ownerNames = Lists.newArrayList();
+    private final Map<String, Integer> ownerIds = Maps.newHashMap();
+
+    public HomeChunkOwnerMap(String worldName) {
+        this.worldName = Preconditions.checkNotNull(worldName);
+    }
+
+    ////////////////////////////////
+    // Slots
+    private static long pack(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private final LinearProbing.Slots slots = new LinearProbing.Slots() {
+        @Override
+        public int getCapacity() {
+            return keys.length;
+        }
+
+        @Override
+        public boolean isEmpty(int slot) {
+            return owners[slot] == 0;
+        }
+
+        @Override
+        public long getKey(int slot) {
+            return keys[slot];
+        }
+
+        @Override
+        public void moveSlot(int from, int to) {
+            keys[to] = keys[from];
+            owners[to] = owners[from];
+        }
+
+        @Override
+        public void clearSlot(int slot) {
+            keys[slot] = 0;
+            owners[slot] = 0;
+        }
+    };
+
+    /**
+     * This method doubles the size of the table, and puts each entry back.
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldOwners = owners;
+        keys = new long[oldKeys.length * 2];
+        owners = new int[oldOwners.length * 2];
+
+        for (int slot = 0; slot < oldKeys.length; ++slot) {
+            if (oldOwners[slot] != 0) {
+                int newSlot = -LinearProbing.findSlot(slots, oldKeys[slot]) - 1;
+                keys[newSlot] = oldKeys[slot];
+                owners[newSlot] = oldOwners[slot];
+            }
+        }
+    }
+
+    private int getOrAddOwnerId(String owner) {
+        Integer id = ownerIds.get(owner);
+
+        if (id == null) {
+            id = ownerNames.size();
+            ownerNames.add(owner);
+            ownerIds.put(owner, id);
+        }
+
+        return id;
+    }
+
+    ////////////////////////////////
+    // Map
+    @Override
+    public String getOwner(String worldName, int x, int z) {
+        if (!this.worldName.equals(worldName)) {
+            return null;
+        }
+
+        int slot = LinearProbing.findSlot(slots, pack(x, z));
+        return slot >= 0 ? ownerNames.get(owners[slot] - 1) : null;
+    }
+
+    @Override
+    public String get(Object key) {
+        if (key instanceof ChunkPosition) {
+            ChunkPosition position = (ChunkPosition) key;
+            return getOwner(position.worldName, position.x, position.z);
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String put(ChunkPosition position, String owner) {
+        Preconditions.checkNotNull(owner);
+        Preconditions.checkArgument(position.worldName.equals(worldName),
+                "The chunk %s is not in '%s'.", position, worldName);
+
+        long key = pack(position.x, position.z);
+        int ownerId = getOrAddOwnerId(owner) + 1;
+        int slot = LinearProbing.findSlot(slots, key);
+
+        if (slot >= 0) {
+            String previous = ownerNames.get(owners[slot] - 1);
+            owners[slot] = ownerId;
+            return previous;
+        }
+
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+            slot = LinearProbing.findSlot(slots, key);
+        }
+
+        keys[-slot - 1] = key;
+        owners[-slot - 1] = ownerId;
+        ++size;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        if (!(key instanceof ChunkPosition)) {
+            return null;
+        }
+
+        ChunkPosition position = (ChunkPosition) key;
+
+        if (!position.worldName.equals(worldName)) {
+            return null;
+        }
+
+        int slot = LinearProbing.findSlot(slots, pack(position.x, position.z));
+
+        if (slot < 0) {
+            return null;
+        }
+
+        String previous = ownerNames.get(owners[slot] - 1);
+        LinearProbing.removeSlot(slots, slot);
+        --size;
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        keys = new long[MINIMUM_CAPACITY];
+        owners = new int[MINIMUM_CAPACITY];
+        size = 0;
+        ownerNames.clear();
+        ownerIds.clear();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Map.Entry<ChunkPosition, String>> entrySet() {
+        return new AbstractSet<Map.Entry<ChunkPosition, String>>() {
+            @Override
+            public Iterator<Map.Entry<ChunkPosition, String>> iterator() {
+                return new AbstractIterator<Map.Entry<ChunkPosition, String>>() {
+                    private int slot;
+
+                    @Override
+                    protected Map.Entry<ChunkPosition, String> computeNext() {
+                        for (; slot < keys.length; ++slot) {
+                            int owner = owners[slot];
+
+                            if (owner != 0) {
+                                long key = keys[slot++];
+                                ChunkPosition position = new ChunkPosition((int) (key >> 32), (int) key, worldName);
+                                return Maps.immutableEntry(position, ownerNames.get(owner - 1));
+                            }
+                        }
+
+                        return endOfData();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,25 @@
+package homesoil;
+
+import java.util.*;
+
+/**
+ * HomeChunkOwners is a map from home chunks to the names of their owners
+ * that can also be searched by raw chunk co-ordinates, so that the caller
+ * need not create a ChunkPosition for each lookup; onPlayerMove() does this
+ * every time a player crosses into another chunk.
+ *
+ * @author DanJ
+ */
+interface HomeChunkOwners extends Map<ChunkPosition, String> {
+
+    /**
+     * This method returns the owner of the chunk at the co-ordinates given;
+     * it is the same as get(), but does not allocate anything.
+     *
+     * @param worldName The name of the world that contains the chunk.
+     * @param x The X co-ordinate of the chunk.
+     * @param z The Z co-ordinate of the chunk.
+     * @return The name of the owner, or null if the chunk has none.
+     */
+    String getOwner(String worldName, int x, int z);
+}
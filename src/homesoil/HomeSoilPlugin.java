@@ -1,14 +1,17 @@
 package homesoil;
 
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import org.bukkit.*;
 import org.bukkit.entity.*;
 import org.bukkit.event.*;
 import org.bukkit.event.entity.*;
 import org.bukkit.event.inventory.*;
 import org.bukkit.event.player.*;
+import org.bukkit.event.world.*;
 import org.bukkit.inventory.*;
 import org.bukkit.inventory.meta.*;
 import org.bukkit.plugin.java.*;
@@ -24,8 +27,30 @@ public class HomeSoilPlugin extends JavaPlugin implements Listener {
 
     private static final File playersFile = new File("HomeSoil.txt");
     private static final File regenFile = new File("HomeSoilDoom.txt");
+    private static final File journalFile = new File("HomeSoil.journal");
+    private static final File segmentsDirectory = new File("HomeSoil");
+    private static final File databaseFile = new File("HomeSoil.db");
+    private static final File worldsDirectory = new File("HomeSoilWorlds");
+    private static final File ownerIndexDirectory = new File("HomeSoilOwners");
+    private static final File backupsDirectory = new File("HomeSoilBackups");
+    private static final File ownershipLogFile = new File("HomeSoil.ownership");
     private final PlayerInfoMap playerInfos = new PlayerInfoMap();
     private final DoomSchedule doomSchedule = new DoomSchedule(this, regenFile);
+    private BackgroundSaver saver;
+    private PlayerInfoJournal journal;
+    private PlayerInfoStore store;
+    private MapFileMap.Format storageFormat = MapFileMap.Format.TEXT;
+    private ExecutorService parallelExecutor;
+    private ColdPlayerFile coldStorage;
+    private PlayerInfoBackups backups;
+    private OwnershipLog ownershipLog;
+    private long backupInterval;
+    private long nextBackupTime;
+    /**
+     * This is the number of ticks between compactions of the journal, when we
+     * rewrite the whole HomeSoil file; 6000 ticks is five minutes.
+     */
+    private final long compactionInterval = 6000;
 
     /**
      * This method provides access to the player info so we can move some logic
@@ -38,42 +63,337 @@ public class HomeSoilPlugin extends JavaPlugin implements Listener {
     }
 
     /**
-     * This method loads player data from the HomeSoil file.
+     * This method provides access to the saver, which writes files on a
+     * thread of its own; this is available only while the plugin is enabled.
+     *
+     * @return The BackgroundSaver for this plugin.
+     */
+    public BackgroundSaver getSaver() {
+        return saver;
+    }
+
+    /**
+     * This method provides access to the history of who owned which home
+     * chunks, and when.
+     *
+     * @return The history, or null if the 'ownership-log' setting is off.
+     */
+    public OwnershipHistory getOwnershipHistory() {
+        return ownershipLog != null ? ownershipLog.getHistory() : null;
+    }
+
+    /**
+     * This method loads player data from the store, and then applies the
+     * changes recorded in the journal since it was saved. After this, the
+     * journal records each change as it happens, as does the ownership log if
+     * it is enabled; the changes replayed are not logged a second time. The
+     * home chunk owners are worked out before the replay, which then updates
+     * them in place; the historical home chunks are worked out after it, on
+     * the saver thread.
+     *
+     * If the store had to convert the data from some other store or layout,
+     * we save it again at once.
      */
     private void load() {
         getLogger().info("Loading HomeSoil State");
 
-        if (playersFile.exists()) {
-            playerInfos.load(playersFile);
+        boolean converting = store.load(playerInfos);
+
+        if (getConfig().getBoolean("owner-index", true)) {
+            playerInfos.openHomeChunkOwnerIndexes(ownerIndexDirectory, store.getVersion());
+        } else {
+            playerInfos.buildHomeChunkOwners();
+        }
+
+        int replayed = journal.replay(playerInfos);
+
+        if (replayed > 0) {
+            getLogger().info(String.format("Replayed %d HomeSoil journal records", replayed));
+        }
+
+        // the first player to join needs these, so we get started on them
+        // now, off the main thread.
+        playerInfos.buildHistoricalHomeChunks(saver);
+        playerInfos.addChangeListener(journal);
+
+        if (getConfig().getBoolean("ownership-log", true)) {
+            ownershipLog = OwnershipLog.open(this, saver, ownershipLogFile);
+            playerInfos.addChangeListener(ownershipLog);
+        }
+
+        if (converting) {
+            getLogger().info("Converting HomeSoil State to the configured storage");
+            compact();
         }
     }
 
     /**
-     * This method saves any changes to the HomeSoil file; however this checks
-     * for changes and only saves if there might be some.
+     * This method saves the player data to the store if there are changes,
+     * and empties the journal that records them. The store is saved by the
+     * saver thread, so this returns before the save is complete.
      */
-    private void saveIfNeeded() {
+    private void compactIfNeeded() {
         if (playerInfos.shouldSave()) {
-            getLogger().info("Saving HomeSoil State");
-            playerInfos.save(playersFile);
+            getLogger().info(String.format("Saving HomeSoil State (%d players changed)",
+                    playerInfos.getPlayersChangedSinceSave().size()));
+            compact();
         }
     }
 
+    /**
+     * This method saves the player data to the store, and empties the
+     * journal. Once the store is saved, we record the stamps of the home
+     * chunk owner indexes with the store's new version, so the next start can
+     * check the indexes against those. If a backup is due, we back up the
+     * same snapshot.
+     */
+    private void compact() {
+        final Map<String, MapFileMap.Storable> snapshot = playerInfos.takeSaveSnapshot();
+        final Map<String, Long> ownerStamps = playerInfos.getHomeChunkOwnerStamps();
+
+        journal.compact(snapshot, new Runnable() {
+            @Override
+            public void run() {
+                PlayerInfoMap.writeHomeChunkOwnerStamps(ownerIndexDirectory, store.getVersion(), ownerStamps);
+            }
+        });
+
+        if (backups != null && System.currentTimeMillis() >= nextBackupTime) {
+            nextBackupTime = System.currentTimeMillis() + backupInterval;
+
+            saver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    backups.write(snapshot);
+                }
+            });
+        }
+    }
+
+    /**
+     * This method creates the backups, if the 'backup-interval-minutes'
+     * setting in the configuration is more than 0; if not, this returns null
+     * and we take no backups.
+     *
+     * @return The new backups, or null.
+     */
+    private PlayerInfoBackups createBackups() {
+        backupInterval = getConfig().getLong("backup-interval-minutes", 60) * 60000;
+
+        if (backupInterval <= 0) {
+            return null;
+        }
+
+        return new PlayerInfoBackups(
+                backupsDirectory,
+                storageFormat,
+                getConfig().getInt("backup-deltas-per-full", 24),
+                Math.max(1, getConfig().getInt("backup-fulls-kept", 7)));
+    }
+
+    /**
+     * This method starts evicting idle players to cold storage, if the
+     * 'evict-idle-minutes' setting in the configuration is more than 0. A
+     * player is evicted when he has been offline and unused for between one
+     * and two of these intervals.
+     */
+    private void startEviction() {
+        long interval = getConfig().getLong("evict-idle-minutes", 30) * 1200;
+
+        if (interval > 0) {
+            coldStorage = ColdPlayerFile.create();
+
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    evictIdlePlayers();
+                }
+            }.runTaskTimer(this, interval, interval);
+        }
+    }
+
+    /**
+     * This method evicts the players who are idle now. Their snapshots are
+     * written to cold storage on the saver thread, and the players are moved
+     * out of memory on the next tick after that; if the plugin is disabled
+     * first, they just stay in memory.
+     */
+    private void evictIdlePlayers() {
+        final Map<String, PlayerInfo> idlePlayers = playerInfos.takeIdlePlayers();
+
+        if (idlePlayers.isEmpty()) {
+            return;
+        }
+
+        final ColdPlayerFile cold = coldStorage;
+
+        saver.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, ColdPlayerFile.Entry> entries = Maps.newHashMap();
+
+                for (Map.Entry<String, PlayerInfo> e : idlePlayers.entrySet()) {
+                    entries.put(e.getKey(), cold.write(e.getValue()));
+                }
+
+                if (isEnabled()) {
+                    new BukkitRunnable() {
+                        @Override
+                        public void run() {
+                            int evicted = playerInfos.installEvictedPlayers(entries);
+
+                            if (evicted > 0) {
+                                getLogger().info(String.format("Evicted %d idle players to cold storage", evicted));
+                            }
+                        }
+                    }.runTask(HomeSoilPlugin.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * This method returns the format the HomeSoil and doom files are written
+     * in; this is read from the configuration when the plugin is enabled.
+     *
+     * @return The format to save files in.
+     */
+    public MapFileMap.Format getStorageFormat() {
+        return storageFormat;
+    }
+
+    /**
+     * This method reads the format the files should be written in from the
+     * 'storage-format' setting in the configuration. If that is not valid, we
+     * use the text format.
+     *
+     * @return The format to save files in.
+     */
+    private MapFileMap.Format readStorageFormat() {
+        String name = getConfig().getString("storage-format", "text");
+
+        try {
+            return MapFileMap.Format.parse(name);
+        } catch (IllegalArgumentException e) {
+            getLogger().warning(String.format("Unknown storage-format '%s'; using text.", name));
+            return MapFileMap.Format.TEXT;
+        }
+    }
+
+    /**
+     * This method creates the thread pool we use to parse and render the
+     * HomeSoil file; the 'parallel-threads' setting in the configuration says
+     * how many threads it has, and 0 means one for each processor. If there
+     * would be only one thread, this returns null, and we don't use a pool at
+     * all.
+     *
+     * @return The new executor, or null.
+     */
+    private ExecutorService createParallelExecutor() {
+        int threadCount = getConfig().getInt("parallel-threads", 0);
+
+        if (threadCount <= 0) {
+            threadCount = Runtime.getRuntime().availableProcessors();
+        }
+
+        if (threadCount <= 1) {
+            return null;
+        }
+
+        return Executors.newFixedThreadPool(threadCount,
+                new ThreadFactoryBuilder().
+                setNameFormat("HomeSoil Parallel %d").
+                setDaemon(true).
+                build());
+    }
+
+    /**
+     * This method creates the store that holds the player data; the 'storage'
+     * setting in the configuration says which kind. The file store uses a
+     * WorldPartitionedPlayerFile if the 'world-files' setting asks for one,
+     * or else a SegmentedPlayerFile if the 'segments' setting does.
+     *
+     * @return The new store.
+     */
+    private PlayerInfoStore createPlayerInfoStore() {
+        int segmentCount = getConfig().getInt("segments", 0);
+        SegmentedPlayerFile segments = segmentCount > 0
+                ? new SegmentedPlayerFile(segmentsDirectory, segmentCount, getStorageFormat())
+                : null;
+        WorldPartitionedPlayerFile worlds = getConfig().getBoolean("world-files", false)
+                ? new WorldPartitionedPlayerFile(worldsDirectory, getStorageFormat())
+                : null;
+
+        PlayerInfoStore fileStore = new FilePlayerInfoStore(
+                playersFile, segmentsDirectory, getStorageFormat(), segments,
+                worldsDirectory, worlds,
+                getConfig().getBoolean("lazy-load", false),
+                parallelExecutor);
+
+        String storage = getConfig().getString("storage", "file");
+
+        if (storage.equalsIgnoreCase("database")) {
+            return new DatabasePlayerInfoStore(databaseFile, fileStore);
+        } else if (!storage.equalsIgnoreCase("file")) {
+            getLogger().warning(String.format("Unknown storage '%s'; using file.", storage));
+        }
+
+        return fileStore;
+    }
+
     ////////////////////////////////
     // Event Handlers
     @Override
     public void onEnable() {
         super.onEnable();
 
+        saveDefaultConfig();
+        storageFormat = readStorageFormat();
+        parallelExecutor = createParallelExecutor();
+        saver = new BackgroundSaver(getLogger());
+        store = createPlayerInfoStore();
+        journal = new PlayerInfoJournal(this, saver, journalFile, store);
+        backups = createBackups();
         load();
         getServer().getPluginManager().registerEvents(this, this);
         doomSchedule.start();
+        startEviction();
+
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                compactIfNeeded();
+            }
+        }.runTaskTimer(this, compactionInterval, compactionInterval);
     }
 
     @Override
     public void onDisable() {
-        saveIfNeeded();
+        compactIfNeeded();
+        playerInfos.removeChangeListener(journal);
+        playerInfos.closeHomeChunkOwnerIndexes();
+        journal.close();
+
+        if (ownershipLog != null) {
+            playerInfos.removeChangeListener(ownershipLog);
+            ownershipLog.close();
+            ownershipLog = null;
+        }
+
         doomSchedule.stop();
+        saver.close();
+
+        if (parallelExecutor != null) {
+            parallelExecutor.shutdown();
+            parallelExecutor = null;
+        }
+
+        // the last save may have read evicted players from this, so we
+        // close it only once the saver is done.
+        if (coldStorage != null) {
+            coldStorage.close();
+            coldStorage = null;
+        }
 
         super.onDisable();
     }
@@ -102,8 +422,6 @@ public class HomeSoilPlugin extends JavaPlugin implements Listener {
                             directFlamingSnowball(projectile, victimPlayer);
                         }
                     }
-
-                    saveIfNeeded();
                 } else {
                     // anonymous snowballs can't steal chunks, but they can
                     // still fly towards one!
@@ -405,6 +723,28 @@ public class HomeSoilPlugin extends JavaPlugin implements Listener {
         }
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent e) {
+        // This runs on a thread of its own, before the player joins; we read
+        // his data now so the main thread need not do so when he does. We
+        // run last, so we know if any other plugin has refused the login.
+        if (e.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            playerInfos.prefetch(e.getName());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerLogin(PlayerLoginEvent e) {
+        if (e.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            playerInfos.discardPrefetched(e.getPlayer().getName());
+        }
+    }
+
+    @EventHandler
+    public void onPlayerQuit(PlayerQuitEvent e) {
+        playerInfos.discardPrefetched(e.getPlayer().getName());
+    }
+
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent e) {
         Player player = e.getPlayer();
@@ -417,8 +757,6 @@ public class HomeSoilPlugin extends JavaPlugin implements Listener {
                         name,
                         homeChunk));
             }
-
-            saveIfNeeded();
         }
 
         bestowSnowball(player);
@@ -432,19 +770,31 @@ public class HomeSoilPlugin extends JavaPlugin implements Listener {
         e.setRespawnLocation(playerInfos.getPlayerStart(player));
     }
 
+    @EventHandler
+    public void onWorldUnload(WorldUnloadEvent e) {
+        WorldRegistry.worldUnloaded(e.getWorld());
+    }
+
     @EventHandler
     public void onPlayerMove(PlayerMoveEvent e) {
         // We decided to keep this, but try to optimize by only checking
-        // when a player moves from chunk to chunk.
+        // when a player moves from chunk to chunk. We work out the chunks
+        // from the block co-ordinates, and look up their owners by those,
+        // so that nothing is allocated unless the owner changes.
 
-        if (e.getTo().getChunk() != e.getFrom().getChunk()) {
-            ChunkPosition fromChunk = ChunkPosition.of(e.getFrom());
-            ChunkPosition toChunk = ChunkPosition.of(e.getTo());
+        Location from = e.getFrom();
+        Location to = e.getTo();
+        int fromX = from.getBlockX() >> 4;
+        int fromZ = from.getBlockZ() >> 4;
+        int toX = to.getBlockX() >> 4;
+        int toZ = to.getBlockZ() >> 4;
 
-            String fromPlayerName = playerInfos.identifyChunkOwner(fromChunk);
-            String toPlayerName = playerInfos.identifyChunkOwner(toChunk);
+        if (fromX != toX || fromZ != toZ || from.getWorld() != to.getWorld()) {
+            String fromPlayerName = playerInfos.identifyChunkOwner(from.getWorld().getName(), fromX, fromZ);
+            String toPlayerName = playerInfos.identifyChunkOwner(to.getWorld().getName(), toX, toZ);
 
             if (!fromPlayerName.equals(toPlayerName)) {
+                ChunkPosition toChunk = new ChunkPosition(toX, toZ, to.getWorld());
                 Player player = e.getPlayer();
                 PlayerInfo playerInfo = playerInfos.get(player);
 
@@ -0,0 +1,636 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+/**
+ * HomeSoilTool is a command line program for inspecting and repairing the
+ * HomeSoil player data while the server is down. It needs the Bukkit API on
+ * the class path, but not a server; run it like this:
+ *
+ * java -cp HomeSoil.jar:bukkit.jar homesoil.HomeSoilTool stats HomeSoil.txt
+ *
+ * Each command takes a HomeSoil file in any format, or a directory of
+ * segment files or world files. The files are read one player at a time, and
+ * each player is written out before the next is read, so even very large
+ * files need little memory. The check that no chunk has two owners keeps the
+ * owners in a temporary HomeChunkOwnerIndex, which is on disk rather than in
+ * memory.
+ *
+ * World files are the exception: each holds only part of each player, so
+ * we must read them all and put the players together before we can visit
+ * any; this holds all the player data in memory, as the plugin does.
+ *
+ * The 'owner' and 'territory' commands read the ownership log,
+ * HomeSoil.ownership, instead; they load the whole log.
+ *
+ * @author DanJ
+ */
+public final class HomeSoilTool {
+
+    private static final String USAGE = Joiner.on(MapFileMap.NEW_LINE).join(
+            "Usage: homesoil.HomeSoilTool <command> <arguments>",
+            "  stats <input>                          Counts players and chunks.",
+            "  validate <input>                       Checks the player data for errors.",
+            "  convert <input> <output> <format>      Rewrites the player data in another format.",
+            "  compact <input> <output> [format]      Rewrites the player data, fixing errors.",
+            "  restore <backups> <time> <output> [format]",
+            "                                         Rebuilds the player data from backups.",
+            "  owner <log> <world> <x> <z> [time]     Tells who owned a chunk, from the ownership log.",
+            "  territory <log> <player> [from] [to]   Lists the chunks a player gained and lost.",
+            "The input may be a file, or a directory of segment files or world files. The formats are",
+            "text, binary, compressed-text and compressed-binary; compact keeps the format",
+            "of the input by default, and restore writes text. The time is 'latest', or",
+            "a time like '2013-06-30 18:00'; x and z are chunk coordinates.");
+
+    private HomeSoilTool() {
+    }
+
+    public static void main(String[] args) {
+        int status;
+
+        try {
+            status = run(Arrays.asList(args), System.out);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            status = 2;
+        }
+
+        System.exit(status);
+    }
+
+    /**
+     * This method carries out a command.
+     *
+     * @param args The command and its arguments.
+     * @param out The stream to report to.
+     * @return The exit status; 0 if all went well, 1 if problems were found.
+     * @throws IllegalArgumentException If the arguments are not valid.
+     */
+    static int run(List<String> args, PrintStream out) {
+        Preconditions.checkArgument(!args.isEmpty(), "No command was given.");
+
+        String command = args.get(0);
+        List<String> arguments = args.subList(1, args.size());
+
+        if (command.equals("stats")) {
+            checkArgumentCount(arguments, 1, 1);
+            stats(getInputFiles(arguments.get(0)), out);
+            return 0;
+        } else if (command.equals("validate")) {
+            checkArgumentCount(arguments, 1, 1);
+            return validate(getInputFiles(arguments.get(0)), out) ? 0 : 1;
+        } else if (command.equals("convert")) {
+            checkArgumentCount(arguments, 3, 3);
+            List<File> inputFiles = getInputFiles(arguments.get(0));
+            rewrite(inputFiles, new File(arguments.get(1)), parseFormat(arguments.get(2)), false, out);
+            return 0;
+        } else if (command.equals("compact")) {
+            checkArgumentCount(arguments, 2, 3);
+            List<File> inputFiles = getInputFiles(arguments.get(0));
+            MapFileMap.Format format = arguments.size() > 2
+                    ? parseFormat(arguments.get(2))
+                    : MapFileMap.getFormat(inputFiles.get(0));
+            rewrite(inputFiles, new File(arguments.get(1)), format, true, out);
+            return 0;
+        } else if (command.equals("restore")) {
+            checkArgumentCount(arguments, 3, 4);
+            MapFileMap.Format format = arguments.size() > 3
+                    ? parseFormat(arguments.get(3))
+                    : MapFileMap.Format.TEXT;
+            restore(new File(arguments.get(0)), parseTime(arguments.get(1)), new File(arguments.get(2)), format, out);
+            return 0;
+        } else if (command.equals("owner")) {
+            checkArgumentCount(arguments, 4, 5);
+            ChunkPosition chunk = new ChunkPosition(
+                    parseCoordinate(arguments.get(2)),
+                    parseCoordinate(arguments.get(3)),
+                    arguments.get(1));
+            long time = arguments.size() > 4 ? parseTime(arguments.get(4)) : Long.MAX_VALUE;
+            owner(readOwnershipHistory(arguments.get(0)), chunk, time, out);
+            return 0;
+        } else if (command.equals("territory")) {
+            checkArgumentCount(arguments, 2, 4);
+            long from = arguments.size() > 2 ? parseTime(arguments.get(2)) : Long.MIN_VALUE;
+            long to = arguments.size() > 3 ? parseTime(arguments.get(3)) : Long.MAX_VALUE;
+            territory(readOwnershipHistory(arguments.get(0)), arguments.get(1), from, to, out);
+            return 0;
+        } else {
+            throw new IllegalArgumentException(String.format("'%s' is not a command.", command));
+        }
+    }
+
+    ////////////////////////////////
+    // Commands
+    /**
+     * This method reports how many players and chunks the player data holds.
+     *
+     * @param inputFiles The files to read.
+     * @param out The stream to report to.
+     */
+    private static void stats(List<File> inputFiles, PrintStream out) {
+        final Map<String, Integer> homeChunksByWorld = Maps.newTreeMap();
+        final long[] counts = new long[5];
+
+        forEachPlayer(inputFiles, new MapFileMap.EntryVisitor<RawPlayerInfo>() {
+            @Override
+            public void visit(String playerName, RawPlayerInfo info) {
+                counts[0]++;
+                counts[1] += info.homeChunks.size();
+                counts[2] = Math.max(counts[2], info.homeChunks.size());
+                counts[3] += info.historicalHomeChunks.size();
+                counts[4] += info.getDuplicateHistoricalHomeChunkCount();
+
+                for (ChunkPosition homeChunk : info.homeChunks) {
+                    Integer count = homeChunksByWorld.get(homeChunk.worldName);
+                    homeChunksByWorld.put(homeChunk.worldName, count != null ? count + 1 : 1);
+                }
+            }
+        });
+
+        long size = 0;
+
+        for (File file : inputFiles) {
+            size += file.length();
+        }
+
+        out.println(String.format("Files: %d (%d bytes, %s)",
+                inputFiles.size(), size, MapFileMap.getFormat(inputFiles.get(0))));
+        out.println(String.format("Players: %d", counts[0]));
+        out.println(String.format("Home chunks: %d (at most %d for one player)", counts[1], counts[2]));
+        out.println(String.format("Historical home chunk entries: %d (%d duplicates)", counts[3], counts[4]));
+
+        for (Map.Entry<String, Integer> e : homeChunksByWorld.entrySet()) {
+            out.println(String.format("Home chunks in '%s': %d", e.getKey(), e.getValue()));
+        }
+    }
+
+    /**
+     * This method checks that each player's home chunks are among his
+     * historical home chunks, that he does not have the same home chunk
+     * twice, and that no chunk is the home of two players. Each problem found
+     * is reported.
+     *
+     * @param inputFiles The files to read.
+     * @param out The stream to report to.
+     * @return True if there were no problems.
+     */
+    private static boolean validate(final List<File> inputFiles, final PrintStream out) {
+        final int[] counts = new int[2];
+
+        withTemporaryOwnerIndex(new Function<HomeChunkOwnerIndex, Void>() {
+            @Override
+            public Void apply(final HomeChunkOwnerIndex owners) {
+                forEachPlayer(inputFiles, new MapFileMap.EntryVisitor<RawPlayerInfo>() {
+                    @Override
+                    public void visit(String playerName, RawPlayerInfo info) {
+                        Set<ChunkPosition> historicalHomeChunks = Sets.newHashSet(info.historicalHomeChunks);
+                        Set<ChunkPosition> homeChunks = Sets.newHashSet();
+                        counts[0]++;
+
+                        for (ChunkPosition homeChunk : info.homeChunks) {
+                            if (!homeChunks.add(homeChunk)) {
+                                out.println(String.format("'%s' has the home chunk (%s) more than once.", playerName, homeChunk));
+                                counts[1]++;
+                                continue;
+                            }
+
+                            if (!historicalHomeChunks.contains(homeChunk)) {
+                                out.println(String.format("'%s' has the home chunk (%s), but it is not one of his historical home chunks.", playerName, homeChunk));
+                                counts[1]++;
+                            }
+
+                            String previousOwner = owners.put(homeChunk, playerName);
+
+                            if (previousOwner != null) {
+                                out.println(String.format("The chunk (%s) is the home chunk of both '%s' and '%s'.", homeChunk, previousOwner, playerName));
+                                counts[1]++;
+                            }
+                        }
+                    }
+                });
+
+                return null;
+            }
+        });
+
+        out.println(String.format("%d problems found among %d players.", counts[1], counts[0]));
+        return counts[1] == 0;
+    }
+
+    /**
+     * This method copies the player data to a new file, a player at a time.
+     * Duplicate historical home chunks are always dropped, since PlayerInfo
+     * keeps these in a set. If we are to repair the data, we also drop
+     * duplicate home chunks, and add any home chunk that is not a historical
+     * home chunk to those.
+     *
+     * The output may be the input file itself; we write a temporary file and
+     * replace the input only once it has been read.
+     *
+     * @param inputFiles The files to read.
+     * @param outputFile The file to write.
+     * @param format The format to write.
+     * @param repair True to repair the data as we copy it.
+     * @param out The stream to report to.
+     */
+    private static void rewrite(List<File> inputFiles, File outputFile, MapFileMap.Format format, final boolean repair, PrintStream out) {
+        final int[] counts = new int[4];
+        final MapFileMap.EntryWriter writer = MapFileMap.openEntryWriter(outputFile, format, countPlayers(inputFiles));
+
+        try {
+            forEachPlayer(inputFiles, new MapFileMap.EntryVisitor<RawPlayerInfo>() {
+                @Override
+                public void visit(String playerName, RawPlayerInfo info) {
+                    Collection<ChunkPosition> homeChunks = info.homeChunks;
+                    Set<ChunkPosition> historicalHomeChunks = Sets.newHashSet(info.historicalHomeChunks);
+                    counts[1] += info.getDuplicateHistoricalHomeChunkCount();
+
+                    if (repair) {
+                        homeChunks = Sets.newLinkedHashSet(info.homeChunks);
+                        counts[2] += info.homeChunks.size() - homeChunks.size();
+
+                        for (ChunkPosition homeChunk : homeChunks) {
+                            if (historicalHomeChunks.add(homeChunk)) {
+                                counts[3]++;
+                            }
+                        }
+                    }
+
+                    try {
+                        writer.write(playerName, new PlayerInfo(homeChunks, historicalHomeChunks));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+
+                    counts[0]++;
+                }
+            });
+
+            writer.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        out.println(String.format("Wrote %d players to '%s' (%s).", counts[0], outputFile, format));
+        out.println(String.format("Dropped %d duplicate historical home chunks.", counts[1]));
+
+        if (repair) {
+            out.println(String.format("Dropped %d duplicate home chunks.", counts[2]));
+            out.println(String.format("Added %d home chunks to the historical home chunks.", counts[3]));
+        }
+    }
+
+    /**
+     * This method rebuilds the player data as of a time, from the backups
+     * PlayerInfoBackups wrote. Unlike the other commands, this holds all the
+     * player data in memory.
+     *
+     * @param backupsDirectory The directory that holds the backups.
+     * @param time The time wanted.
+     * @param outputFile The file to write.
+     * @param format The format to write.
+     * @param out The stream to report to.
+     */
+    private static void restore(File backupsDirectory, long time, File outputFile, MapFileMap.Format format, PrintStream out) {
+        Map<String, PlayerInfo> infos = PlayerInfoBackups.restore(backupsDirectory, time);
+        MapFileMap.write(outputFile, infos, format);
+        out.println(String.format("Wrote %d players to '%s' (%s).", infos.size(), outputFile, format));
+    }
+
+    /**
+     * This method reports who owned a chunk at a time, and lists every change
+     * of its owner up to then.
+     *
+     * @param history The history from the ownership log.
+     * @param chunk The chunk in question.
+     * @param time The time wanted.
+     * @param out The stream to report to.
+     */
+    private static void owner(OwnershipHistory history, ChunkPosition chunk, long time, PrintStream out) {
+        for (OwnershipHistory.Event event : history.getEventsFor(chunk)) {
+            if (event.time <= time) {
+                out.println(event);
+            }
+        }
+
+        String owner = history.getOwnerAt(chunk, time);
+        out.println(owner != null
+                ? String.format("(%s) was owned by %s.", chunk, owner)
+                : String.format("(%s) was not owned by anyone we know of.", chunk));
+    }
+
+    /**
+     * This method lists the home chunks a player gained and lost between two
+     * times, and the ones he held at the end.
+     *
+     * @param history The history from the ownership log.
+     * @param playerName The player in question.
+     * @param from The earliest time wanted.
+     * @param to The latest time wanted.
+     * @param out The stream to report to.
+     */
+    private static void territory(OwnershipHistory history, String playerName, long from, long to, PrintStream out) {
+        Set<ChunkPosition> held = Sets.newLinkedHashSet();
+
+        for (OwnershipHistory.Event event : history.getEventsFor(playerName, Long.MIN_VALUE, to)) {
+            if (event.time >= from) {
+                out.println(event);
+            }
+
+            if (event.gained) {
+                held.add(event.chunk);
+            } else {
+                held.remove(event.chunk);
+            }
+        }
+
+        out.println(String.format("%s held %d home chunks: %s", playerName, held.size(), held));
+    }
+
+    ////////////////////////////////
+    // Reading
+    /**
+     * This method reads the player data, and passes each player to the
+     * visitor as he is read.
+     *
+     * @param inputFiles The files to read.
+     * @param visitor The visitor to receive each player.
+     */
+    private static void forEachPlayer(List<File> inputFiles, MapFileMap.EntryVisitor<RawPlayerInfo> visitor) {
+        if (isWorldFiles(inputFiles)) {
+            Map<String, PlayerInfo> infos = WorldPartitionedPlayerFile.load(inputFiles);
+
+            for (Map.Entry<String, PlayerInfo> e : new TreeMap<String, PlayerInfo>(infos).entrySet()) {
+                RawPlayerInfo info = new RawPlayerInfo();
+                info.homeChunks.addAll(e.getValue().getHomeChunks());
+                info.historicalHomeChunks.addAll(e.getValue().getHistoricalHomeChunks());
+                visitor.visit(e.getKey(), info);
+            }
+
+            return;
+        }
+
+        for (File file : inputFiles) {
+            MapFileMap.read(file, RawPlayerInfo.class, visitor);
+        }
+    }
+
+    /**
+     * This method counts the players in the player data; this reads the files
+     * through, but does not decode the players.
+     *
+     * @param inputFiles The files to read.
+     * @return The number of players.
+     */
+    private static int countPlayers(List<File> inputFiles) {
+        if (isWorldFiles(inputFiles)) {
+            // a player may appear in many world files, but is one player.
+            final Set<String> playerNames = Sets.newHashSet();
+
+            for (File file : inputFiles) {
+                MapFileMap.read(file, SkippedEntry.class, new MapFileMap.EntryVisitor<SkippedEntry>() {
+                    @Override
+                    public void visit(String key, SkippedEntry value) {
+                        playerNames.add(key);
+                    }
+                });
+            }
+
+            return playerNames.size();
+        }
+
+        final int[] count = new int[1];
+
+        for (File file : inputFiles) {
+            MapFileMap.read(file, SkippedEntry.class, new MapFileMap.EntryVisitor<SkippedEntry>() {
+                @Override
+                public void visit(String key, SkippedEntry value) {
+                    count[0]++;
+                }
+            });
+        }
+
+        return count[0];
+    }
+
+    /**
+     * This method runs some code with a new, empty HomeChunkOwnerIndex in a
+     * temporary file; the files are deleted afterwards.
+     *
+     * @param action The code to run.
+     */
+    private static void withTemporaryOwnerIndex(Function<HomeChunkOwnerIndex, Void> action) {
+        try {
+            File indexFile = File.createTempFile("HomeSoil", ".owners");
+            File namesFile = new File(indexFile.getPath() + ".names");
+
+            try {
+                HomeChunkOwnerIndex index = HomeChunkOwnerIndex.open(indexFile);
+
+                try {
+                    action.apply(index);
+                } finally {
+                    index.close();
+                }
+            } finally {
+                indexFile.delete();
+                namesFile.delete();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This class holds a player's data just as it is in the file; unlike
+     * PlayerInfo, it keeps any duplicate chunks, so we can find them.
+     */
+    private static final class RawPlayerInfo implements MapFileMap.Storable {
+
+        public final List<ChunkPosition> homeChunks = Lists.newArrayList();
+        public final List<ChunkPosition> historicalHomeChunks = Lists.newArrayList();
+
+        public int getDuplicateHistoricalHomeChunkCount() {
+            return historicalHomeChunks.size() - Sets.newHashSet(historicalHomeChunks).size();
+        }
+
+        @Override
+        public Map<?, ?> toMap() {
+            Map<String, Object> map = Maps.newHashMap();
+            map.put("homes", homeChunks);
+            map.put("historicalHomes", historicalHomeChunks);
+            return map;
+        }
+        public static final MapFileMap.Decoder<RawPlayerInfo> DECODER = new MapFileMap.Decoder<RawPlayerInfo>() {
+            @Override
+            public RawPlayerInfo decode(MapFileReader reader) throws IOException {
+                RawPlayerInfo info = new RawPlayerInfo();
+
+                while (reader.nextEntry()) {
+                    String key = reader.getKey();
+
+                    if (!reader.isMap()) {
+                        continue;
+                    } else if (key.equals("homes")) {
+                        decodeChunks(reader, info.homeChunks);
+                    } else if (key.equals("historicalHomes")) {
+                        decodeChunks(reader, info.historicalHomeChunks);
+                    } else if (key.equals("history")) {
+                        ChunkPositionSet history = new ChunkPositionSet();
+                        PlayerInfo.decodeHistory(reader, history);
+                        info.historicalHomeChunks.addAll(history);
+                    } else {
+                        reader.skipMap();
+                    }
+                }
+
+                return info;
+            }
+
+            private void decodeChunks(MapFileReader reader, Collection<ChunkPosition> destination) throws IOException {
+                while (reader.nextEntry()) {
+                    destination.add(MapFileMap.decodeValue(reader, ChunkPosition.class));
+                }
+            }
+        };
+    }
+
+    /**
+     * This class stands for an entry we want only to count; its decoder skips
+     * the entry without building anything.
+     */
+    private static final class SkippedEntry implements MapFileMap.Storable {
+
+        private static final SkippedEntry INSTANCE = new SkippedEntry();
+
+        @Override
+        public Map<?, ?> toMap() {
+            return ImmutableMap.of();
+        }
+        public static final MapFileMap.Decoder<SkippedEntry> DECODER = new MapFileMap.Decoder<SkippedEntry>() {
+            @Override
+            public SkippedEntry decode(MapFileReader reader) throws IOException {
+                reader.skipMap();
+                return INSTANCE;
+            }
+        };
+    }
+
+    static {
+        MapFileMap.registerDecoder(RawPlayerInfo.class, RawPlayerInfo.DECODER);
+        MapFileMap.registerDecoder(SkippedEntry.class, SkippedEntry.DECODER);
+    }
+
+    /**
+     * This method reads the ownership log.
+     *
+     * @param input The log file, as given.
+     * @return The history the log contains.
+     * @throws IllegalArgumentException If there is no such file.
+     */
+    private static OwnershipHistory readOwnershipHistory(String input) {
+        File file = new File(input);
+        Preconditions.checkArgument(file.isFile(), "'%s' does not exist.", file);
+
+        try {
+            return OwnershipHistory.read(file);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    ////////////////////////////////
+    // Arguments
+    private static void checkArgumentCount(List<String> arguments, int min, int max) {
+        Preconditions.checkArgument(arguments.size() >= min && arguments.size() <= max,
+                "Wrong number of arguments.");
+    }
+
+    /**
+     * This method finds the files to read for an input argument; this is the
+     * file itself, or if it's a directory, the segment files in it, or failing
+     * those the world files.
+     *
+     * @param input The input argument.
+     * @return The files to read; never empty.
+     * @throws IllegalArgumentException If there are no such files.
+     */
+    private static List<File> getInputFiles(String input) {
+        File file = new File(input);
+
+        if (file.isDirectory()) {
+            List<File> files = SegmentedPlayerFile.listFiles(file);
+
+            if (files.isEmpty()) {
+                files = WorldPartitionedPlayerFile.listFiles(file);
+            }
+
+            Preconditions.checkArgument(!files.isEmpty(), "There are no segment files or world files in '%s'.", file);
+            return files;
+        }
+
+        Preconditions.checkArgument(file.isFile(), "'%s' does not exist.", file);
+        return Collections.singletonList(file);
+    }
+
+    /**
+     * This method checks whether the files to read are world files, which
+     * must be read together; segment file names would match too, so we rule
+     * those out first.
+     *
+     * @param inputFiles The files to read.
+     * @return True if they are world files.
+     */
+    private static boolean isWorldFiles(List<File> inputFiles) {
+        File file = inputFiles.get(0);
+        return !SegmentedPlayerFile.isSegmentFile(file) && WorldPartitionedPlayerFile.isWorldFile(file);
+    }
+
+    private static MapFileMap.Format parseFormat(String name) {
+        try {
+            return MapFileMap.Format.parse(name);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("'%s' is not a format.", name));
+        }
+    }
+
+    private static int parseCoordinate(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("'%s' is not a chunk coordinate.", text));
+        }
+    }
+
+    /**
+     * This method parses a time given as an argument; this may be 'latest',
+     * or a local date and time, to the minute or second.
+     *
+     * @param text The time as given.
+     * @return The time in milliseconds since 1970.
+     */
+    private static long parseTime(String text) {
+        if (text.equals("latest")) {
+            return Long.MAX_VALUE;
+        }
+
+        for (String pattern : new String[]{"yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd"}) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ENGLISH);
+            format.setLenient(false);
+
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(text, position);
+
+            if (date != null && position.getIndex() == text.length()) {
+                return date.getTime();
+            }
+        }
+
+        throw new IllegalArgumentException(String.format("'%s' is not a time.", text));
+    }
+}
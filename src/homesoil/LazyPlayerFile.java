@@ -0,0 +1,415 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.io.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * LazyPlayerFile gives access to the players in a text HomeSoil file without
+ * parsing them all up front. We memory-map the file and scan it once to find
+ * where each player's entry is; the PlayerInfo itself is parsed only when
+ * someone asks for it.
+ *
+ * The scan does parse each player's current home chunks, since we need those
+ * for the chunk owner index anyway; it's the historical home chunks that take
+ * up most of the file, and those we skip.
+ *
+ * We map a temporary copy of the file rather than the file itself; this way
+ * we can still replace the real file when we save, even on systems that won't
+ * let you replace a file that is mapped. close() deletes the copy. The copy
+ * is mapped in windows of a gigabyte, since a single mapping can't be larger
+ * than 2GB.
+ *
+ * This does not make startup independent of the size of the file. There is
+ * no side section of home chunks to read instead, so every start still
+ * copies the whole file and scans every line of it. What we save is the
+ * parsing, and the memory for the PlayerInfos of players who never come
+ * back.
+ *
+ * @author DanJ
+ */
+final class LazyPlayerFile implements Closeable {
+
+    private static final int WINDOW_BITS = 30;
+    private static final long WINDOW_MASK = (1L << WINDOW_BITS) - 1;
+    private final File copy;
+    private final ByteBuffer[] windows;
+    private final long length;
+    private final Map<String, Entry> entries = Maps.newHashMap();
+
+    private LazyPlayerFile(File copy, ByteBuffer[] windows, long length) {
+        this.copy = copy;
+        this.windows = windows;
+        this.length = length;
+    }
+
+    /**
+     * This method maps the file given and indexes its entries. This works
+     * only with the uncompressed text format; if the file is binary or
+     * compressed this returns null, and the caller must read it the ordinary
+     * way.
+     *
+     * @param file The player file to open.
+     * @return The new LazyPlayerFile, or null if the file is not plain text.
+     */
+    public static LazyPlayerFile openOrNull(File file) {
+        try {
+            if (!isPlainText(file)) {
+                return null;
+            }
+
+            File copy = File.createTempFile("HomeSoil", ".lazy");
+
+            try {
+                Files.copy(file, copy);
+                LazyPlayerFile lazy = map(copy);
+                lazy.scan();
+                return lazy;
+            } catch (IOException e) {
+                copy.delete();
+                throw e;
+            } catch (RuntimeException e) {
+                copy.delete();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method maps a file, a window at a time.
+     *
+     * @param copy The file to map.
+     * @return The new LazyPlayerFile, not yet scanned.
+     */
+    private static LazyPlayerFile map(File copy) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(copy, "r");
+
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            ByteBuffer[] windows = new ByteBuffer[(int) ((size + WINDOW_MASK) >>> WINDOW_BITS)];
+
+            for (int index = 0; index < windows.length; ++index) {
+                long start = (long) index << WINDOW_BITS;
+                windows[index] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, WINDOW_MASK + 1));
+            }
+
+            return new LazyPlayerFile(copy, windows, size);
+        } finally {
+            // the mapping remains valid after we close the file.
+            raf.close();
+        }
+    }
+
+    /**
+     * This method deletes the copy of the file. The entries can still be
+     * read afterwards, since the mapping outlives the file; if the system
+     * won't delete a mapped file, we leave it to be deleted when we exit.
+     */
+    @Override
+    public void close() {
+        if (!copy.delete()) {
+            copy.deleteOnExit();
+        }
+    }
+
+    /**
+     * This method checks the header of a file to see if it is in the plain
+     * text format, rather than binary or compressed.
+     *
+     * @param file The file to check.
+     * @return True if the file is plain text.
+     */
+    private static boolean isPlainText(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+
+        try {
+            byte[] header = new byte[BinaryMapFile.MAGIC.length];
+            int length = ByteStreams.read(in, header, 0, header.length);
+            return !BinaryMapFile.isBinaryHeader(header, length)
+                    && !MapFileMap.isCompressedHeader(header, length);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * This method returns a map containing each entry in the file, keyed by
+     * player name. The map can be modified; PlayerInfoMap removes each entry
+     * from it once the entry has been parsed.
+     *
+     * @return The entries of the file.
+     */
+    public Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    ////////////////////////////////
+    // Scanning
+    /**
+     * This method reads through the whole file a line at a time, keeping
+     * track of how deeply nested in maps we are. It records where each top
+     * level map starts and ends, and parses the 'homes' inside each of these;
+     * it also records where the historical home chunks are, but does not
+     * parse them. Other lines are just skipped; we don't even decode them.
+     */
+    private void scan() {
+        long limit = length;
+        int depth = 0;
+        String name = null;
+        long entryStart = 0;
+        String sectionKey = null;
+        long sectionStart = -1;
+        long homesStart = -1;
+        long homesEnd = -1;
+        long historyStart = -1;
+        long historyEnd = -1;
+
+        long lineStart = 0;
+        while (lineStart < limit) {
+            long lineEnd = lineStart;
+            while (lineEnd < limit && get(lineEnd) != '\n') {
+                ++lineEnd;
+            }
+
+            long nextLine = Math.min(limit, lineEnd + 1);
+
+            if (isCloseLine(lineStart, lineEnd)) {
+                --depth;
+
+                if (depth == 0 && name != null) {
+                    entries.put(name, new Entry(entryStart, lineStart, homesStart, homesEnd, historyStart, historyEnd));
+                    name = null;
+                } else if (depth == 1 && sectionKey != null) {
+                    if (sectionKey.equals("homes")) {
+                        homesStart = sectionStart;
+                        homesEnd = nextLine;
+                    } else if (sectionKey.equals("history") || sectionKey.equals("historicalHomes")) {
+                        historyStart = sectionStart;
+                        historyEnd = nextLine;
+                    }
+
+                    sectionKey = null;
+                }
+            } else {
+                long split = findOpenLineSplit(lineStart, lineEnd);
+
+                if (split >= 0) {
+                    if (depth == 0) {
+                        name = MapFileMap.unescape(decode(lineStart, split));
+                        entryStart = nextLine;
+                        homesStart = -1;
+                        homesEnd = -1;
+                        historyStart = -1;
+                        historyEnd = -1;
+                    } else if (depth == 1) {
+                        sectionKey = decode(lineStart, split);
+                        sectionStart = lineStart;
+                    }
+
+                    ++depth;
+                }
+            }
+
+            lineStart = nextLine;
+        }
+    }
+
+    /**
+     * This method checks whether a line is the ']' that ends a map.
+     *
+     * @param start The offset of the first byte of the line.
+     * @param end The offset just past the last byte of the line.
+     * @return True if the line closes a map.
+     */
+    private boolean isCloseLine(long start, long end) {
+        boolean found = false;
+
+        for (long i = start; i < end; ++i) {
+            byte b = get(i);
+
+            if (b == ']' && !found) {
+                found = true;
+            } else if (b > ' ') {
+                return false;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * This method checks whether a line starts a nested map, which is so if
+     * the value part (after the first '=') is just '['. Keys can't contain an
+     * '=', since it is escaped.
+     *
+     * @param start The offset of the first byte of the line.
+     * @param end The offset just past the last byte of the line.
+     * @return The offset of the '=', or -1 if this line does not start a map.
+     */
+    private long findOpenLineSplit(long start, long end) {
+        long split = start;
+        while (split < end && get(split) != '=') {
+            ++split;
+        }
+
+        if (split >= end) {
+            return -1;
+        }
+
+        boolean found = false;
+
+        for (long i = split + 1; i < end; ++i) {
+            byte b = get(i);
+
+            if (b == '[' && !found) {
+                found = true;
+            } else if (b > ' ') {
+                return -1;
+            }
+        }
+
+        return found ? split : -1;
+    }
+
+    /**
+     * This method reads one byte of the file.
+     *
+     * @param offset The offset of the byte.
+     * @return The byte.
+     */
+    private byte get(long offset) {
+        return windows[(int) (offset >>> WINDOW_BITS)].get((int) (offset & WINDOW_MASK));
+    }
+
+    /**
+     * This method decodes part of the file as UTF8 text; the part may span
+     * windows. This works on duplicates of the buffers, so it is safe to call
+     * from any thread.
+     *
+     * @param start The offset of the first byte to decode.
+     * @param end The offset just past the last byte to decode.
+     * @return The text decoded.
+     */
+    private String decode(long start, long end) {
+        byte[] bytes = new byte[(int) (end - start)];
+        int copied = 0;
+
+        while (copied < bytes.length) {
+            long offset = start + copied;
+            ByteBuffer window = windows[(int) (offset >>> WINDOW_BITS)].duplicate();
+            window.position((int) (offset & WINDOW_MASK));
+
+            int count = Math.min(bytes.length - copied, window.remaining());
+            window.get(bytes, copied, count);
+            copied += count;
+        }
+
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    /**
+     * This method decodes part of the file, and splits it into lines as
+     * MapFileMap does when it reads a file, so that a '\r' before each
+     * '\n' is not left on the line.
+     *
+     * @param start The offset of the first byte to decode.
+     * @param end The offset just past the last byte to decode.
+     * @return An iterator of the lines.
+     */
+    private Iterator<String> decodeLines(long start, long end) {
+        return MapFileMap.readLines(new StringReader(decode(start, end)));
+    }
+
+    ////////////////////////////////
+    // Entries
+    /**
+     * This class describes where a player's entry is in the file. It's
+     * Storable, so we can save the entry without ever making a PlayerInfo of
+     * it; in that case it is parsed on the saver thread.
+     */
+    public final class Entry implements UnloadedPlayerInfo {
+
+        private final long start;
+        private final long end;
+        private final List<ChunkPosition> homeChunks;
+        private final long historyStart;
+        private final long historyEnd;
+
+        private Entry(long start, long end, long homesStart, long homesEnd, long historyStart, long historyEnd) {
+            this.start = start;
+            this.end = end;
+            this.historyStart = historyStart;
+            this.historyEnd = historyEnd;
+
+            if (homesStart >= 0 && homesEnd >= 0) {
+                String text = decode(homesStart, homesEnd);
+                MapFileMap homes = MapFileMap.read(new StringReader(text));
+                this.homeChunks = ImmutableList.copyOf(homes.getList("homes", ChunkPosition.class));
+            } else {
+                this.homeChunks = ImmutableList.of();
+            }
+        }
+
+        /**
+         * This method returns the home chunks of the player; we get these
+         * when we first scan the file, so this is cheap.
+         *
+         * @return An immutable list of the home chunks.
+         */
+        @Override
+        public List<ChunkPosition> getHomeChunks() {
+            return homeChunks;
+        }
+
+        /**
+         * This method parses just the player's historical home chunks; we
+         * noted where they are when we scanned the file.
+         *
+         * @return An unmodifiable set of the chunks.
+         */
+        @Override
+        public Set<ChunkPosition> getHistoricalHomeChunks() {
+            if (historyStart < 0) {
+                return ImmutableSet.of();
+            }
+
+            try {
+                return PlayerInfo.DECODER.decode(MapFileReader.forText(decodeLines(historyStart, historyEnd))).getHistoricalHomeChunks();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * This method parses the player's entry and returns a new PlayerInfo
+         * for it.
+         *
+         * @return The new PlayerInfo.
+         */
+        @Override
+        public PlayerInfo toPlayerInfo() {
+            try {
+                return PlayerInfo.DECODER.decode(MapFileReader.forText(decodeLines(start, end)));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public int getVersion() {
+            return 0; // just as it was loaded
+        }
+
+        @Override
+        public MapFileMap toMap() {
+            return MapFileMap.read(new StringReader(decode(start, end)));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package homesoil;
+
+/**
+ * LinearProbing holds the hash table logic that HomeChunkOwnerMap and
+ * HomeChunkOwnerIndex share: both are open-addressing tables with linear
+ * probing, keyed by a long, but one keeps its slots in arrays and the other
+ * in a mapped file. Each gives us its slots through the Slots interface.
+ *
+ * @author DanJ
+ */
+final class LinearProbing {
+
+    private LinearProbing() {
+    }
+
+    /**
+     * This interface gives access to the slots of a table; the number of
+     * slots must be a power of two, and at least one must be empty.
+     */
+    interface Slots {
+
+        int getCapacity();
+
+        boolean isEmpty(int slot);
+
+        long getKey(int slot);
+
+        /**
+         * This method copies the entry in one slot to another.
+         *
+         * @param from The slot to copy from.
+         * @param to The slot to copy to.
+         */
+        void moveSlot(int from, int to);
+
+        void clearSlot(int slot);
+    }
+
+    /**
+     * This method returns the slot where a key would go if nothing else were
+     * in the table.
+     *
+     * @param key The key.
+     * @param capacity The number of slots in the table.
+     * @return The key's home slot.
+     */
+    public static int getHomeSlot(long key, int capacity) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (capacity - 1);
+    }
+
+    /**
+     * This method finds the slot that holds a key.
+     *
+     * @param slots The table to search.
+     * @param key The key to look for.
+     * @return The slot that holds the key, or if there is none, the empty
+     * slot where it would go, as a negative number: -1 for slot 0, -2 for
+     * slot 1, and so on.
+     */
+    public static int findSlot(Slots slots, long key) {
+        int capacity = slots.getCapacity();
+        int mask = capacity - 1;
+
+        for (int slot = getHomeSlot(key, capacity);; slot = (slot + 1) & mask) {
+            if (slots.isEmpty(slot)) {
+                return -slot - 1;
+            } else if (slots.getKey(slot) == key) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * This method empties a slot, and then moves up any entries after it that
+     * could not have been found otherwise.
+     *
+     * @param slots The table to change.
+     * @param slot The slot to empty.
+     */
+    public static void removeSlot(Slots slots, int slot) {
+        int capacity = slots.getCapacity();
+        int mask = capacity - 1;
+        int hole = slot;
+
+        for (int next = (hole + 1) & mask; !slots.isEmpty(next); next = (next + 1) & mask) {
+            int home = getHomeSlot(slots.getKey(next), capacity);
+
+            // the entry at 'next' may move to the hole only if its home slot
+            // is not cyclically between the hole and 'next'.
+            boolean homeBetween = hole <= next
+                    ? hole < home && home <= next
+                    : hole < home || home <= next;
+
+            if (!homeBetween) {
+                slots.moveSlot(next, hole);
+                hole = next;
+            }
+        }
+
+        slots.clearSlot(hole);
+    }
+}
@@ -2,10 +2,12 @@ package homesoil;
 
 import com.google.common.base.*;
 import com.google.common.collect.*;
-import com.google.common.io.Files;
+import com.google.common.io.*;
 import java.io.*;
 import java.lang.reflect.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 
 /**
  * MapFileMap is a map that can be saved to a file as text. All keys and values
@@ -326,37 +328,32 @@ public final class MapFileMap extends HashMap<String, Object> {
      */
     public void loadFromLines(List<String> lines) {
         clear();
-        loadFromLines(lines.iterator());
+
+        try {
+            readEntries(MapFileReader.forText(lines.iterator()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
-     * This method is the real implementation of loadFromLines(); it drains an
-     * iterator to get the lines, which allows us to pass the iterator on to a
-     * sub-map when required.
+     * This method reads the entries of a map from a reader and puts them in
+     * this map; nested maps become MapFileMaps, and everything else becomes a
+     * string. This stops at the end of the current map, so we can use it to
+     * read nested maps too.
      *
-     * @param iter The iterator to drain.
+     * @param reader The reader to read from.
      */
-    private void loadFromLines(Iterator<String> iter) {
-        while (iter.hasNext()) {
-            String line = iter.next();
-
-            if (line.trim().equals("]")) {
-                break;
-            }
-
-            int split = line.indexOf("=");
-
-            if (split >= 0) {
-                String key = unescape(line.substring(0, split));
-                String value = line.substring(split + 1);
-
-                if (value.trim().equals("[")) {
-                    MapFileMap submap = new MapFileMap();
-                    submap.loadFromLines(iter);
-                    put(key, submap);
-                } else {
-                    put(key, unescape(value));
-                }
+    private void readEntries(MapFileReader reader) throws IOException {
+        while (reader.nextEntry()) {
+            String key = reader.getKey();
+
+            if (reader.isMap()) {
+                MapFileMap submap = new MapFileMap();
+                submap.readEntries(reader);
+                put(key, submap);
+            } else {
+                put(key, reader.getValue());
             }
         }
     }
@@ -395,7 +392,7 @@ public final class MapFileMap extends HashMap<String, Object> {
      * @param text The text to escape.
      * @return The 'safe' text that contains no dangerous characters.
      */
-    private static String escape(String text) {
+    static String escape(String text) {
         if (text.equals("[")) {
             return "§[";
         }
@@ -414,29 +411,67 @@ public final class MapFileMap extends HashMap<String, Object> {
      * @param text The text to unescape.
      * @return The normal text restored.
      */
-    private static String unescape(String text) {
-        StringBuilder b = new StringBuilder(text);
+    static String unescape(String text) {
+        int escapeAt = text.indexOf('§');
+
+        if (escapeAt < 0) {
+            return text;
+        }
 
-        for (int i = 0; i < b.length() - 1; ++i) {
-            if (b.charAt(i) == '§') {
-                char next = b.charAt(i + 1);
-                String replacement;
+        StringBuilder b = new StringBuilder(text.length());
+        b.append(text, 0, escapeAt);
+
+        for (int i = escapeAt; i < text.length(); ++i) {
+            char c = text.charAt(i);
+
+            if (c == '§' && i < text.length() - 1) {
+                char next = text.charAt(++i);
 
                 if (next == 'n') {
-                    replacement = NEW_LINE;
+                    b.append(NEW_LINE);
                 } else if (next == '-') {
-                    replacement = "=";
+                    b.append('=');
                 } else {
-                    replacement = "";
+                    b.append(next);
                 }
-
-                b.replace(i, 2, replacement);
-                i += replacement.length() - 1;
+            } else {
+                b.append(c);
             }
         }
 
         return b.toString();
     }
+
+    /**
+     * This method writes text to a stream, escaping it as escape() does,
+     * but without building the escaped string first.
+     *
+     * @param out The stream to write to.
+     * @param text The text to escape.
+     */
+    private static void writeEscaped(Writer out, String text) throws IOException {
+        if (text.equals("[")) {
+            out.write("§[");
+            return;
+        }
+
+        int length = text.length();
+
+        for (int i = 0; i < length; ++i) {
+            char c = text.charAt(i);
+
+            if (text.startsWith(NEW_LINE, i)) {
+                out.write("§n");
+                i += NEW_LINE.length() - 1;
+            } else if (c == '§') {
+                out.write("§§");
+            } else if (c == '=') {
+                out.write("§-");
+            } else {
+                out.write(c);
+            }
+        }
+    }
     ////////////////////////////////
     // File Access
     public static final String NEW_LINE = System.getProperty("line.separator");
@@ -452,18 +487,301 @@ public final class MapFileMap extends HashMap<String, Object> {
      * @return The new map, read from the file.
      */
     public static MapFileMap read(File file) {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+            try {
+                return read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method reads a MapFileMap from a stream of bytes; it checks the
+     * start of the stream to see which format it is in, and can read either
+     * binary or UTF8 text, compressed or not. All IOExceptions are wrapped as
+     * RuntimeExceptions. The stream is not closed.
+     *
+     * @param in The stream to read; this must support mark() and reset().
+     * @return The new map, read from the stream.
+     */
+    public static MapFileMap read(InputStream in) {
+        try {
+            MapFileMap map = new MapFileMap();
+            map.readEntries(openReader(in));
+            return map;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method reads a MapFileMap from a stream of text, a line at a time;
+     * it does not read the whole text into memory first. All IOExceptions are
+     * wrapped as RuntimeExceptions. The reader is not closed.
+     *
+     * @param reader The text to read.
+     * @return The new map, read from the stream.
+     */
+    public static MapFileMap read(Reader reader) {
         try {
             MapFileMap map = new MapFileMap();
-            map.loadFromLines(Files.readLines(file, Charsets.UTF_8));
+            map.readEntries(MapFileReader.forText(readLines(reader)));
             return map;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * This method reads a file whose top level map contains only values of a
+     * single storable type, and puts each one into 'destination'. Each value
+     * is decoded straight from the file, without building a MapFileMap for it
+     * first, if the type has a decoder. All IOExceptions are wrapped as
+     * RuntimeExceptions.
+     *
+     * @param <T> The type of the values in the file.
+     * @param file The file to read; it can be in any format.
+     * @param valueClass The type of the values, again.
+     * @param destination The map to be populated with keys and values.
+     */
+    public static <T extends Storable> void read(File file, Class<T> valueClass, Map<? super String, ? super T> destination) {
+        read(file, valueClass, destination, null);
+    }
+
+    /**
+     * This method reads a file just as read(File, Class, Map) does, but if
+     * an executor is given and the file is text, the entries are parsed and
+     * decoded on the executor's threads, many at once. The destination is
+     * still filled in on this thread, in the order the entries appear in the
+     * file.
+     *
+     * @param <T> The type of the values in the file.
+     * @param file The file to read; it can be in any format.
+     * @param valueClass The type of the values, again.
+     * @param destination The map to be populated with keys and values.
+     * @param executor The executor to decode entries on, or null to decode
+     * them all on this thread.
+     */
+    public static <T extends Storable> void read(File file, Class<T> valueClass, Map<? super String, ? super T> destination, ExecutorService executor) {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+            try {
+                in = decompress(in);
+
+                if (skipBinaryHeader(in)) {
+                    readValues(BinaryMapFile.newReader(in), valueClass, destination);
+                } else {
+                    Iterator<String> lines = readLines(new InputStreamReader(in, Charsets.UTF_8));
+
+                    if (executor != null) {
+                        ParallelMapFile.read(lines, valueClass, destination, executor);
+                    } else {
+                        readValues(MapFileReader.forText(lines), valueClass, destination);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method reads a file whose values are all of one type, just as
+     * read(File, Class, Map) does, but passes each entry to 'visitor' as soon
+     * as it is decoded rather than keeping it. This way a file can be read in
+     * a fixed amount of memory, however large it is.
+     *
+     * @param <T> The type of the values in the file.
+     * @param file The file to read; it can be in any format.
+     * @param valueClass The type of the values, again.
+     * @param visitor The visitor that receives each entry, in file order.
+     */
+    public static <T extends Storable> void read(File file, Class<T> valueClass, EntryVisitor<? super T> visitor) {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+            try {
+                MapFileReader reader = openReader(in);
+
+                while (reader.nextEntry()) {
+                    visitor.visit(reader.getKey(), decodeValue(reader, valueClass));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method reads each remaining entry of the current map of 'reader',
+     * and decodes its value as decodeValue() does.
+     *
+     * @param <T> The type of the values in the map.
+     * @param reader The reader to read from.
+     * @param valueClass The type of the values, again.
+     * @param destination The map to be populated with keys and values.
+     */
+    static <T extends Storable> void readValues(MapFileReader reader, Class<T> valueClass, Map<? super String, ? super T> destination) throws IOException {
+        while (reader.nextEntry()) {
+            destination.put(reader.getKey(), decodeValue(reader, valueClass));
+        }
+    }
+
+    /**
+     * This method decodes the value of the current entry of 'reader'. If it is
+     * a map, and there's a decoder for the type, this uses it; if not, this
+     * reads the map into a MapFileMap and converts that as getValue() would.
+     *
+     * @param <T> The type of the value wanted.
+     * @param reader The reader positioned on the entry whose value is wanted.
+     * @param valueClass The type of the value, again.
+     * @return The decoded value.
+     */
+    public static <T extends Storable> T decodeValue(MapFileReader reader, Class<T> valueClass) throws IOException {
+        if (!reader.isMap()) {
+            return convertValue(reader.getValue(), valueClass);
+        }
+
+        Decoder<T> decoder = getDecoder(valueClass);
+
+        if (decoder != null) {
+            return decoder.decode(reader);
+        }
+
+        MapFileMap map = new MapFileMap();
+        map.readEntries(reader);
+        return convertValue(map, valueClass);
+    }
+
+    /**
+     * This method checks the start of a stream to see which format it is in,
+     * and returns a reader for that format. If the stream is compressed, we
+     * decompress it as we read, and check the format of what's inside.
+     *
+     * @param in The stream to read; this must support mark() and reset().
+     * @return The reader for the stream.
+     */
+    private static MapFileReader openReader(InputStream in) throws IOException {
+        in = decompress(in);
+
+        if (skipBinaryHeader(in)) {
+            return BinaryMapFile.newReader(in);
+        }
+
+        return MapFileReader.forText(readLines(new InputStreamReader(in, Charsets.UTF_8)));
+    }
+
+    /**
+     * This method checks the start of a file to see which format it was
+     * written in.
+     *
+     * @param file The file to check.
+     * @return The format of the file.
+     */
+    public static Format getFormat(File file) {
+        try {
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+            try {
+                InputStream uncompressed = decompress(in);
+                boolean compressed = uncompressed != in;
+                boolean binary = skipBinaryHeader(uncompressed);
+
+                if (binary) {
+                    return compressed ? Format.COMPRESSED_BINARY : Format.BINARY;
+                } else {
+                    return compressed ? Format.COMPRESSED_TEXT : Format.TEXT;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method checks if a stream is compressed; if it is, this returns a
+     * stream that decompresses it as it is read. If not, this returns the
+     * stream itself.
+     *
+     * @param in The stream to read; this must support mark() and reset().
+     * @return The stream of uncompressed data; this also supports mark() and
+     * reset(), and closing it closes 'in'.
+     */
+    private static InputStream decompress(InputStream in) throws IOException {
+        byte[] header = new byte[2];
+        in.mark(header.length);
+        int length = ByteStreams.read(in, header, 0, header.length);
+        in.reset();
+
+        if (isCompressedHeader(header, length)) {
+            return new BufferedInputStream(new GZIPInputStream(in));
+        }
+
+        return in;
+    }
+
+    /**
+     * This method checks if a stream starts with the header of the binary
+     * format. If it does, this skips the header; if not, this leaves the
+     * stream where it was.
+     *
+     * @param in The stream to read; this must support mark() and reset().
+     * @return True if the stream is binary.
+     */
+    private static boolean skipBinaryHeader(InputStream in) throws IOException {
+        byte[] header = new byte[BinaryMapFile.MAGIC.length];
+        in.mark(header.length);
+        int length = ByteStreams.read(in, header, 0, header.length);
+
+        if (BinaryMapFile.isBinaryHeader(header, length)) {
+            return true;
+        }
+
+        in.reset();
+        return false;
+    }
+
+    /**
+     * This method returns an iterator that reads lines from a stream of text
+     * as they are needed. IOExceptions are wrapped as RuntimeExceptions.
+     *
+     * @param reader The text to read.
+     * @return An iterator that produces each line.
+     */
+    static Iterator<String> readLines(Reader reader) {
+        final BufferedReader lineReader = reader instanceof BufferedReader
+                ? (BufferedReader) reader
+                : new BufferedReader(reader);
+
+        return new AbstractIterator<String>() {
+            @Override
+            protected String computeNext() {
+                try {
+                    String line = lineReader.readLine();
+                    return line != null ? line : endOfData();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
     /**
      * This method writes the content of this map to a file. This writes the
-     * lines produces by getLinesFromMap() to a UTF8 text file. All IOExceptions
+     * same lines getLinesFromMap() produces to a UTF8 text file, though it
+     * streams them out rather than building them all first. All IOExceptions
      * are wrapped as RuntimeExceptions.
      *
      * The map need not be a MapFileMap, but all keys are converted to strings,
@@ -471,32 +789,495 @@ public final class MapFileMap extends HashMap<String, Object> {
      * contain maps, which are preserved.
      *
      * This method tries to write a temp file and rename it over the original;
-     * on typical modern file-system, this makes the update atomic. If the
-     * rename fails (ie, if the original is locked), we will rewrite the file
-     * directly if we can.
+     * on typical modern file-system, this makes the update atomic. The temp
+     * file is synced to disk before the rename, so a crash cannot leave a
+     * renamed file whose contents never reached the disk. If the rename fails
+     * (ie, if the original is locked), we will rewrite the file directly if
+     * we can.
      *
      * @param file The file to write to.
      * @param map The map to encode.
      */
     public static void write(File file, Map<?, ?> map) {
+        write(file, map, Format.TEXT);
+    }
+
+    /**
+     * This method writes a map to a file in the format given; read() can read
+     * either format back. This works just as write(File, Map) does otherwise.
+     *
+     * @param file The file to write to.
+     * @param map The map to encode.
+     * @param format The encoding to use.
+     */
+    public static void write(File file, Map<?, ?> map, Format format) {
+        write(file, map, format, null);
+    }
+
+    /**
+     * This method writes a map to a file just as write(File, Map, Format)
+     * does, but if an executor is given and the format is text, the entries
+     * of the map are rendered on the executor's threads, many at once. The
+     * file is exactly the same as if it were written on one thread.
+     *
+     * @param file The file to write to.
+     * @param map The map to encode; this must be safe to read from other
+     * threads.
+     * @param format The encoding to use.
+     * @param executor The executor to render entries on, or null to render
+     * them all on this thread.
+     */
+    public static void write(File file, Map<?, ?> map, Format format, ExecutorService executor) {
         File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
 
+        writeFile(tempFile, map, format, executor);
+
+        boolean renamed = tempFile.renameTo(file);
+
+        if (!renamed) {
+            tempFile.delete();
+
+            writeFile(file, map, format, executor);
+        }
+    }
+
+    /**
+     * This method writes a map to a file directly, replacing whatever was
+     * there.
+     *
+     * @param file The file to write to.
+     * @param map The map to encode.
+     * @param format The encoding to use.
+     * @param executor The executor to render text on, or null.
+     */
+    private static void writeFile(File file, Map<?, ?> map, Format format, ExecutorService executor) {
         try {
-            String text = Joiner.on(NEW_LINE).join(getLinesFromMap(map));
-            Files.write(text, tempFile, Charsets.UTF_8);
+            OutputStream out = new SyncingFileOutputStream(file);
+
+            try {
+                if (format.isCompressed()) {
+                    // the compressor is fed from the buffer below, so it
+                    // needs little buffering of its own.
+                    out = new GZIPOutputStream(out);
+                }
+
+                out = new BufferedOutputStream(out);
+
+                if (format.isBinary()) {
+                    BinaryMapFile.write(out, map);
+                } else if (executor != null) {
+                    Writer writer = new OutputStreamWriter(out, Charsets.UTF_8);
+                    ParallelMapFile.write(writer, map, executor);
+                    writer.flush();
+                } else {
+                    write(new OutputStreamWriter(out, Charsets.UTF_8), map);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            boolean renamed = tempFile.renameTo(file);
+    /**
+     * This method opens a file to write the entries of a map one at a time,
+     * rather than all at once from a map in memory. The binary format records
+     * how many entries a map has before the entries, so you must know this
+     * up front, and write exactly that many.
+     *
+     * The entries are written in the order given, not sorted as write() sorts
+     * them; read() does not care about the order.
+     *
+     * @param file The file to write; this is replaced when the writer is
+     * closed, as write() replaces it.
+     * @param format The encoding to use.
+     * @param entryCount The number of entries that will be written.
+     * @return The new writer.
+     */
+    public static EntryWriter openEntryWriter(File file, Format format, int entryCount) {
+        try {
+            return new EntryWriter(file, format, entryCount);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            if (!renamed) {
+    /**
+     * This class writes the top level entries of a map file, one at a time;
+     * openEntryWriter() creates these. The entries go to a temporary file
+     * which replaces the real one when the writer is closed.
+     */
+    public static final class EntryWriter implements Closeable {
+
+        private final File file;
+        private final File tempFile;
+        private final OutputStream out;
+        private final Writer textOut;
+        private final MapFileWriter writer;
+        private final int entryCount;
+        private int entriesWritten;
+
+        private EntryWriter(File file, Format format, int entryCount) throws IOException {
+            this.file = file;
+            this.tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+            this.entryCount = entryCount;
+
+            OutputStream stream = new SyncingFileOutputStream(tempFile);
+
+            if (format.isCompressed()) {
+                stream = new GZIPOutputStream(stream);
+            }
+
+            this.out = new BufferedOutputStream(stream);
+
+            if (format.isBinary()) {
+                this.textOut = null;
+                this.writer = BinaryMapFile.newWriter(out, entryCount);
+            } else {
+                this.textOut = new OutputStreamWriter(out, Charsets.UTF_8);
+                this.writer = new TextWriter(textOut);
+            }
+        }
+
+        /**
+         * This method writes one entry; the value may be anything write()
+         * accepts as the value of an entry.
+         *
+         * @param key The key of the entry.
+         * @param value The value of the entry.
+         * @throws IllegalStateException If the writer was opened for fewer
+         * entries than this.
+         */
+        public void write(String key, Object value) throws IOException {
+            Preconditions.checkState(entriesWritten < entryCount,
+                    "Only %s entries may be written to '%s'.", entryCount, file);
+
+            writer.writeEntry(key, value);
+            ++entriesWritten;
+        }
+
+        /**
+         * This method finishes the file and puts it in place of the real one.
+         *
+         * @throws IllegalStateException If fewer entries were written than the
+         * writer was opened for; the real file is left as it was.
+         */
+        @Override
+        public void close() throws IOException {
+            if (textOut != null) {
+                textOut.close();
+            } else {
+                out.close();
+            }
+
+            if (entriesWritten != entryCount) {
                 tempFile.delete();
+                throw new IllegalStateException(String.format(
+                        "Only %d of %d entries were written to '%s'.", entriesWritten, entryCount, file));
+            }
 
-                Files.write(text, file, Charsets.UTF_8);
+            if (!tempFile.renameTo(file)) {
+                // some systems won't rename over an existing file.
+                file.delete();
+
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException(String.format("Unable to replace '%s'.", file));
+                }
             }
+        }
+    }
+
+    /**
+     * This method writes a map to a stream of text, in the format read()
+     * accepts. Each line is escaped and written as it is generated, so we
+     * never hold the whole text in memory. All IOExceptions are wrapped as
+     * RuntimeExceptions. The writer is not closed.
+     *
+     * @param writer The stream to write to.
+     * @param map The map to encode.
+     */
+    public static void write(Writer writer, Map<?, ?> map) {
+        try {
+            new TextWriter(writer).writeMapEntries(map);
+            writer.flush();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * This class is a FileOutputStream that syncs the file to disk when it is
+     * closed; we close a temp file this way before renaming it over the real
+     * one. The streams layered on top flush into this one as they close, so
+     * all the data is written by the time we sync.
+     */
+    private static final class SyncingFileOutputStream extends FileOutputStream {
+
+        private boolean closed;
+
+        public SyncingFileOutputStream(File file) throws FileNotFoundException {
+            super(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+
+                try {
+                    getFD().sync();
+                } finally {
+                    super.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * This class writes the lines of a map file to a stream; it keeps track
+     * of whether we are at the start of the file, since we put line separators
+     * only between lines.
+     */
+    private static final class TextWriter extends MapFileWriter {
+
+        private final Writer out;
+        private boolean atStart = true;
+
+        public TextWriter(Writer out) {
+            this.out = out;
+        }
+
+        /**
+         * This method writes out each entry of a map, in key order.
+         *
+         * @param map The map to write.
+         */
+        public void writeMapEntries(Map<?, ?> map) throws IOException {
+            for (Object key : ImmutableSortedSet.copyOf(map.keySet())) {
+                writeEntry(key, map.get(key));
+            }
+        }
+
+        /**
+         * This method writes each element of a collection as an entry, using
+         * its index as the key.
+         *
+         * @param source The collection to write.
+         */
+        public void writeCollectionEntries(Collection<?> source) throws IOException {
+            int index = 0;
+            for (Object element : source) {
+                writeEntry(index, element);
+                ++index;
+            }
+        }
+
+        @Override
+        public void writeEntry(String key, String value) throws IOException {
+            startEntry(key);
+            writeEscaped(out, value);
+        }
+
+        @Override
+        public void writeEntry(String key, int value) throws IOException {
+            startEntry(key);
+            out.write(Integer.toString(value));
+        }
+
+        @Override
+        public void writeEntry(String key, Object value) throws IOException {
+            writeEntry((Object) key, value);
+        }
+
+        /**
+         * This method writes a single map entry, but that entry might have a
+         * map or list as its value, which will take many lines.
+         *
+         * @param key The key of the entry.
+         * @param value The value of the entry.
+         */
+        private void writeEntry(Object key, Object value) throws IOException {
+            if (value instanceof StreamStorable) {
+                startEntry(key);
+                out.write('[');
+                ((StreamStorable) value).write(this);
+                startLine();
+                out.write(']');
+                return;
+            }
+
+            if (value instanceof Storable) {
+                value = ((Storable) value).toMap();
+            }
+
+            startEntry(key);
+
+            if (value instanceof Map<?, ?>) {
+                out.write('[');
+                writeMapEntries((Map<?, ?>) value);
+                startLine();
+                out.write(']');
+            } else if (value instanceof Collection<?>) {
+                out.write('[');
+                writeCollectionEntries((Collection<?>) value);
+                startLine();
+                out.write(']');
+            } else {
+                writeEscaped(out, value.toString());
+            }
+        }
+
+        /**
+         * This method starts the line for an entry, up to and including the
+         * '=' that separates key and value.
+         *
+         * @param key The key of the entry.
+         */
+        private void startEntry(Object key) throws IOException {
+            startLine();
+            writeEscaped(out, key.toString());
+            out.write('=');
+        }
+
+        /**
+         * This method writes the line separator before each line but the
+         * first.
+         */
+        private void startLine() throws IOException {
+            if (atStart) {
+                atStart = false;
+            } else {
+                out.write(NEW_LINE);
+            }
+        }
+    }
+
+    /**
+     * This method returns true if the header given is that of a gzip stream;
+     * this is how we recognize the compressed formats.
+     *
+     * @param header The first bytes of the file.
+     * @param length The number of bytes in 'header' that are valid.
+     * @return True if the file is compressed.
+     */
+    static boolean isCompressedHeader(byte[] header, int length) {
+        return length >= 2
+                && (header[0] & 0xFF) == 0x1F
+                && (header[1] & 0xFF) == 0x8B;
+    }
+
+    /**
+     * This enum lists the encodings write() can use. TEXT is the original
+     * format; it's easy to read and edit. BINARY is much smaller and faster to
+     * read and write. Either can also be compressed with gzip as it is
+     * written; HomeSoil files are very repetitive, so this makes them very
+     * much smaller, at some cost in time.
+     */
+    public enum Format {
+
+        TEXT(false, false),
+        BINARY(true, false),
+        COMPRESSED_TEXT(false, true),
+        COMPRESSED_BINARY(true, true);
+        private final boolean binary;
+        private final boolean compressed;
+
+        private Format(boolean binary, boolean compressed) {
+            this.binary = binary;
+            this.compressed = compressed;
+        }
+
+        public boolean isBinary() {
+            return binary;
+        }
+
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        /**
+         * This method finds the format whose name is given, ignoring case;
+         * we use this for format names in the configuration file, where
+         * they are written like 'compressed-text'.
+         *
+         * @param name The name of the format.
+         * @return The format named.
+         * @throws IllegalArgumentException If there is no such format.
+         */
+        public static Format parse(String name) {
+            return valueOf(name.trim().replace('-', '_').toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    ////////////////////////////////
+    // Decoders
+    private static final Map<Class<?>, Decoder<?>> decoders = Maps.newConcurrentMap();
+
+    static {
+        registerDecoder(ChunkPosition.class, ChunkPosition.DECODER);
+        registerDecoder(PlayerInfo.class, PlayerInfo.DECODER);
+    }
+
+    /**
+     * This method registers a decoder for a storable type; once this is done,
+     * we use the decoder to read values of that type instead of calling its
+     * constructor. HomeSoil's own storable types are registered already.
+     *
+     * @param <T> The type the decoder produces.
+     * @param valueClass The type, again.
+     * @param decoder The decoder to use.
+     */
+    public static <T extends Storable> void registerDecoder(Class<T> valueClass, Decoder<T> decoder) {
+        decoders.put(valueClass, Preconditions.checkNotNull(decoder));
+    }
+
+    /**
+     * This method returns the decoder registered for a type.
+     *
+     * @param <T> The type the decoder produces.
+     * @param valueClass The type, again.
+     * @return The decoder, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends Storable> Decoder<T> getDecoder(Class<T> valueClass) {
+        return (Decoder<T>) decoders.get(valueClass);
+    }
+
+    /**
+     * This interface is implemented by objects that build a storable object
+     * directly from a MapFileReader; this is much faster than reading a map
+     * and passing it to a constructor via reflection.
+     */
+    public interface Decoder<T extends Storable> {
+
+        /**
+         * This method reads the entries of a map and builds an object from
+         * them. The reader is positioned on the entry whose value is the map;
+         * the decoder must read all of the map's entries, including any that
+         * it does not use.
+         *
+         * @param reader The reader to read the entries from.
+         * @return The new object.
+         */
+        T decode(MapFileReader reader) throws IOException;
+    }
+
+    /**
+     * This interface receives the entries of a file as read(File, Class,
+     * EntryVisitor) decodes them.
+     */
+    public interface EntryVisitor<T> {
+
+        /**
+         * This method is called for each top level entry of the file.
+         *
+         * @param key The key of the entry.
+         * @param value The value of the entry, decoded.
+         */
+        void visit(String key, T value);
+    }
+
     /**
      * This interface may be exposed by classes that can be saved inside a
      * MapFileMap; they must convert themselves to maps, which are then stored.
@@ -520,6 +1301,24 @@ public final class MapFileMap extends HashMap<String, Object> {
         Map<?, ?> toMap();
     }
 
+    /**
+     * This interface may be exposed by storable classes that can write their
+     * entries out directly, rather than building a map for them first; when
+     * saving many small objects this saves a lot of garbage. The entries
+     * written must be the same ones toMap() would return, since toMap() is
+     * still used when the object is stored any other way.
+     */
+    public interface StreamStorable extends Storable {
+
+        /**
+         * This method writes each entry of this object to the writer given,
+         * in key order.
+         *
+         * @param writer The writer that receives the entries.
+         */
+        void write(MapFileWriter writer) throws IOException;
+    }
+
     ////////////////////////////////
     // Implementation
     /**
@@ -0,0 +1,149 @@
+package homesoil;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * MapFileReader reads the entries of a map file one at a time, without
+ * building a MapFileMap for them. Nested maps are read with the same reader:
+ * when an entry's value is a map, the following calls to nextEntry() return
+ * its entries, until nextEntry() returns false at the end of that map.
+ *
+ * This lets a MapFileMap.Decoder build an object straight from the file. The
+ * text reader is here; the binary one is in BinaryMapFile.
+ *
+ * @author DanJ
+ */
+public abstract class MapFileReader {
+
+    /**
+     * This method moves to the next entry of the current map.
+     *
+     * @return True if there is an entry; false if the current map is finished.
+     */
+    public abstract boolean nextEntry() throws IOException;
+
+    /**
+     * This method returns the key of the current entry.
+     *
+     * @return The key, unescaped.
+     */
+    public abstract String getKey();
+
+    /**
+     * This method returns true if the value of the current entry is a map;
+     * if it is, you must either read its entries or call skipMap() before
+     * going on with the entries of the outer map. Lists are read as maps
+     * whose keys are the indices.
+     *
+     * @return True if the value is a nested map.
+     */
+    public abstract boolean isMap();
+
+    /**
+     * This method returns the value of the current entry as a string; it is
+     * not valid if the value is a map.
+     *
+     * @return The value, unescaped.
+     */
+    public abstract String getValue();
+
+    /**
+     * This method returns the value of the current entry as an integer; it
+     * will parse the value if it must.
+     *
+     * @return The value as an integer.
+     */
+    public int getIntValue() {
+        return Integer.parseInt(getValue());
+    }
+
+    /**
+     * This method skips the rest of the current map, including any maps
+     * inside it; after this nextEntry() will return the next entry of the
+     * outer map.
+     */
+    public void skipMap() throws IOException {
+        while (nextEntry()) {
+            if (isMap()) {
+                skipMap();
+            }
+        }
+    }
+
+    /**
+     * This method returns a reader for the text format; the lines are those
+     * MapFileMap.getLinesFromMap() generates.
+     *
+     * @param lines The lines of the text to read.
+     * @return The new reader.
+     */
+    static MapFileReader forText(Iterator<String> lines) {
+        return new TextReader(lines);
+    }
+
+    ////////////////////////////////
+    // Text Reader
+    /**
+     * This reader reads the text format, a line at a time. Each line is an
+     * entry, except for "]", which ends a map. An entry whose value is "["
+     * starts a map.
+     */
+    private static final class TextReader extends MapFileReader {
+
+        private final Iterator<String> lines;
+        private String key;
+        private String value;
+
+        public TextReader(Iterator<String> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public boolean nextEntry() {
+            while (lines.hasNext()) {
+                String line = lines.next();
+
+                if (line.trim().equals("]")) {
+                    return false;
+                }
+
+                int split = line.indexOf('=');
+
+                if (split >= 0) {
+                    key = MapFileMap.unescape(line.substring(0, split));
+                    value = line.substring(split + 1);
+
+                    if (value.trim().equals("[")) {
+                        value = null;
+                    }
+
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public boolean isMap() {
+            return value == null;
+        }
+
+        @Override
+        public String getValue() {
+            return MapFileMap.unescape(value);
+        }
+
+        @Override
+        public int getIntValue() {
+            // numbers never contain escapes
+            return Integer.parseInt(value);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package homesoil;
+
+import java.io.*;
+
+/**
+ * MapFileWriter is where a MapFileMap.StreamStorable object writes its
+ * entries when it is saved; the entries go straight into the file, so no map
+ * need be built to hold them. There are writers for both file formats.
+ *
+ * Entries should be written in order by key; the text format would sort the
+ * keys of a map, so this keeps the text identical to what toMap() would give.
+ *
+ * @author DanJ
+ */
+public abstract class MapFileWriter {
+
+    /**
+     * This method writes an entry whose value is a string.
+     *
+     * @param key The key of the entry.
+     * @param value The value to write.
+     */
+    public abstract void writeEntry(String key, String value) throws IOException;
+
+    /**
+     * This method writes an entry whose value is an integer.
+     *
+     * @param key The key of the entry.
+     * @param value The value to write.
+     */
+    public abstract void writeEntry(String key, int value) throws IOException;
+
+    /**
+     * This method writes an entry whose value is anything else that a
+     * MapFileMap can hold: a map, a collection, or a storable object.
+     *
+     * @param key The key of the entry.
+     * @param value The value to write.
+     */
+    public abstract void writeEntry(String key, Object value) throws IOException;
+}
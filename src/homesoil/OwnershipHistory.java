@@ -0,0 +1,436 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.io.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * OwnershipHistory holds every change of ownership of a home chunk that the
+ * OwnershipLog has recorded: each time a player gained or lost a home chunk,
+ * and when. It can answer who owned a chunk at a given time, or what a player
+ * gained and lost over a period, without scanning all the events.
+ *
+ * Events are kept in the order they happened, in parallel arrays of
+ * primitives, so each takes about 25 bytes; names are stored once and
+ * referred to by number. Since the times only ever increase, we can binary
+ * search the events by time. We also keep, for each chunk and each player, the
+ * numbers of the events that concern it, in order; those lists are in time
+ * order too, so the same binary search works on them.
+ *
+ * The history knows nothing of ownership before its first event; a chunk
+ * with no event before a time may still have been owned then.
+ *
+ * This class is not thread-safe.
+ *
+ * @author DanJ
+ */
+public final class OwnershipHistory {
+
+    private static final int MAGIC = 0x48534F4C; // 'HSOL'
+    private static final int NAME_RECORD = 'N';
+    private static final int EVENT_RECORD = 'E';
+    private int size;
+    private long[] times = new long[1024];
+    private int[] playerIds = new int[1024];
+    private int[] worldIds = new int[1024];
+    private int[] xs = new int[1024];
+    private int[] zs = new int[1024];
+    private boolean[] gains = new boolean[1024];
+    private final List<String> names = Lists.newArrayList();
+    private final Map<String, Integer> nameIds = Maps.newHashMap();
+    private final Map<ChunkPosition, EventList> eventsByChunk = Maps.newHashMap();
+    private final Map<Integer, EventList> eventsByPlayer = Maps.newHashMap();
+    // the length of the file this was read from, up to the end of the last
+    // complete record.
+    private long fileLength;
+
+    ////////////////////////////////
+    // Queries
+    /**
+     * This method returns the number of events recorded.
+     *
+     * @return The number of events.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * This method works out who owned a chunk at a given time, from the last
+     * event for that chunk at or before it.
+     *
+     * @param chunk The chunk to check.
+     * @param time The time, in milliseconds since 1970.
+     * @return The name of the owner, or null if the chunk was not owned then,
+     * or we have no record of it.
+     */
+    public String getOwnerAt(ChunkPosition chunk, long time) {
+        EventList events = eventsByChunk.get(chunk);
+
+        if (events != null) {
+            int index = events.countUpTo(time) - 1;
+
+            if (index >= 0) {
+                int event = events.get(index);
+                return gains[event] ? names.get(playerIds[event]) : null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * This method returns every event for a chunk, in order.
+     *
+     * @param chunk The chunk wanted.
+     * @return An immutable list of the events.
+     */
+    public List<Event> getEventsFor(ChunkPosition chunk) {
+        EventList events = eventsByChunk.get(chunk);
+        return events != null ? events.toEvents(0, events.size) : ImmutableList.<Event>of();
+    }
+
+    /**
+     * This method returns the events for a player's home chunks, in order,
+     * between two times; this is the history of his territory over that time.
+     *
+     * @param playerName The name of the player.
+     * @param from The earliest time wanted.
+     * @param to The latest time wanted; events at this time are included.
+     * @return An immutable list of the events.
+     */
+    public List<Event> getEventsFor(String playerName, long from, long to) {
+        Integer playerId = nameIds.get(playerName);
+        EventList events = playerId != null ? eventsByPlayer.get(playerId) : null;
+
+        if (events == null) {
+            return ImmutableList.of();
+        }
+
+        return events.toEvents(events.countBefore(from), events.countUpTo(to));
+    }
+
+    /**
+     * This method returns every event between two times, in order.
+     *
+     * @param from The earliest time wanted.
+     * @param to The latest time wanted; events at this time are included.
+     * @return An immutable list of the events.
+     */
+    public List<Event> getEvents(long from, long to) {
+        ImmutableList.Builder<Event> b = ImmutableList.builder();
+        int end = countUpTo(to);
+
+        for (int event = countBefore(from); event < end; ++event) {
+            b.add(getEvent(event));
+        }
+
+        return b.build();
+    }
+
+    private Event getEvent(int event) {
+        return new Event(
+                times[event],
+                names.get(playerIds[event]),
+                new ChunkPosition(xs[event], zs[event], names.get(worldIds[event])),
+                gains[event]);
+    }
+
+    /**
+     * This method returns the time of the last event.
+     *
+     * @return The time, or Long.MIN_VALUE if there are no events.
+     */
+    public long getLastTime() {
+        return size > 0 ? times[size - 1] : Long.MIN_VALUE;
+    }
+
+    /**
+     * This method counts the events before a time.
+     *
+     * @param time The time in question.
+     * @return The number of events before 'time'.
+     */
+    private int countBefore(long time) {
+        int low = 0;
+        int high = size;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (times[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * This method counts the events at or before a time.
+     *
+     * @param time The time in question.
+     * @return The number of events at or before 'time'.
+     */
+    private int countUpTo(long time) {
+        return time == Long.MAX_VALUE ? size : countBefore(time + 1);
+    }
+
+    ////////////////////////////////
+    // Recording
+    /**
+     * This method adds an event; its time must not be before the last
+     * event's. If an output is given, the event is also written to it, along
+     * with any names it uses that have not been written before.
+     *
+     * @param time The time of the event.
+     * @param playerName The player who gained or lost the chunk.
+     * @param chunk The chunk.
+     * @param gained True if the player gained the chunk, false if he lost it.
+     * @param out The output to write the event to, or null.
+     */
+    void add(long time, String playerName, ChunkPosition chunk, boolean gained, DataOutput out) throws IOException {
+        Preconditions.checkArgument(time >= getLastTime(), "Events must be added in order of time.");
+
+        int playerId = getNameId(playerName, out);
+        int worldId = getNameId(chunk.worldName, out);
+
+        if (out != null) {
+            out.writeByte(EVENT_RECORD);
+            out.writeLong(time);
+            out.writeInt(playerId);
+            out.writeInt(worldId);
+            out.writeInt(chunk.x);
+            out.writeInt(chunk.z);
+            out.writeBoolean(gained);
+        }
+
+        addEvent(time, playerId, worldId, chunk.x, chunk.z, gained, chunk);
+    }
+
+    private void addEvent(long time, int playerId, int worldId, int x, int z, boolean gained, ChunkPosition chunk) {
+        if (size == times.length) {
+            int capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            playerIds = Arrays.copyOf(playerIds, capacity);
+            worldIds = Arrays.copyOf(worldIds, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            zs = Arrays.copyOf(zs, capacity);
+            gains = Arrays.copyOf(gains, capacity);
+        }
+
+        times[size] = time;
+        playerIds[size] = playerId;
+        worldIds[size] = worldId;
+        xs[size] = x;
+        zs[size] = z;
+        gains[size] = gained;
+
+        getEventList(eventsByChunk, chunk).add(size);
+        getEventList(eventsByPlayer, playerId).add(size);
+        ++size;
+    }
+
+    private <K> EventList getEventList(Map<K, EventList> lists, K key) {
+        EventList list = lists.get(key);
+
+        if (list == null) {
+            list = new EventList();
+            lists.put(key, list);
+        }
+
+        return list;
+    }
+
+    /**
+     * This method returns the number that stands for a name, assigning the
+     * next one if it has none yet; in that case, the name is written to the
+     * output given, if any.
+     *
+     * @param name The name.
+     * @param out The output to write a new name to, or null.
+     * @return The number of the name.
+     */
+    private int getNameId(String name, DataOutput out) throws IOException {
+        Integer id = nameIds.get(name);
+
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+
+            if (out != null) {
+                out.writeByte(NAME_RECORD);
+                out.writeUTF(name);
+            }
+        }
+
+        return id;
+    }
+
+    ////////////////////////////////
+    // Files
+    /**
+     * This method writes the header that starts each log file.
+     *
+     * @param out The output to write to.
+     */
+    static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+    }
+
+    /**
+     * This method reads the history from a log file written by OwnershipLog.
+     * If the last record was cut short, as it would be if the server crashed
+     * while writing it, we stop before it; getFileLength() then tells where
+     * it starts.
+     *
+     * @param file The log file.
+     * @return The history; empty if the file does not exist.
+     * @throws IOException If the file is not an ownership log.
+     */
+    public static OwnershipHistory read(File file) throws IOException {
+        OwnershipHistory history = new OwnershipHistory();
+
+        if (!file.exists()) {
+            return history;
+        }
+
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counter);
+
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(String.format("'%s' is not a HomeSoil ownership log.", file));
+            }
+
+            for (;;) {
+                history.fileLength = counter.getCount();
+
+                int tag = in.read();
+
+                if (tag == NAME_RECORD) {
+                    String name = in.readUTF();
+                    history.nameIds.put(name, history.names.size());
+                    history.names.add(name);
+                } else if (tag == EVENT_RECORD) {
+                    long time = in.readLong();
+                    int playerId = in.readInt();
+                    int worldId = in.readInt();
+                    int x = in.readInt();
+                    int z = in.readInt();
+                    boolean gained = in.readBoolean();
+                    ChunkPosition chunk = new ChunkPosition(x, z, history.names.get(worldId));
+                    history.addEvent(time, playerId, worldId, x, z, gained, chunk);
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // the last record is incomplete; we just leave it out.
+        } finally {
+            in.close();
+        }
+
+        return history;
+    }
+
+    /**
+     * This method returns the length of the file read() read this history
+     * from, leaving out any incomplete record at the end.
+     *
+     * @return The length in bytes, or 0 if there was no file.
+     */
+    long getFileLength() {
+        return fileLength;
+    }
+
+    ////////////////////////////////
+    // Events
+    /**
+     * This class describes one event: a player gaining or losing a home
+     * chunk.
+     */
+    public static final class Event {
+
+        public final long time;
+        public final String playerName;
+        public final ChunkPosition chunk;
+        public final boolean gained;
+
+        public Event(long time, String playerName, ChunkPosition chunk, boolean gained) {
+            this.time = time;
+            this.playerName = Preconditions.checkNotNull(playerName);
+            this.chunk = Preconditions.checkNotNull(chunk);
+            this.gained = gained;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%tF %<tT %s %s (%s)",
+                    time, playerName, gained ? "gained" : "lost", chunk);
+        }
+    }
+
+    /**
+     * This class is a growable list of event numbers, in increasing order.
+     */
+    private final class EventList {
+
+        private int[] events = new int[4];
+        private int size;
+
+        public void add(int event) {
+            if (size == events.length) {
+                events = Arrays.copyOf(events, size * 2);
+            }
+
+            events[size++] = event;
+        }
+
+        public int get(int index) {
+            return events[index];
+        }
+
+        /**
+         * This method counts the events in this list that are before a time.
+         *
+         * @param time The time in question.
+         * @return The number of events before 'time'.
+         */
+        public int countBefore(long time) {
+            int low = 0;
+            int high = size;
+
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+
+                if (times[events[middle]] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        public int countUpTo(long time) {
+            return time == Long.MAX_VALUE ? size : countBefore(time + 1);
+        }
+
+        public List<Event> toEvents(int start, int end) {
+            ImmutableList.Builder<Event> b = ImmutableList.builder();
+
+            for (int index = start; index < end; ++index) {
+                b.add(getEvent(events[index]));
+            }
+
+            return b.build();
+        }
+    }
+}
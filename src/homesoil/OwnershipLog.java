@@ -0,0 +1,218 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.io.*;
+import java.io.*;
+import java.util.*;
+import org.bukkit.plugin.*;
+import org.bukkit.scheduler.*;
+
+/**
+ * OwnershipLog records each time a player gains or loses a home chunk, with
+ * the time, in a binary file that is only ever appended to; unlike the
+ * journal, it is never emptied. Stealing a chunk, giving one to the commons
+ * and being assigned a new home chunk all show up here, as a chunk lost by
+ * one player and gained by another.
+ *
+ * The events are also kept in an OwnershipHistory, which can be queried; the
+ * whole log is read into it at startup. HomeSoilTool can read the log too,
+ * while the server is down.
+ *
+ * As with the journal, the events of one tick are written together at the
+ * start of the next, on the BackgroundSaver's thread; but we do not sync the
+ * file to disk, since the log is not needed to restore the player data. The
+ * other methods must be called on the main server thread.
+ *
+ * @author DanJ
+ */
+public final class OwnershipLog implements PlayerInfo.ChangeListener {
+
+    private final Plugin plugin;
+    private final BackgroundSaver saver;
+    private final File logFile;
+    private final OwnershipHistory history;
+    private ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+    private DataOutputStream pendingOut = new DataOutputStream(pendingBytes);
+    // this is used only on the saver thread
+    private FileOutputStream logStream;
+
+    private OwnershipLog(Plugin plugin, BackgroundSaver saver, File logFile, OwnershipHistory history) {
+        this.plugin = Preconditions.checkNotNull(plugin);
+        this.saver = Preconditions.checkNotNull(saver);
+        this.logFile = Preconditions.checkNotNull(logFile);
+        this.history = Preconditions.checkNotNull(history);
+    }
+
+    /**
+     * This method reads the log file given, if it exists, and returns a log
+     * that appends to it. If the file ends with an incomplete record, we cut
+     * that off first. If there is no file yet, we write its header right
+     * away, so the first record can be appended like any other.
+     *
+     * @param plugin The plugin, used to schedule commits.
+     * @param saver The saver whose thread writes the file.
+     * @param logFile The log file.
+     * @return The new log.
+     */
+    public static OwnershipLog open(Plugin plugin, BackgroundSaver saver, File logFile) {
+        try {
+            OwnershipHistory history = OwnershipHistory.read(logFile);
+            OwnershipLog log = new OwnershipLog(plugin, saver, logFile, history);
+
+            if (history.getFileLength() == 0) {
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile));
+
+                try {
+                    OwnershipHistory.writeHeader(out);
+                } finally {
+                    out.close();
+                }
+            } else if (logFile.length() > history.getFileLength()) {
+                RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+
+                try {
+                    file.setLength(history.getFileLength());
+                } finally {
+                    file.close();
+                }
+            }
+
+            return log;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method returns the history of every event logged, including those
+     * not yet written to the file.
+     *
+     * @return The history.
+     */
+    public OwnershipHistory getHistory() {
+        return history;
+    }
+
+    ////////////////////////////////
+    // Recording
+    @Override
+    public void homeChunkSet(String playerName, ChunkPosition homeChunk, List<ChunkPosition> previousHomeChunks) {
+        for (ChunkPosition previousHomeChunk : previousHomeChunks) {
+            if (!previousHomeChunk.equals(homeChunk)) {
+                record(playerName, previousHomeChunk, false);
+            }
+        }
+
+        if (!previousHomeChunks.contains(homeChunk)) {
+            record(playerName, homeChunk, true);
+        }
+    }
+
+    @Override
+    public void homeChunkAdded(String playerName, ChunkPosition homeChunk) {
+        record(playerName, homeChunk, true);
+    }
+
+    @Override
+    public void homeChunkRemoved(String playerName, ChunkPosition homeChunk) {
+        record(playerName, homeChunk, false);
+    }
+
+    /**
+     * This method adds an event to the history, and queues it to be written
+     * to the log; if it is the first one this tick, this also schedules the
+     * commit for the next tick. If the clock has gone backwards, the event
+     * gets the time of the one before, so the times stay in order.
+     *
+     * @param playerName The player who gained or lost the chunk.
+     * @param homeChunk The chunk.
+     * @param gained True if the chunk was gained, false if it was lost.
+     */
+    private void record(String playerName, ChunkPosition homeChunk, boolean gained) {
+        if (pendingBytes.size() == 0) {
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            }.runTask(plugin);
+        }
+
+        long time = Math.max(System.currentTimeMillis(), history.getLastTime());
+
+        try {
+            history.add(time, playerName, homeChunk, gained, pendingOut);
+        } catch (IOException e) {
+            // we are writing to memory, so this can't happen.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method hands the events recorded so far to the saver thread, which
+     * appends them to the log file.
+     */
+    public void commit() {
+        if (pendingBytes.size() > 0) {
+            final byte[] batch = pendingBytes.toByteArray();
+            pendingBytes = new ByteArrayOutputStream();
+            pendingOut = new DataOutputStream(pendingBytes);
+
+            saver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    append(batch);
+                }
+            });
+        }
+    }
+
+    /**
+     * This method closes the log file; the saver must still be open, as this
+     * does its work there. Any uncommitted events are committed first.
+     */
+    public void close() {
+        commit();
+
+        saver.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeStream();
+            }
+        });
+    }
+
+    ////////////////////////////////
+    // File Access
+    //
+    // These methods run on the saver thread only.
+    /**
+     * This method appends events to the log file.
+     *
+     * @param bytes The encoded events.
+     */
+    private void append(byte[] bytes) {
+        try {
+            if (logStream == null) {
+                logStream = new FileOutputStream(logFile, true);
+            }
+
+            logStream.write(bytes);
+            logStream.flush();
+        } catch (IOException e) {
+            closeStream();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method closes the log stream if it is open; it will be reopened by
+     * the next append.
+     */
+    private void closeStream() {
+        if (logStream != null) {
+            Closeables.closeQuietly(logStream);
+            logStream = null;
+        }
+    }
+}
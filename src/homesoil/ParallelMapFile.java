@@ -0,0 +1,238 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class reads and writes the text encoding of a large map using several
+ * threads at once. The top level entries are divided into batches; each batch
+ * is parsed or rendered as a task on an executor, and the results are put
+ * together again on the calling thread, in the original order. This gives
+ * just the same results as doing it all on one thread.
+ *
+ * The files themselves are still read and written by the calling thread, and
+ * we keep only a limited number of batches in progress, so we never hold the
+ * whole file in memory at once.
+ *
+ * @author DanJ
+ */
+final class ParallelMapFile {
+
+    /**
+     * This is the number of top level entries in each batch; for the HomeSoil
+     * file, this is the number of players.
+     */
+    private static final int entriesPerBatch = 256;
+    /**
+     * This is the number of batches we allow to be in progress at once; when
+     * there are this many, we wait for the oldest one before starting another.
+     */
+    private static final int maximumBatchesInProgress = 64;
+
+    private ParallelMapFile() {
+    }
+
+    ////////////////////////////////
+    // Reading
+    /**
+     * This method reads the lines of a text map file, whose top level map
+     * contains only values of a single storable type, and puts each into
+     * 'destination'. The values are decoded on the executor's threads.
+     *
+     * @param <T> The type of the values in the file.
+     * @param lines The lines of the file.
+     * @param valueClass The type of the values, again.
+     * @param destination The map to be populated with keys and values.
+     * @param executor The executor to decode values on.
+     */
+    public static <T extends MapFileMap.Storable> void read(Iterator<String> lines, Class<T> valueClass, Map<? super String, ? super T> destination, ExecutorService executor) throws IOException {
+        Deque<Future<Map<String, T>>> inProgress = new ArrayDeque<Future<Map<String, T>>>();
+        List<String> batch = Lists.newArrayList();
+        int batchEntries = 0;
+        int depth = 0;
+
+        try {
+            while (lines.hasNext()) {
+                String line = lines.next();
+
+                if (line.trim().equals("]")) {
+                    if (depth == 0) {
+                        break; // this ends the top level map
+                    }
+
+                    --depth;
+                } else {
+                    int split = line.indexOf('=');
+
+                    if (split >= 0) {
+                        if (depth == 0) {
+                            if (batchEntries == entriesPerBatch) {
+                                inProgress.add(submitRead(batch, valueClass, executor));
+                                batch = Lists.newArrayList();
+                                batchEntries = 0;
+
+                                if (inProgress.size() >= maximumBatchesInProgress) {
+                                    destination.putAll(getResult(inProgress.removeFirst()));
+                                }
+                            }
+
+                            ++batchEntries;
+                        }
+
+                        if (line.substring(split + 1).trim().equals("[")) {
+                            ++depth;
+                        }
+                    }
+                }
+
+                batch.add(line);
+            }
+
+            if (!batch.isEmpty()) {
+                inProgress.add(submitRead(batch, valueClass, executor));
+            }
+
+            while (!inProgress.isEmpty()) {
+                destination.putAll(getResult(inProgress.removeFirst()));
+            }
+        } finally {
+            cancelAll(inProgress);
+        }
+    }
+
+    /**
+     * This method starts a task to decode a batch of lines.
+     *
+     * @param <T> The type of the values in the batch.
+     * @param lines The lines of the batch; each top level entry must be
+     * complete.
+     * @param valueClass The type of the values, again.
+     * @param executor The executor to decode on.
+     * @return The future that will hold the entries of the batch, in order.
+     */
+    private static <T extends MapFileMap.Storable> Future<Map<String, T>> submitRead(final List<String> lines, final Class<T> valueClass, ExecutorService executor) {
+        return executor.submit(new Callable<Map<String, T>>() {
+            @Override
+            public Map<String, T> call() throws IOException {
+                Map<String, T> values = Maps.newLinkedHashMap();
+                MapFileMap.readValues(MapFileReader.forText(lines.iterator()), valueClass, values);
+                return values;
+            }
+        });
+    }
+
+    ////////////////////////////////
+    // Writing
+    /**
+     * This method writes a map to a stream of text, in the same format and
+     * order MapFileMap.write(Writer, Map) does; the entries of the map are
+     * rendered on the executor's threads. The writer is not flushed or
+     * closed.
+     *
+     * @param out The stream to write to.
+     * @param map The map to encode; this must be safe to read from other
+     * threads.
+     * @param executor The executor to render entries on.
+     */
+    public static void write(Writer out, Map<?, ?> map, ExecutorService executor) throws IOException {
+        List<?> keys = ImmutableSortedSet.copyOf(map.keySet()).asList();
+        Deque<Future<String>> inProgress = new ArrayDeque<Future<String>>();
+        boolean atStart = true;
+
+        try {
+            for (int start = 0; start < keys.size(); start += entriesPerBatch) {
+                Map<Object, Object> batch = Maps.newLinkedHashMap();
+
+                for (Object key : keys.subList(start, Math.min(keys.size(), start + entriesPerBatch))) {
+                    batch.put(key, map.get(key));
+                }
+
+                inProgress.add(submitWrite(batch, executor));
+
+                if (inProgress.size() >= maximumBatchesInProgress) {
+                    writeBatch(out, getResult(inProgress.removeFirst()), atStart);
+                    atStart = false;
+                }
+            }
+
+            while (!inProgress.isEmpty()) {
+                writeBatch(out, getResult(inProgress.removeFirst()), atStart);
+                atStart = false;
+            }
+        } finally {
+            cancelAll(inProgress);
+        }
+    }
+
+    /**
+     * This method starts a task to render a batch of entries as text.
+     *
+     * @param batch The entries to render.
+     * @param executor The executor to render on.
+     * @return The future that will hold the text of the batch.
+     */
+    private static Future<String> submitWrite(final Map<?, ?> batch, ExecutorService executor) {
+        return executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                StringWriter text = new StringWriter();
+                MapFileMap.write(text, batch);
+                return text.toString();
+            }
+        });
+    }
+
+    /**
+     * This method writes the text of a batch; each batch's text lacks the line
+     * separator before its first line, so we supply that for all but the
+     * first batch.
+     *
+     * @param out The stream to write to.
+     * @param text The text of the batch.
+     * @param atStart True if this is the first batch.
+     */
+    private static void writeBatch(Writer out, String text, boolean atStart) throws IOException {
+        if (!atStart) {
+            out.write(MapFileMap.NEW_LINE);
+        }
+
+        out.write(text);
+    }
+
+    ////////////////////////////////
+    // Tasks
+    /**
+     * This method waits for a task to finish and returns its result; if the
+     * task failed, this throws what it threw.
+     *
+     * @param <T> The type of the result.
+     * @param future The task to wait for.
+     * @return The result of the task.
+     */
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * This method cancels any tasks whose results we won't be using, because
+     * something went wrong.
+     *
+     * @param inProgress The tasks to cancel.
+     */
+    private static void cancelAll(Collection<? extends Future<?>> inProgress) {
+        for (Future<?> future : inProgress) {
+            future.cancel(true);
+        }
+    }
+}
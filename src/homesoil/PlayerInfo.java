@@ -2,8 +2,8 @@ package homesoil;
 
 import com.google.common.base.*;
 import com.google.common.collect.*;
+import java.io.*;
 import java.util.*;
-import java.util.concurrent.atomic.*;
 import org.bukkit.*;
 import org.bukkit.block.*;
 
@@ -13,15 +13,19 @@ import org.bukkit.block.*;
  *
  * @author DanJ
  */
-public final class PlayerInfo implements MapFileMap.Storable {
+public final class PlayerInfo implements MapFileMap.StreamStorable {
 
     public PlayerInfo() {
-        incrementGenerationCount();
+    }
+
+    PlayerInfo(Collection<ChunkPosition> homeChunks, Collection<ChunkPosition> historicalHomeChunks) {
+        this.homeChunks.addAll(homeChunks);
+        this.historicalHomeChunks.addAll(historicalHomeChunks);
     }
     ////////////////////////////////
     // Home Chunks
-    private final List<ChunkPosition> homeChunks = Lists.newArrayList();
-    private final Set<ChunkPosition> historicalHomeChunks = Sets.newHashSet();
+    private List<ChunkPosition> homeChunks = Lists.newArrayList();
+    private ChunkPositionSet historicalHomeChunks = new ChunkPositionSet();
 
     /**
      * This method returns an immutable list that contains each home chunk
@@ -36,12 +40,13 @@ public final class PlayerInfo implements MapFileMap.Storable {
 
     /**
      * This method returns a set containing every chunk this player has ever
-     * owned, even if he does not own the chunk anymore.
+     * owned, even if he does not own the chunk anymore. The set is a
+     * ChunkPositionSet, so adding it to another is quick.
      *
      * @return An unmodifiable set of the chunks.
      */
     public Set<ChunkPosition> getHistoricalHomeChunks() {
-        return Collections.unmodifiableSet(historicalHomeChunks);
+        return historicalHomeChunks.unmodifiableView();
     }
 
     /**
@@ -51,10 +56,17 @@ public final class PlayerInfo implements MapFileMap.Storable {
      * @param pos The new home chunk.
      */
     public void setHomeChunk(ChunkPosition homeChunk) {
+        List<ChunkPosition> previousHomeChunks = ImmutableList.copyOf(homeChunks);
+
+        unshare();
         homeChunks.clear();
         homeChunks.add(homeChunk);
         historicalHomeChunks.add(homeChunk);
-        incrementGenerationCount();
+        ++version;
+
+        if (listener != null) {
+            listener.homeChunkSet(playerName, homeChunk, previousHomeChunks);
+        }
     }
 
     /**
@@ -66,10 +78,15 @@ public final class PlayerInfo implements MapFileMap.Storable {
      */
     public void addHomeChunk(ChunkPosition homeChunk) {
         if (!homeChunks.contains(homeChunk)) {
+            unshare();
             homeChunks.add(homeChunk);
             historicalHomeChunks.add(homeChunk);
 
-            incrementGenerationCount();
+            ++version;
+
+            if (listener != null) {
+                listener.homeChunkAdded(playerName, homeChunk);
+            }
         }
     }
 
@@ -92,10 +109,16 @@ public final class PlayerInfo implements MapFileMap.Storable {
             return false; // can't remove last chunk!
         }
 
+        unshare();
         homeChunks.remove(homeChunk);
         // we do not alter historicalHomeChunks; the whole point of that
         // is to remember what we used to own.
-        incrementGenerationCount();
+        ++version;
+
+        if (listener != null) {
+            listener.homeChunkRemoved(playerName, homeChunk);
+        }
+
         return true;
     }
 
@@ -116,29 +139,159 @@ public final class PlayerInfo implements MapFileMap.Storable {
         return homeChunks.get(index);
     }
     ////////////////////////////////
-    // Generation Count
-    private static final AtomicInteger playerInfoGenerationCount = new AtomicInteger();
+    // Change Notification
+    private String playerName;
+    private ChangeListener listener;
 
     /**
-     * This method returns a number that is incremented whenever any PlayerInfo
-     * is created or changed. We can regenerated cached data when this changes.
+     * This method connects this info to a listener that is told about each
+     * change to its home chunks; the PlayerInfoMap does this when the info is
+     * added to it. Snapshots are never attached.
      *
-     * @return A number that changes when PlayerInfos do.
+     * @param playerName The name of the player this info belongs to.
+     * @param listener The listener to notify.
      */
-    public static int getGenerationCount() {
-        return playerInfoGenerationCount.get();
+    void attach(String playerName, ChangeListener listener) {
+        this.playerName = Preconditions.checkNotNull(playerName);
+        this.listener = Preconditions.checkNotNull(listener);
+    }
+
+    /**
+     * This interface receives notice of each change made to a PlayerInfo's
+     * home chunks, after the change is made.
+     */
+    public interface ChangeListener {
+
+        /**
+         * This method is called when setHomeChunk() replaces all of a
+         * player's home chunks with one new one.
+         *
+         * @param playerName The player whose home chunks changed.
+         * @param homeChunk The player's only home chunk now.
+         * @param previousHomeChunks The home chunks the player had before.
+         */
+        void homeChunkSet(String playerName, ChunkPosition homeChunk, List<ChunkPosition> previousHomeChunks);
+
+        /**
+         * This method is called when a new home chunk is added.
+         *
+         * @param playerName The player whose home chunks changed.
+         * @param homeChunk The chunk that was added.
+         */
+        void homeChunkAdded(String playerName, ChunkPosition homeChunk);
+
+        /**
+         * This method is called when a home chunk is removed; it remains a
+         * historical home chunk.
+         *
+         * @param playerName The player whose home chunks changed.
+         * @param homeChunk The chunk that was removed.
+         */
+        void homeChunkRemoved(String playerName, ChunkPosition homeChunk);
+    }
+    ////////////////////////////////
+    // Snapshots
+    //
+    // A snapshot shares its collections with the info it was taken from;
+    // whichever one is changed next makes its own copies first. This makes
+    // snapshots cheap, since most players don't change between saves.
+    private boolean shared;
+
+    private PlayerInfo(List<ChunkPosition> homeChunks, ChunkPositionSet historicalHomeChunks, int version) {
+        this.homeChunks = homeChunks;
+        this.historicalHomeChunks = historicalHomeChunks;
+        this.version = version;
+        this.shared = true;
     }
 
     /**
-     * This method increments the value getGenerationCount() returns; we call
-     * this when any PlayerInfo is changed or even created.
+     * This method returns a copy of this player info that will not change
+     * even if this one does; it can be saved on another thread while this one
+     * goes on being updated.
+     *
+     * @return A new PlayerInfo with the same chunks and version as this one.
      */
-    private static void incrementGenerationCount() {
-        playerInfoGenerationCount.incrementAndGet();
+    public PlayerInfo snapshot() {
+        shared = true;
+        return new PlayerInfo(homeChunks, historicalHomeChunks, version);
+    }
+
+    /**
+     * This method copies the collections this info holds if they are shared
+     * with a snapshot; we call this before any change.
+     */
+    private void unshare() {
+        if (shared) {
+            homeChunks = Lists.newArrayList(homeChunks);
+            historicalHomeChunks = new ChunkPositionSet(historicalHomeChunks);
+            shared = false;
+        }
+    }
+    ////////////////////////////////
+    // Version
+    private int version;
+
+    /**
+     * This method returns a number that is incremented whenever this info's
+     * home chunks are changed; a snapshot has the version of the info it was
+     * taken from, so if two snapshots of an info have the same version, the
+     * info did not change between them.
+     *
+     * @return The number of changes made to this info since it was created
+     * or loaded.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * This method sets the version of an info that is being read back from
+     * cold storage, so that it carries on from the version it had when it was
+     * evicted.
+     *
+     * @param version The version the info had.
+     */
+    void restoreVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * This method returns the version of a value from a save snapshot, which
+     * may be a PlayerInfo or an UnloadedPlayerInfo.
+     *
+     * @param value The value whose version is wanted.
+     * @return The version, or -1 if the value has none.
+     */
+    static int getVersionOf(MapFileMap.Storable value) {
+        if (value instanceof PlayerInfo) {
+            return ((PlayerInfo) value).getVersion();
+        } else if (value instanceof UnloadedPlayerInfo) {
+            return ((UnloadedPlayerInfo) value).getVersion();
+        } else {
+            return -1;
+        }
     }
 
     ////////////////////////////////
     // MapFileMap Storage
+    /**
+     * This method converts an entry of a save snapshot to a PlayerInfo; most
+     * are already, but players loaded lazily or evicted to cold storage may
+     * not be.
+     *
+     * @param value The entry to convert.
+     * @return The PlayerInfo.
+     */
+    static PlayerInfo fromStorable(MapFileMap.Storable value) {
+        if (value instanceof PlayerInfo) {
+            return (PlayerInfo) value;
+        } else if (value instanceof UnloadedPlayerInfo) {
+            return ((UnloadedPlayerInfo) value).toPlayerInfo();
+        } else {
+            return new PlayerInfo(new MapFileMap(value.toMap()));
+        }
+    }
+
     public PlayerInfo(MapFileMap storage) {
         if (storage.containsKey("homes")) {
             this.homeChunks.addAll(storage.getList("homes", ChunkPosition.class));
@@ -148,14 +301,79 @@ public final class PlayerInfo implements MapFileMap.Storable {
             this.historicalHomeChunks.addAll(storage.getSet("historicalHomes", ChunkPosition.class));
         }
 
-        incrementGenerationCount();
+        if (storage.containsKey("history")) {
+            for (Map.Entry<String, Object> e : storage.getMapFileMap("history").entrySet()) {
+                this.historicalHomeChunks.addEncoded(e.getKey(), e.getValue().toString());
+            }
+        }
+    }
+
+    /**
+     * This decoder reads a player info directly from a map file; it builds
+     * each chunk position with ChunkPosition.DECODER too, so no MapFileMaps
+     * are created at all.
+     */
+    static final MapFileMap.Decoder<PlayerInfo> DECODER = new MapFileMap.Decoder<PlayerInfo>() {
+        @Override
+        public PlayerInfo decode(MapFileReader reader) throws IOException {
+            PlayerInfo info = new PlayerInfo();
+
+            while (reader.nextEntry()) {
+                String key = reader.getKey();
+
+                if (!reader.isMap()) {
+                    continue;
+                } else if (key.equals("homes")) {
+                    decodeChunks(reader, info.homeChunks);
+                } else if (key.equals("historicalHomes")) {
+                    decodeChunks(reader, info.historicalHomeChunks);
+                } else if (key.equals("history")) {
+                    decodeHistory(reader, info.historicalHomeChunks);
+                } else {
+                    reader.skipMap();
+                }
+            }
+
+            return info;
+        }
+
+        private void decodeChunks(MapFileReader reader, Collection<ChunkPosition> destination) throws IOException {
+            while (reader.nextEntry()) {
+                destination.add(MapFileMap.decodeValue(reader, ChunkPosition.class));
+            }
+        }
+    };
+
+    /**
+     * This method reads historical home chunks as they are stored under
+     * 'history': a bitmap for each world, keyed by world name, as from
+     * ChunkPositionSet.toEncodedMap(). Older files list each chunk under
+     * 'historicalHomes' instead; we still read those, but always write this.
+     *
+     * @param reader The reader, positioned at the 'history' map.
+     * @param destination The set to add the chunks to.
+     */
+    static void decodeHistory(MapFileReader reader, ChunkPositionSet destination) throws IOException {
+        while (reader.nextEntry()) {
+            if (reader.isMap()) {
+                reader.skipMap();
+            } else {
+                destination.addEncoded(reader.getKey(), reader.getValue());
+            }
+        }
     }
 
     @Override
     public Map<?, ?> toMap() {
         Map<String, Object> map = Maps.newHashMap();
         map.put("homes", homeChunks);
-        map.put("historicalHomes", historicalHomeChunks);
+        map.put("history", historicalHomeChunks.toEncodedMap());
         return map;
     }
+
+    @Override
+    public void write(MapFileWriter writer) throws IOException {
+        writer.writeEntry("history", historicalHomeChunks.toEncodedMap());
+        writer.writeEntry("homes", homeChunks);
+    }
 }
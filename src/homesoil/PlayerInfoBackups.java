@@ -0,0 +1,319 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * PlayerInfoBackups keeps rolling backups of the player data in a directory of
+ * its own. Each chain of backups starts with a full copy of the player data,
+ * and goes on with deltas; each delta lists, for each player who changed, the
+ * home chunks he gained and lost since the backup before it. Since home chunks
+ * are only ever appended to a player's list, or removed from it, this is
+ * enough to rebuild his list in the right order.
+ *
+ * Each session starts a new chain, since we keep only the last snapshot we
+ * backed up in memory, not the state the last chain ends with. After a number
+ * of deltas we start a new chain too, and we delete the oldest chains so that
+ * only a few are kept.
+ *
+ * The backups are taken from the same snapshots the store saves, and written
+ * on the BackgroundSaver's thread; restore() may be used from anywhere, even
+ * without a server.
+ *
+ * @author DanJ
+ */
+public final class PlayerInfoBackups {
+
+    private static final Pattern fileNamePattern = Pattern.compile("HomeSoil-(\\d+)-(full|delta)\\.txt");
+    private final File directory;
+    private final MapFileMap.Format format;
+    private final int deltasPerChain;
+    private final int chainsKept;
+    // these are used only on the saver thread
+    private Map<String, ? extends MapFileMap.Storable> lastSnapshot;
+    private int deltasInChain;
+
+    /**
+     * This constructor creates the backups; nothing is written until
+     * write() is called.
+     *
+     * @param directory The directory to keep the backups in.
+     * @param format The format to write the backups in.
+     * @param deltasPerChain The number of deltas to write after each full
+     * backup, before starting a new chain.
+     * @param chainsKept The number of chains to keep; older ones are deleted.
+     */
+    public PlayerInfoBackups(File directory, MapFileMap.Format format, int deltasPerChain, int chainsKept) {
+        Preconditions.checkArgument(deltasPerChain >= 0, "The number of deltas per chain can't be negative.");
+        Preconditions.checkArgument(chainsKept > 0, "At least one chain of backups must be kept.");
+
+        this.directory = Preconditions.checkNotNull(directory);
+        this.format = Preconditions.checkNotNull(format);
+        this.deltasPerChain = deltasPerChain;
+        this.chainsKept = chainsKept;
+    }
+
+    ////////////////////////////////
+    // Backing Up
+    /**
+     * This method writes a backup of the snapshot given; this is a delta if
+     * we can, and a full backup if we must.
+     *
+     * @param snapshot The player data to back up, as from
+     * PlayerInfoMap.takeSaveSnapshot().
+     */
+    public void write(Map<String, ? extends MapFileMap.Storable> snapshot) {
+        directory.mkdirs();
+        long time = System.currentTimeMillis();
+
+        if (lastSnapshot == null || deltasInChain >= deltasPerChain) {
+            MapFileMap.write(getBackupFile(time, "full"), snapshot, format);
+            deltasInChain = 0;
+            deleteOldChains();
+        } else {
+            Map<String, MapFileMap> delta = getDelta(lastSnapshot, snapshot);
+
+            if (!delta.isEmpty()) {
+                MapFileMap.write(getBackupFile(time, "delta"), delta, format);
+                ++deltasInChain;
+            }
+        }
+
+        lastSnapshot = snapshot;
+    }
+
+    /**
+     * This method works out the changes to each player between two
+     * snapshots. Players are skipped without reading them if they are the
+     * same object in both, or have the same version.
+     *
+     * @param before The earlier snapshot.
+     * @param after The later snapshot.
+     * @return A map with an entry for each player that changed.
+     */
+    private static Map<String, MapFileMap> getDelta(Map<String, ? extends MapFileMap.Storable> before, Map<String, ? extends MapFileMap.Storable> after) {
+        Map<String, MapFileMap> delta = Maps.newHashMap();
+
+        for (Map.Entry<String, ? extends MapFileMap.Storable> e : after.entrySet()) {
+            MapFileMap.Storable beforeValue = before.get(e.getKey());
+            MapFileMap.Storable afterValue = e.getValue();
+
+            if (beforeValue == afterValue) {
+                continue;
+            }
+
+            if (beforeValue != null) {
+                int version = PlayerInfo.getVersionOf(beforeValue);
+
+                if (version >= 0 && version == PlayerInfo.getVersionOf(afterValue)) {
+                    continue;
+                }
+            }
+
+            PlayerInfo beforeInfo = beforeValue != null ? PlayerInfo.fromStorable(beforeValue) : new PlayerInfo();
+            PlayerInfo afterInfo = PlayerInfo.fromStorable(afterValue);
+            MapFileMap change = getChange(beforeInfo, afterInfo);
+
+            if (!change.isEmpty()) {
+                delta.put(e.getKey(), change);
+            }
+        }
+
+        return delta;
+    }
+
+    /**
+     * This method works out the changes to one player. We record the home
+     * chunks added and removed, and also any historical home chunks added that
+     * are not home chunks now; there usually aren't any of those.
+     *
+     * If a chunk was removed and added back, the player's list is in a
+     * different order that we can't rebuild from these; then we record his
+     * whole list instead.
+     *
+     * @param before The player's data before.
+     * @param after The player's data after.
+     * @return A map that describes the change; empty if there is none.
+     */
+    private static MapFileMap getChange(PlayerInfo before, PlayerInfo after) {
+        List<ChunkPosition> added = Lists.newArrayList(after.getHomeChunks());
+        added.removeAll(before.getHomeChunks());
+
+        List<ChunkPosition> removed = Lists.newArrayList(before.getHomeChunks());
+        removed.removeAll(after.getHomeChunks());
+
+        Set<ChunkPosition> historicalAdded = Sets.newHashSet(after.getHistoricalHomeChunks());
+        historicalAdded.removeAll(before.getHistoricalHomeChunks());
+        historicalAdded.removeAll(after.getHomeChunks());
+
+        List<ChunkPosition> rebuilt = Lists.newArrayList(before.getHomeChunks());
+        rebuilt.removeAll(removed);
+        rebuilt.addAll(added);
+
+        MapFileMap change = new MapFileMap();
+
+        if (!rebuilt.equals(after.getHomeChunks())) {
+            change.put("homes", after.getHomeChunks());
+        } else {
+            if (!added.isEmpty()) {
+                change.put("added", added);
+            }
+
+            if (!removed.isEmpty()) {
+                change.put("removed", removed);
+            }
+        }
+
+        if (!historicalAdded.isEmpty()) {
+            change.put("historicalAdded", historicalAdded);
+        }
+
+        return change;
+    }
+
+    /**
+     * This method deletes the backups before the oldest full backup we are to
+     * keep.
+     */
+    private void deleteOldChains() {
+        List<File> fullBackups = Lists.newArrayList();
+
+        for (File file : listFiles(directory)) {
+            if (isFullBackup(file)) {
+                fullBackups.add(file);
+            }
+        }
+
+        if (fullBackups.size() > chainsKept) {
+            long oldestKept = getTime(fullBackups.get(fullBackups.size() - chainsKept));
+
+            for (File file : listFiles(directory)) {
+                if (getTime(file) < oldestKept) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Restoring
+    /**
+     * This method rebuilds the player data as it was backed up at a given
+     * time. We load the last full backup taken at or before that time, and
+     * apply each delta that followed it, up to that time.
+     *
+     * @param directory The directory that holds the backups.
+     * @param time The time wanted, in milliseconds since 1970.
+     * @return The player data, keyed by player name.
+     * @throws IllegalArgumentException If there is no backup that old.
+     */
+    public static Map<String, PlayerInfo> restore(File directory, long time) {
+        List<File> chain = Lists.newArrayList();
+
+        for (File file : listFiles(directory)) {
+            if (getTime(file) > time) {
+                break;
+            } else if (isFullBackup(file)) {
+                chain.clear();
+                chain.add(file);
+            } else if (!chain.isEmpty()) {
+                chain.add(file);
+            }
+        }
+
+        if (chain.isEmpty()) {
+            throw new IllegalArgumentException(String.format(
+                    "There is no backup in '%s' taken by %tc.", directory, time));
+        }
+
+        Map<String, PlayerInfo> infos = Maps.newHashMap();
+        MapFileMap.read(chain.get(0), PlayerInfo.class, infos);
+
+        for (File deltaFile : chain.subList(1, chain.size())) {
+            MapFileMap delta = MapFileMap.read(deltaFile);
+
+            for (String playerName : delta.keySet()) {
+                PlayerInfo before = infos.get(playerName);
+                infos.put(playerName, applyChange(
+                        before != null ? before : new PlayerInfo(),
+                        delta.getMapFileMap(playerName)));
+            }
+        }
+
+        return infos;
+    }
+
+    /**
+     * This method applies the change to one player that getChange() recorded.
+     *
+     * @param before The player's data before the change.
+     * @param change The change to apply.
+     * @return A new PlayerInfo with the player's data after the change.
+     */
+    private static PlayerInfo applyChange(PlayerInfo before, MapFileMap change) {
+        List<ChunkPosition> homeChunks = Lists.newArrayList(before.getHomeChunks());
+        Set<ChunkPosition> historicalHomeChunks = Sets.newHashSet(before.getHistoricalHomeChunks());
+
+        if (change.containsKey("homes")) {
+            homeChunks = change.getList("homes", ChunkPosition.class);
+        }
+
+        if (change.containsKey("removed")) {
+            homeChunks.removeAll(change.getList("removed", ChunkPosition.class));
+        }
+
+        if (change.containsKey("added")) {
+            homeChunks.addAll(change.getList("added", ChunkPosition.class));
+        }
+
+        if (change.containsKey("historicalAdded")) {
+            historicalHomeChunks.addAll(change.getList("historicalAdded", ChunkPosition.class));
+        }
+
+        // every home chunk is a historical home chunk too
+        historicalHomeChunks.addAll(homeChunks);
+        return new PlayerInfo(homeChunks, historicalHomeChunks);
+    }
+
+    ////////////////////////////////
+    // Files
+    private File getBackupFile(long time, String kind) {
+        return new File(directory, String.format("HomeSoil-%013d-%s.txt", time, kind));
+    }
+
+    /**
+     * This method returns the backup files in a directory, oldest first.
+     *
+     * @param directory The directory to look in.
+     * @return The backup files; empty if there are none.
+     */
+    private static List<File> listFiles(File directory) {
+        List<File> files = Lists.newArrayList();
+        File[] contents = directory.listFiles();
+
+        if (contents != null) {
+            for (File file : contents) {
+                if (fileNamePattern.matcher(file.getName()).matches()) {
+                    files.add(file);
+                }
+            }
+        }
+
+        // the times are zero padded, so this puts them in order.
+        Collections.sort(files);
+        return files;
+    }
+
+    private static long getTime(File backupFile) {
+        Matcher m = fileNamePattern.matcher(backupFile.getName());
+        Preconditions.checkArgument(m.matches(), "'%s' is not a backup file.", backupFile);
+        return Long.parseLong(m.group(1));
+    }
+
+    private static boolean isFullBackup(File backupFile) {
+        return backupFile.getName().endsWith("-full.txt");
+    }
+}
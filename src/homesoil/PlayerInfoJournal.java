@@ -0,0 +1,303 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.io.*;
+import java.io.*;
+import java.util.*;
+import org.bukkit.plugin.*;
+import org.bukkit.scheduler.*;
+
+/**
+ * PlayerInfoJournal records each change to the home chunks of any player as a
+ * single line appended to a journal file, so we need not rewrite the whole
+ * player file for each change. The records made during one tick are written
+ * together at the start of the next, with just one sync to disk.
+ *
+ * Now and then the player data is saved to the PlayerInfoStore by compact(),
+ * and the journal is then emptied.
+ *
+ * On startup, replay() applies the journal to the player data loaded from the
+ * store. Replaying a record that the store already reflects does no harm, so
+ * it's okay if we crash after saving the store but before emptying the
+ * journal.
+ *
+ * All the file access happens on the BackgroundSaver's thread; the other
+ * methods must be called on the main server thread.
+ *
+ * @author DanJ
+ */
+public final class PlayerInfoJournal implements PlayerInfo.ChangeListener {
+
+    private final Plugin plugin;
+    private final BackgroundSaver saver;
+    private final File journalFile;
+    private final PlayerInfoStore store;
+    private List<String> pendingRecords = Lists.newArrayList();
+    // this is used only on the saver thread
+    private FileOutputStream journalStream;
+
+    public PlayerInfoJournal(Plugin plugin, BackgroundSaver saver, File journalFile, PlayerInfoStore store) {
+        this.plugin = Preconditions.checkNotNull(plugin);
+        this.saver = Preconditions.checkNotNull(saver);
+        this.journalFile = Preconditions.checkNotNull(journalFile);
+        this.store = Preconditions.checkNotNull(store);
+    }
+
+    ////////////////////////////////
+    // Recording
+    @Override
+    public void homeChunkSet(String playerName, ChunkPosition homeChunk, List<ChunkPosition> previousHomeChunks) {
+        record("set", playerName, homeChunk);
+    }
+
+    @Override
+    public void homeChunkAdded(String playerName, ChunkPosition homeChunk) {
+        record("add", playerName, homeChunk);
+    }
+
+    @Override
+    public void homeChunkRemoved(String playerName, ChunkPosition homeChunk) {
+        record("remove", playerName, homeChunk);
+    }
+
+    /**
+     * This method queues a record to be written to the journal; if it is the
+     * first one this tick, this also schedules the commit for the next tick.
+     *
+     * @param operation The name of the change that was made.
+     * @param playerName The player whose home chunks were changed.
+     * @param homeChunk The chunk that was set, added or removed.
+     */
+    private void record(String operation, String playerName, ChunkPosition homeChunk) {
+        String record = Joiner.on('=').join(
+                operation,
+                MapFileMap.escape(playerName),
+                homeChunk.x,
+                homeChunk.z,
+                MapFileMap.escape(homeChunk.worldName));
+
+        if (pendingRecords.isEmpty()) {
+            new BukkitRunnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            }.runTask(plugin);
+        }
+
+        pendingRecords.add(record);
+    }
+
+    /**
+     * This method hands the records made so far to the saver thread, which
+     * appends them to the journal and syncs it to disk.
+     */
+    public void commit() {
+        if (!pendingRecords.isEmpty()) {
+            final List<String> batch = pendingRecords;
+            pendingRecords = Lists.newArrayList();
+
+            saver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    append(batch);
+                }
+            });
+        }
+    }
+
+    /**
+     * This method commits any pending records, then saves a complete
+     * snapshot of the player data to the store, and finally empties the
+     * journal. The snapshot must contain every change recorded so far. The
+     * store syncs what it writes before save() returns, so the journal is
+     * not emptied until the snapshot is safely on disk.
+     *
+     * @param snapshot The player data to write, as from
+     * PlayerInfoMap.takeSaveSnapshot().
+     * @param afterSave Something to run on the saver thread once the snapshot
+     * is saved and the journal emptied, or null; if the save fails, this is
+     * not run.
+     */
+    public void compact(final Map<String, ? extends MapFileMap.Storable> snapshot, final Runnable afterSave) {
+        commit();
+
+        saver.execute(new Runnable() {
+            @Override
+            public void run() {
+                store.save(snapshot);
+                truncate();
+
+                if (afterSave != null) {
+                    afterSave.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * This method closes the journal file and the store; the saver must still
+     * be open, as this does its work there. Any uncommitted records are
+     * committed first.
+     */
+    public void close() {
+        commit();
+
+        saver.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeStream();
+                store.close();
+            }
+        });
+    }
+
+    ////////////////////////////////
+    // Replay
+    /**
+     * This method applies each record in the journal to the player infos
+     * given; we do this after loading the store at startup. Any record
+     * we can't parse is skipped.
+     *
+     * If the server crashed while writing a record, the journal ends with
+     * part of a line; that part may still parse, so we apply only lines that
+     * end with a newline. We also cut the partial line off the file, so that
+     * the next record appended doesn't run on from it.
+     *
+     * @param playerInfos The player data to update.
+     * @return The number of records applied.
+     */
+    public int replay(PlayerInfoMap playerInfos) {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+
+        int applied = 0;
+
+        try {
+            byte[] bytes = Files.toByteArray(journalFile);
+            int length = bytes.length;
+
+            while (length > 0 && bytes[length - 1] != '\n') {
+                --length;
+            }
+
+            if (length < bytes.length) {
+                RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+
+                try {
+                    file.setLength(length);
+                } finally {
+                    file.close();
+                }
+            }
+
+            String text = new String(bytes, 0, length, Charsets.UTF_8);
+
+            for (String line : Splitter.on('\n').omitEmptyStrings().split(text)) {
+                if (replayRecord(playerInfos, line)) {
+                    ++applied;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return applied;
+    }
+
+    /**
+     * This method applies a single journal record to the player infos.
+     *
+     * @param playerInfos The player data to update.
+     * @param record The text of the record.
+     * @return True if the record was applied, false if it was not valid.
+     */
+    private static boolean replayRecord(PlayerInfoMap playerInfos, String record) {
+        String[] parts = record.split("=");
+
+        if (parts.length != 5) {
+            return false;
+        }
+
+        String playerName = MapFileMap.unescape(parts[1]);
+        ChunkPosition homeChunk;
+
+        try {
+            homeChunk = new ChunkPosition(
+                    Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]),
+                    MapFileMap.unescape(parts[4]));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        if (parts[0].equals("set")) {
+            playerInfos.getOrCreateInfo(playerName).setHomeChunk(homeChunk);
+        } else if (parts[0].equals("add")) {
+            playerInfos.getOrCreateInfo(playerName).addHomeChunk(homeChunk);
+        } else if (parts[0].equals("remove")) {
+            // if this would remove the last chunk, the record that follows
+            // will set a new one.
+            playerInfos.getOrCreateInfo(playerName).tryRemoveHomeChunk(homeChunk);
+        } else {
+            return false;
+        }
+
+        return true;
+    }
+
+    ////////////////////////////////
+    // File Access
+    //
+    // These methods run on the saver thread only.
+    /**
+     * This method appends records to the journal file and syncs it.
+     *
+     * @param records The records to write, one per line.
+     */
+    private void append(List<String> records) {
+        StringBuilder b = new StringBuilder();
+
+        for (String record : records) {
+            b.append(record).append('\n');
+        }
+
+        try {
+            if (journalStream == null) {
+                journalStream = new FileOutputStream(journalFile, true);
+            }
+
+            journalStream.write(b.toString().getBytes(Charsets.UTF_8));
+            journalStream.getFD().sync();
+        } catch (IOException e) {
+            closeStream();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method empties the journal file.
+     */
+    private void truncate() {
+        closeStream();
+
+        try {
+            new FileOutputStream(journalFile).close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * This method closes the journal stream if it is open; it will be
+     * reopened by the next append.
+     */
+    private void closeStream() {
+        if (journalStream != null) {
+            Closeables.closeQuietly(journalStream);
+            journalStream = null;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package homesoil;
 
 import static com.google.common.base.Objects.*;
+import com.google.common.base.*;
 import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import org.bukkit.*;
 import org.bukkit.block.*;
 import org.bukkit.command.CommandSender;
@@ -20,8 +23,32 @@ public final class PlayerInfoMap {
     public final static String COMMON_PLAYER_NAME = "COMMONS";
     
     private final Map<String, PlayerInfo> infos = Maps.newHashMap();
-    private final Map<ChunkPosition, String> homeChunkOwners = Maps.newHashMap();
-    private int homeChunkOwnersGenCount = 0;
+    // entries from a lazy load that have not been parsed yet, and players
+    // evicted to cold storage; when we need one we remove it from here and
+    // put its PlayerInfo in 'infos'. This is changed only on the main thread,
+    // but prefetch() reads it from others.
+    private final Map<String, UnloadedPlayerInfo> unloadedInfos = Maps.newConcurrentMap();
+    // PlayerInfos read by prefetch(), keyed by the entry they were read from;
+    // if the entry is replaced, its PlayerInfo here is just never used. These
+    // are dropped when the player's login fails, and this never holds more
+    // than MAXIMUM_PREFETCHED_INFOS, in case a player never finishes logging
+    // in and we are not told.
+    private final Map<UnloadedPlayerInfo, PlayerInfo> prefetchedInfos = Maps.newConcurrentMap();
+    private static final int MAXIMUM_PREFETCHED_INFOS = 1024;
+    // the owners of the home chunks in each world, keyed by world name; if
+    // the indexes are open, each of these is a HomeChunkOwnerIndex, and
+    // otherwise a HomeChunkOwnerMap. These are updated as each home chunk
+    // changes hands, but are stale after loading, until buildHomeChunkOwners()
+    // is called.
+    private Map<String, HomeChunkOwners> homeChunkOwners = Maps.newHashMap();
+    private File homeChunkOwnerIndexDirectory;
+    private boolean homeChunkOwnersStale;
+    // every chunk that has ever been a home chunk; null until it has been
+    // built. While it is being built on another thread, the chunks added on
+    // this one are kept in 'historicalHomeChunksAdded' instead.
+    private ChunkPositionSet historicalHomeChunks;
+    private Future<ChunkPositionSet> historicalHomeChunksBuilder;
+    private ChunkPositionSet historicalHomeChunksAdded;
     private final Random random = new Random();
 
     /**
@@ -40,7 +67,7 @@ public final class PlayerInfoMap {
     public PlayerInfo get(OfflinePlayer player) {
         String name = player.getName();
 
-        PlayerInfo info = infos.get(name);
+        PlayerInfo info = getLoadedInfo(name);
 
         if (info == null) {
             Player onlinePlayer = player.getPlayer();
@@ -52,8 +79,10 @@ public final class PlayerInfoMap {
             }
 
             info = new PlayerInfo();
+            info.attach(name, changeDispatcher);
             pickNewHomeChunk(onlinePlayer.getWorld(), info);
             infos.put(name, info);
+            scoreMessages = null;
         }
 
         return info;
@@ -70,7 +99,7 @@ public final class PlayerInfoMap {
     public Set<OfflinePlayer> getKnownPlayers() {
         ImmutableSet.Builder<OfflinePlayer> b = ImmutableSet.builder();
 
-        for (String playerName : infos.keySet()) {
+        for (String playerName : Iterables.concat(infos.keySet(), unloadedInfos.keySet())) {
             // getOfflinePlayer() returns non-null for any name;
             // you can create arbitrary 'offline player' objects.
             b.add(Bukkit.getOfflinePlayer(playerName));
@@ -88,7 +117,8 @@ public final class PlayerInfoMap {
      * @return True if the player has an PlayerInfo assigned.
      */
     public boolean isKnown(OfflinePlayer player) {
-        return infos.containsKey(player.getName());
+        String name = player.getName();
+        return infos.containsKey(name) || unloadedInfos.containsKey(name);
     }
 
     /**
@@ -122,84 +152,653 @@ public final class PlayerInfoMap {
      * @param newChunk The new chunk to give.
      */
     public void addHomeChunk(OfflinePlayer player, ChunkPosition newChunk) {
-        String name = player.getName();
+        getOrCreateInfo(player.getName()).addHomeChunk(newChunk);
+    }
 
-        PlayerInfo info = infos.get(name);
+    /**
+     * This method returns the PlayerInfo for the player named, and creates an
+     * empty one if there is none. Unlike get(), this does not assign a home
+     * chunk to a new PlayerInfo, so the caller must do so.
+     *
+     * @param name The name of the player.
+     * @return The existing or new PlayerInfo.
+     */
+    PlayerInfo getOrCreateInfo(String name) {
+        PlayerInfo info = getLoadedInfo(name);
 
         if (info == null) {
             info = new PlayerInfo();
+            info.attach(name, changeDispatcher);
             infos.put(name, info);
+            scoreMessages = null;
+        }
+
+        return info;
+    }
+
+    /**
+     * This method returns the PlayerInfo for the player named, if there is
+     * one. If the player's entry was lazy loaded and not yet parsed, or was
+     * evicted, this reads it now.
+     *
+     * @param name The name of the player.
+     * @return The player's info, or null if he has none.
+     */
+    private PlayerInfo getLoadedInfo(String name) {
+        playersUsedSinceEviction.add(name);
+
+        PlayerInfo info = infos.get(name);
+
+        if (info == null) {
+            UnloadedPlayerInfo entry = unloadedInfos.remove(name);
+
+            if (entry != null) {
+                info = prefetchedInfos.remove(entry);
+
+                if (info == null) {
+                    info = entry.toPlayerInfo();
+                }
+
+                info.attach(name, changeDispatcher);
+                infos.put(name, info);
+            }
+        }
+
+        return info;
+    }
+
+    /**
+     * This method reads the PlayerInfo of the player named, if it has been
+     * lazy loaded or evicted, so that it is ready when the player joins. This
+     * may be called on any thread; the PlayerInfo is put into the map only
+     * when it is next asked for, on the main thread.
+     *
+     * @param name The name of the player.
+     */
+    public void prefetch(String name) {
+        UnloadedPlayerInfo entry = unloadedInfos.get(name);
+
+        if (entry != null && !prefetchedInfos.containsKey(entry)) {
+            if (prefetchedInfos.size() >= MAXIMUM_PREFETCHED_INFOS) {
+                prefetchedInfos.clear();
+            }
+
+            prefetchedInfos.put(entry, entry.toPlayerInfo());
+        }
+    }
+
+    /**
+     * This method discards the PlayerInfo prefetch() read for the player
+     * named, if it has not been used; we call this when the player's login
+     * fails, or when he quits.
+     *
+     * @param name The name of the player.
+     */
+    public void discardPrefetched(String name) {
+        UnloadedPlayerInfo entry = unloadedInfos.get(name);
+
+        if (entry != null) {
+            prefetchedInfos.remove(entry);
+        }
+    }
+
+    /**
+     * This method returns the home chunks of the player named, without
+     * reading his entry if it has been lazy loaded or evicted.
+     *
+     * @param name The name of the player.
+     * @return The player's home chunks; empty if the player is not known.
+     */
+    private List<ChunkPosition> getHomeChunksOf(String name) {
+        PlayerInfo info = infos.get(name);
+
+        if (info != null) {
+            return info.getHomeChunks();
+        }
+
+        UnloadedPlayerInfo entry = unloadedInfos.get(name);
+
+        if (entry != null) {
+            return entry.getHomeChunks();
         }
 
-        info.addHomeChunk(newChunk);
+        return Collections.emptyList();
     }
 
     /**
      * This method returns a set containing each chunk that is the home for any
-     * player. The set is immutable and lazy allocated; a new one is allocated
-     * if the player infos are ever changed.
+     * player. The set is an unmodifiable view, and changes as the player infos
+     * do; it is made up of the owner maps of each world.
      *
-     * @return An immutable set of chunks that are occupied by a player.
+     * @return An unmodifiable set of chunks that are occupied by a player.
      */
     public Set<ChunkPosition> getHomeChunks() {
-        updateHomeChunkOwnersIfNeeded();
-        return homeChunkOwners.keySet();
+        return homeChunks;
     }
+    private final Set<ChunkPosition> homeChunks = new AbstractSet<ChunkPosition>() {
+        @Override
+        public boolean contains(Object o) {
+            if (o instanceof ChunkPosition) {
+                return !identifyChunkOwner((ChunkPosition) o).isEmpty();
+            }
+
+            return false;
+        }
+
+        @Override
+        public Iterator<ChunkPosition> iterator() {
+            buildHomeChunkOwners();
+
+            List<Iterator<ChunkPosition>> iterators = Lists.newArrayList();
+
+            for (HomeChunkOwners owners : homeChunkOwners.values()) {
+                iterators.add(owners.keySet().iterator());
+            }
+
+            return Iterators.unmodifiableIterator(Iterators.concat(iterators.iterator()));
+        }
+
+        @Override
+        public int size() {
+            buildHomeChunkOwners();
+
+            int size = 0;
+
+            for (HomeChunkOwners owners : homeChunkOwners.values()) {
+                size += owners.size();
+            }
+
+            return size;
+        }
+    };
 
     /**
      * This method returns a set containing each chunk that has ever been a home
-     * chunk for anyone, even if it no longer is.
+     * chunk for anyone, even if it no longer is. The set is an unmodifiable
+     * view, and grows as players gain new home chunks.
      *
-     * @return An immutable set of chunks that have ever been occupied.
+     * @return An unmodifiable set of chunks that have ever been occupied.
      */
     public Set<ChunkPosition> getHistoricalHomeChunks() {
-        // This is rare enough that I'm sure we don't need to optimize,
-        // so we'll just build the set every time.
+        return getHistoricalHomeChunkSet().unmodifiableView();
+    }
 
-        ImmutableSet.Builder<ChunkPosition> b = ImmutableSet.builder();
+    /**
+     * This method returns a set containing each chunk in one world that has
+     * ever been a home chunk for anyone. This is an unmodifiable view too, so
+     * its size and contents can be checked as often as needed without
+     * copying anything.
+     *
+     * @param worldName The name of the world wanted.
+     * @return An unmodifiable set of chunks in that world that have ever been
+     * occupied.
+     */
+    public Set<ChunkPosition> getHistoricalHomeChunks(String worldName) {
+        return getHistoricalHomeChunkSet().inWorld(worldName);
+    }
+
+    /**
+     * This method returns the set of historical home chunks. If
+     * buildHistoricalHomeChunks() has started building it, this waits for
+     * that to finish; if not, we build it here. After that, the set is
+     * updated as players gain home chunks. Since players never lose
+     * historical home chunks, nothing is ever removed.
+     *
+     * @return The set of chunks.
+     */
+    private ChunkPositionSet getHistoricalHomeChunkSet() {
+        if (historicalHomeChunks == null) {
+            if (historicalHomeChunksBuilder == null) {
+                buildHistoricalHomeChunks(MoreExecutors.sameThreadExecutor());
+            }
+
+            try {
+                historicalHomeChunks = Uninterruptibles.getUninterruptibly(historicalHomeChunksBuilder);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            } finally {
+                historicalHomeChunksBuilder = null;
+            }
+
+            historicalHomeChunks.addAll(historicalHomeChunksAdded);
+            historicalHomeChunksAdded = null;
+        }
+
+        return historicalHomeChunks;
+    }
+
+    /**
+     * This method starts building the set of historical home chunks on the
+     * executor given, merging the sets of every player. This includes the
+     * players whose entries have been lazy loaded and not parsed, or have
+     * been evicted; we read just the historical chunks of those, and leave
+     * the rest unread. Call this once loading is done, so that the first
+     * player to join need not wait for it.
+     *
+     * @param executor The executor to build the set on.
+     */
+    public void buildHistoricalHomeChunks(Executor executor) {
+        if (historicalHomeChunks != null || historicalHomeChunksBuilder != null) {
+            return;
+        }
+
+        // the snapshots and unloaded entries never change, so the builder can
+        // read them while this thread goes on changing the players.
+        final List<Set<ChunkPosition>> loadedSets = Lists.newArrayListWithCapacity(infos.size());
+        final List<UnloadedPlayerInfo> entries = ImmutableList.copyOf(unloadedInfos.values());
 
         for (PlayerInfo info : infos.values()) {
-            b.addAll(info.getHistoricalHomeChunks());
+            loadedSets.add(info.snapshot().getHistoricalHomeChunks());
         }
 
-        return b.build();
+        FutureTask<ChunkPositionSet> builder = new FutureTask<ChunkPositionSet>(new Callable<ChunkPositionSet>() {
+            @Override
+            public ChunkPositionSet call() {
+                ChunkPositionSet set = new ChunkPositionSet();
+
+                for (Set<ChunkPosition> loadedSet : loadedSets) {
+                    set.addAll(loadedSet);
+                }
+
+                for (UnloadedPlayerInfo entry : entries) {
+                    set.addAll(entry.getHistoricalHomeChunks());
+                }
+
+                return set;
+            }
+        });
+
+        historicalHomeChunksBuilder = builder;
+        historicalHomeChunksAdded = new ChunkPositionSet();
+        executor.execute(builder);
+    }
+
+    /**
+     * This method adds a chunk to the set of historical home chunks, if we
+     * have built that or are building it.
+     *
+     * @param chunk The chunk to add.
+     */
+    private void addHistoricalHomeChunk(ChunkPosition chunk) {
+        if (historicalHomeChunks != null) {
+            historicalHomeChunks.add(chunk);
+        } else if (historicalHomeChunksAdded != null) {
+            historicalHomeChunksAdded.add(chunk);
+        }
     }
 
     /**
      * This obtains the name of the owner of the chunk indicated; if nobody owns
-     * the chunk this returns the empty string.
+     * the chunk this returns the empty string. Only the owners of the chunk's
+     * own world are looked at.
      *
      * @param position The chunk to be checked.
      * @return The name of the chunk owner, or "".
      */
     public String identifyChunkOwner(ChunkPosition position) {
-        updateHomeChunkOwnersIfNeeded();
-        return firstNonNull(homeChunkOwners.get(position), "");
+        return identifyChunkOwner(position.worldName, position.x, position.z);
+    }
+
+    /**
+     * This obtains the name of the owner of the chunk at the co-ordinates
+     * given, like identifyChunkOwner(ChunkPosition), but without creating a
+     * ChunkPosition; this is for onPlayerMove(), which checks each chunk a
+     * player walks into.
+     *
+     * @param worldName The name of the world that contains the chunk.
+     * @param x The X co-ordinate of the chunk.
+     * @param z The Z co-ordinate of the chunk.
+     * @return The name of the chunk owner, or "".
+     */
+    public String identifyChunkOwner(String worldName, int x, int z) {
+        buildHomeChunkOwners();
+
+        HomeChunkOwners owners = homeChunkOwners.get(worldName);
+        return owners != null ? firstNonNull(owners.getOwner(worldName, x, z), "") : "";
+    }
+
+    /**
+     * This method returns the map that holds the owners of the home chunks
+     * in a world, and creates it if there is none yet. If the owner indexes
+     * are open, a new world gets an index file of its own.
+     *
+     * @param worldName The name of the world.
+     * @return The owners of the home chunks in that world.
+     */
+    private HomeChunkOwners getHomeChunkOwners(String worldName) {
+        HomeChunkOwners owners = homeChunkOwners.get(worldName);
+
+        if (owners == null) {
+            if (homeChunkOwnerIndexDirectory != null) {
+                owners = HomeChunkOwnerIndex.open(getHomeChunkOwnerIndexFile(worldName));
+                // an old index left for a world we no longer had chunks in
+                // can't be trusted.
+                owners.clear();
+            } else {
+                owners = new HomeChunkOwnerMap(worldName);
+            }
+
+            homeChunkOwners.put(worldName, owners);
+        }
+
+        return owners;
+    }
+
+    private File getHomeChunkOwnerIndexFile(String worldName) {
+        return new File(homeChunkOwnerIndexDirectory, worldName + ".owners");
+    }
+
+    private static File getSavedStampsFile(File directory) {
+        return new File(directory, "saved.stamps");
+    }
+
+    /**
+     * This method makes the map keep its home chunk owners in index files in
+     * the directory given, one for each world, rather than only in memory. If
+     * the indexes were closed cleanly and their stamps match the players as
+     * they were loaded, they still hold the owners of those players, so we
+     * use them as they are; otherwise we rebuild them now. Call this after
+     * loading, but before any home chunk has changed hands.
+     *
+     * To know what the stamps of the players are, we look first in the file
+     * writeHomeChunkOwnerStamps() writes after each save; if the store's
+     * version is the same as it was then, the players are those that were
+     * saved, and we need not look at their home chunks. If not, we work the
+     * stamps out from every home chunk, and record them for next time.
+     *
+     * @param directory The directory that holds the index files.
+     * @param storeVersion The version of the store the players were loaded
+     * from, as PlayerInfoStore.getVersion() gives.
+     */
+    public void openHomeChunkOwnerIndexes(File directory, long storeVersion) {
+        Preconditions.checkState(homeChunkOwnerIndexDirectory == null, "The home chunk owner indexes are already open.");
+
+        directory.mkdirs();
+        homeChunkOwnerIndexDirectory = directory;
+
+        // if the owners were worked out in memory since the players were
+        // loaded, we've lost track of what changed since, and must rebuild.
+        // We also rebuild if the indexes don't match the players, as when the
+        // player data was restored or edited while the server was stopped.
+        boolean usable = homeChunkOwnersStale;
+        Map<String, Long> homeChunkStamps = readHomeChunkOwnerStamps(directory, storeVersion);
+        boolean stampsSaved = homeChunkStamps != null;
+
+        if (!stampsSaved) {
+            homeChunkStamps = stampHomeChunks();
+        }
+
+        Map<String, HomeChunkOwners> indexes = Maps.newHashMap();
+
+        for (Map.Entry<String, Long> e : homeChunkStamps.entrySet()) {
+            File file = getHomeChunkOwnerIndexFile(e.getKey());
+            usable &= file.exists();
+
+            HomeChunkOwnerIndex index = HomeChunkOwnerIndex.open(file);
+            usable &= index.wasClosedCleanly() && index.getStamp() == e.getValue();
+            indexes.put(e.getKey(), index);
+        }
+
+        homeChunkOwnersStale = !usable;
+        homeChunkOwners = indexes;
+        buildHomeChunkOwners();
+
+        if (!stampsSaved) {
+            writeHomeChunkOwnerStamps(directory, storeVersion, getHomeChunkOwnerStamps());
+        }
+    }
+
+    /**
+     * This method returns the stamp of each home chunk owner index as it is
+     * now, keyed by world name. Taken with a snapshot of the players, these
+     * are the stamps those players will have when they are next loaded.
+     *
+     * @return The stamps, or null if the indexes are not open.
+     */
+    public Map<String, Long> getHomeChunkOwnerStamps() {
+        if (homeChunkOwnerIndexDirectory == null) {
+            return null;
+        }
+
+        buildHomeChunkOwners();
+
+        Map<String, Long> stamps = Maps.newHashMap();
+
+        for (Map.Entry<String, HomeChunkOwners> e : homeChunkOwners.entrySet()) {
+            stamps.put(e.getKey(), ((HomeChunkOwnerIndex) e.getValue()).getStamp());
+        }
+
+        return stamps;
+    }
+
+    /**
+     * This method records the stamps of the home chunk owner indexes along
+     * with the version of the store they match; call this once the store has
+     * saved the players the stamps were taken with. This may be called on
+     * any thread.
+     *
+     * @param directory The directory that holds the index files.
+     * @param storeVersion The version of the store, as
+     * PlayerInfoStore.getVersion() gives, after the save.
+     * @param stamps The stamps, from getHomeChunkOwnerStamps(); if this is
+     * null, we delete any stamps recorded before.
+     */
+    public static void writeHomeChunkOwnerStamps(File directory, long storeVersion, Map<String, Long> stamps) {
+        File file = getSavedStampsFile(directory);
+
+        if (stamps == null) {
+            file.delete();
+            return;
+        }
+
+        Map<String, Object> contents = Maps.newHashMap();
+        contents.put("version", storeVersion);
+        contents.put("stamps", stamps);
+        MapFileMap.write(file, contents);
+    }
+
+    /**
+     * This method reads the stamps writeHomeChunkOwnerStamps() recorded, if
+     * they were recorded for the version of the store given.
+     *
+     * @param directory The directory that holds the index files.
+     * @param storeVersion The version of the store now.
+     * @return The stamps, keyed by world name, or null if there are none for
+     * this version of the store.
+     */
+    private static Map<String, Long> readHomeChunkOwnerStamps(File directory, long storeVersion) {
+        File file = getSavedStampsFile(directory);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            MapFileMap contents = MapFileMap.read(file);
+
+            if (Long.parseLong(contents.getString("version")) != storeVersion) {
+                return null;
+            }
+
+            MapFileMap savedStamps = contents.getMapFileMap("stamps");
+            Map<String, Long> stamps = Maps.newHashMap();
+
+            for (String worldName : savedStamps.keySet()) {
+                stamps.put(worldName, Long.parseLong(savedStamps.getString(worldName)));
+            }
+
+            return stamps;
+        } catch (RuntimeException e) {
+            // a damaged file just means we must work the stamps out again.
+            return null;
+        }
+    }
+
+    /**
+     * This method works out the stamp that the owner index of each world
+     * should have if it matches the players, as HomeChunkOwnerIndex.stampOf()
+     * describes. The home chunks are always in memory, but this still visits
+     * every one of them, so we do it only if no stamps were saved for the
+     * players we loaded.
+     *
+     * @return The stamp for each world that has home chunks, keyed by world
+     * name.
+     */
+    private Map<String, Long> stampHomeChunks() {
+        Map<String, Long> stamps = Maps.newHashMap();
+
+        for (Map.Entry<String, PlayerInfo> e : infos.entrySet()) {
+            addHomeChunkStamps(stamps, e.getKey(), e.getValue().getHomeChunks());
+        }
+
+        for (Map.Entry<String, UnloadedPlayerInfo> e : unloadedInfos.entrySet()) {
+            addHomeChunkStamps(stamps, e.getKey(), e.getValue().getHomeChunks());
+        }
+
+        return stamps;
+    }
+
+    private static void addHomeChunkStamps(Map<String, Long> stamps, String playerName, List<ChunkPosition> homeChunks) {
+        for (ChunkPosition homeChunk : homeChunks) {
+            Long stamp = stamps.get(homeChunk.worldName);
+            long chunkStamp = HomeChunkOwnerIndex.stampOf(playerName, homeChunk.x, homeChunk.z);
+            stamps.put(homeChunk.worldName, (stamp != null ? stamp : 0L) + chunkStamp);
+        }
+    }
+
+    /**
+     * This method brings the home chunk owner indexes up to date and closes
+     * them; after this the owners are kept in memory again.
+     */
+    public void closeHomeChunkOwnerIndexes() {
+        if (homeChunkOwnerIndexDirectory != null) {
+            buildHomeChunkOwners();
+
+            for (HomeChunkOwners owners : homeChunkOwners.values()) {
+                ((HomeChunkOwnerIndex) owners).close();
+            }
+
+            homeChunkOwnerIndexDirectory = null;
+            homeChunkOwners = Maps.newHashMap();
+            homeChunkOwnersStale = true;
+        }
     }
 
     /**
-     * This method checks the gen count to see if the home chunk owners map must
-     * be regenerated, and if it needs to, it regenerates that map.
+     * This method rebuilds the home chunk owners maps if they are stale, as
+     * they are after loading; after that, each change to a home chunk
+     * updates them in place. Call this once loading is done, so that looking
+     * up an owner never has to rebuild them; if it isn't, the first lookup or
+     * change does it.
      */
-    private void updateHomeChunkOwnersIfNeeded() {
-        int currentGenCount = PlayerInfo.getGenerationCount();
+    public void buildHomeChunkOwners() {
+        if (homeChunkOwnersStale) {
+            homeChunkOwnersStale = false;
 
-        if (homeChunkOwnersGenCount != currentGenCount) {
-            homeChunkOwnersGenCount = currentGenCount;
+            for (HomeChunkOwners owners : homeChunkOwners.values()) {
+                owners.clear();
+            }
 
-            homeChunkOwners.clear();
+            for (Map.Entry<String, UnloadedPlayerInfo> e : unloadedInfos.entrySet()) {
+                for (ChunkPosition homeChunk : e.getValue().getHomeChunks()) {
+                    getHomeChunkOwners(homeChunk.worldName).put(homeChunk, e.getKey());
+                }
+            }
 
             for (Map.Entry<String, PlayerInfo> e : infos.entrySet()) {
                 String playerName = e.getKey();
                 PlayerInfo info = e.getValue();
 
                 for (ChunkPosition homeChunk : info.getHomeChunks()) {
-                    homeChunkOwners.put(homeChunk, playerName);
+                    getHomeChunkOwners(homeChunk.worldName).put(homeChunk, playerName);
                 }
             }
         }
     }
 
+    /**
+     * This method records that a player no longer owns a home chunk. If
+     * someone else has already been given the chunk, we leave it to him.
+     *
+     * @param playerName The player who lost the chunk.
+     * @param homeChunk The chunk he lost.
+     */
+    private void removeHomeChunkOwner(String playerName, ChunkPosition homeChunk) {
+        HomeChunkOwners owners = homeChunkOwners.get(homeChunk.worldName);
+
+        if (owners != null && playerName.equals(owners.get(homeChunk))) {
+            owners.remove(homeChunk);
+        }
+    }
+
+    ////////////////////////////////
+    // Eviction
+    //
+    // We note each player whose info is asked for; a player who is offline
+    // and was not asked for between one eviction and the next is idle, and
+    // is evicted by the second.
+    private final Set<String> playersUsedSinceEviction = Sets.newHashSet();
+
+    /**
+     * This method begins moving the PlayerInfo of each idle player into cold
+     * storage. It returns snapshots of the idle players, which the caller
+     * writes to the ColdPlayerFile on another thread; the players stay in
+     * memory until installEvictedPlayers() is given the entries written.
+     *
+     * @return Snapshots of the idle players, keyed by name.
+     */
+    public Map<String, PlayerInfo> takeIdlePlayers() {
+        Map<String, PlayerInfo> idlePlayers = Maps.newHashMap();
+
+        for (Map.Entry<String, PlayerInfo> e : infos.entrySet()) {
+            String playerName = e.getKey();
+
+            if (!playersUsedSinceEviction.contains(playerName)
+                    && Bukkit.getPlayerExact(playerName) == null) {
+                idlePlayers.put(playerName, e.getValue().snapshot());
+            }
+        }
+
+        playersUsedSinceEviction.clear();
+        // any prefetched info not used by now belongs to a player who did
+        // not join after all.
+        prefetchedInfos.clear();
+        return idlePlayers;
+    }
+
+    /**
+     * This method finishes evicting the players takeIdlePlayers() returned,
+     * once they are written to cold storage; after this we keep only their
+     * home chunks in memory, and their infos are read back the next time
+     * anyone asks for them. The players evicted are saved as before.
+     *
+     * A player who was asked for or changed since his snapshot was taken, or
+     * who has come online, is not idle after all, and is left in memory; his
+     * entry in the file is just never used.
+     *
+     * @param entries The entries written for the idle players, keyed by name.
+     * @return The number of players evicted.
+     */
+    public int installEvictedPlayers(Map<String, ColdPlayerFile.Entry> entries) {
+        int evictedCount = 0;
+
+        for (Map.Entry<String, ColdPlayerFile.Entry> e : entries.entrySet()) {
+            String playerName = e.getKey();
+            PlayerInfo info = infos.get(playerName);
+
+            if (info != null
+                    && info.getVersion() == e.getValue().getVersion()
+                    && !playersUsedSinceEviction.contains(playerName)
+                    && Bukkit.getPlayerExact(playerName) == null) {
+                unloadedInfos.put(playerName, e.getValue());
+                infos.remove(playerName);
+                ++evictedCount;
+            }
+        }
+
+        return evictedCount;
+    }
+
     ////////////////////////////////
     // Player Starts
     //
@@ -361,7 +960,7 @@ public final class PlayerInfoMap {
      * @param world The world the player will spawn in.
      */
     private ChunkPosition getInitialChunkPosition(World world) {
-        Set<ChunkPosition> oldHomes = getHistoricalHomeChunks();
+        Set<ChunkPosition> oldHomes = getHistoricalHomeChunks(world.getName());
         int numberOfHistoricalHomeChunks = oldHomes.size();
         int spawnRadiusInChunks = Math.max(1, (int) (Math.sqrt(numberOfHistoricalHomeChunks) * 16));
 
@@ -382,6 +981,11 @@ public final class PlayerInfoMap {
     ////////////////////////////////
     // Scoring
     //
+    // the messages sendScoresTo() sends; we build these only when a score or
+    // the set of known players has changed, so that a burst of players
+    // joining does not rank every player again for each of them.
+    private List<String> scoreMessages;
+
     /**
      * This method sends messages to the recipient given listing the high
      * scoring players. We report the top three scores, but this may be more
@@ -391,12 +995,29 @@ public final class PlayerInfoMap {
      * @param recipient The player to send the messages to.
      */
     public void sendScoresTo(CommandSender recipient) {
+        if (scoreMessages == null) {
+            scoreMessages = buildScoreMessages();
+        }
+
+        for (String msg : scoreMessages) {
+            recipient.sendMessage(msg);
+        }
+    }
+
+    /**
+     * This method ranks the players by score and builds the messages that
+     * sendScoresTo() sends.
+     *
+     * @return An immutable list of the messages.
+     */
+    private List<String> buildScoreMessages() {
+        ImmutableList.Builder<String> messages = ImmutableList.builder();
         OfflinePlayer[] players = Bukkit.getOfflinePlayers();
         List<Integer> scores = Lists.newArrayListWithCapacity(players.length);
 
         for (OfflinePlayer p : players) {
             if (isKnown(p) && !p.getName().equals(COMMON_PLAYER_NAME)) {
-                int score = get(p).getHomeChunks().size();
+                int score = getHomeChunksOf(p.getName()).size();
 
                 // We ignore players with only one chunk. That's
                 // what you start with!
@@ -414,15 +1035,16 @@ public final class PlayerInfoMap {
 
             for (OfflinePlayer p : players) {
                 if (isKnown(p) && !p.getName().equals(COMMON_PLAYER_NAME)) {
-                    int score = get(p).getHomeChunks().size();
+                    int score = getHomeChunksOf(p.getName()).size();
 
                     if (score == rankScore) {
-                        String msg = getScoreMessage(p, rank, score);
-                        recipient.sendMessage(msg);
+                        messages.add(getScoreMessage(p, rank, score));
                     }
                 }
             }
         }
+
+        return messages.build();
     }
 
     /**
@@ -445,16 +1067,165 @@ public final class PlayerInfoMap {
         return String.format(formats[rank], winner.getName(), score);
     }
     ////////////////////////////////
-    // Loading and Saving
+    // Change Notification
     //
-    private int loadedGenerationCount;
+    // Every change is applied to the home chunk owners maps and the set of
+    // historical home chunks, and the player is recorded in the dirty set of
+    // players changed since the last save, before the listeners are told of
+    // it.
+    private final Set<String> playersChangedSinceSave = Sets.newHashSet();
+    private final List<PlayerInfo.ChangeListener> changeListeners = Lists.newArrayList();
+    private final PlayerInfo.ChangeListener changeDispatcher = new PlayerInfo.ChangeListener() {
+        @Override
+        public void homeChunkSet(String playerName, ChunkPosition homeChunk, List<ChunkPosition> previousHomeChunks) {
+            markDirty(playerName);
+
+            for (ChunkPosition previousHomeChunk : previousHomeChunks) {
+                removeHomeChunkOwner(playerName, previousHomeChunk);
+            }
+
+            getHomeChunkOwners(homeChunk.worldName).put(homeChunk, playerName);
+            addHistoricalHomeChunk(homeChunk);
+
+            for (PlayerInfo.ChangeListener l : changeListeners) {
+                l.homeChunkSet(playerName, homeChunk, previousHomeChunks);
+            }
+        }
+
+        @Override
+        public void homeChunkAdded(String playerName, ChunkPosition homeChunk) {
+            markDirty(playerName);
+            getHomeChunkOwners(homeChunk.worldName).put(homeChunk, playerName);
+            addHistoricalHomeChunk(homeChunk);
+
+            for (PlayerInfo.ChangeListener l : changeListeners) {
+                l.homeChunkAdded(playerName, homeChunk);
+            }
+        }
+
+        @Override
+        public void homeChunkRemoved(String playerName, ChunkPosition homeChunk) {
+            markDirty(playerName);
+            removeHomeChunkOwner(playerName, homeChunk);
+
+            for (PlayerInfo.ChangeListener l : changeListeners) {
+                l.homeChunkRemoved(playerName, homeChunk);
+            }
+        }
+    };
 
+    /**
+     * This method records a change in the dirty set, and builds the home
+     * chunk owners maps if they are stale, so the change can be applied to
+     * them.
+     *
+     * @param playerName The player whose home chunks changed.
+     */
+    private void markDirty(String playerName) {
+        scoreMessages = null;
+        playersChangedSinceSave.add(playerName);
+        buildHomeChunkOwners();
+    }
+
+    /**
+     * This method registers a listener that will be told about every change
+     * to the home chunks of any PlayerInfo in this map.
+     *
+     * @param listener The listener to add.
+     */
+    public void addChangeListener(PlayerInfo.ChangeListener listener) {
+        changeListeners.add(Preconditions.checkNotNull(listener));
+    }
+
+    /**
+     * This method unregisters a listener added by addChangeListener().
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeChangeListener(PlayerInfo.ChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+    ////////////////////////////////
+    // Loading and Saving
+    //
     /**
      * This method populates the map with the contents of the player file.
      */
     public void load(File source) {
-        MapFileMap.read(source).copyInto(infos, PlayerInfo.class);
-        loadedGenerationCount = PlayerInfo.getGenerationCount();
+        load(source, null);
+    }
+
+    /**
+     * This method populates the map with the contents of the player file;
+     * if an executor is given, the players are parsed on its threads.
+     *
+     * @param source The player file to read.
+     * @param executor The executor to parse players on, or null.
+     */
+    public void load(File source, ExecutorService executor) {
+        Map<String, PlayerInfo> loaded = Maps.newHashMap();
+        MapFileMap.read(source, PlayerInfo.class, loaded, executor);
+        load(loaded);
+    }
+
+    /**
+     * This method populates the map with player infos loaded from somewhere
+     * else; the map takes ownership of the infos given.
+     *
+     * @param loaded The player infos to add, keyed by player name.
+     */
+    public void load(Map<String, PlayerInfo> loaded) {
+        for (Map.Entry<String, PlayerInfo> e : loaded.entrySet()) {
+            e.getValue().attach(e.getKey(), changeDispatcher);
+        }
+
+        infos.putAll(loaded);
+        historicalHomeChunks = null;
+        historicalHomeChunksBuilder = null;
+        historicalHomeChunksAdded = null;
+        homeChunkOwnersStale = true;
+        scoreMessages = null;
+    }
+
+    /**
+     * This method populates the map from the player file, but does not parse
+     * each player's entry until it is needed; until then we keep only the
+     * player's home chunks. This works only for text files; binary files are
+     * loaded in full, as load() does.
+     *
+     * The entries are read from a copy of the file; the caller must close
+     * what this returns once the map has been saved for the last time, to
+     * delete the copy.
+     *
+     * @param source The player file to read.
+     * @return The copy of the file to close later, or null if the file was
+     * loaded in full.
+     */
+    public Closeable loadLazily(File source) {
+        LazyPlayerFile lazy = LazyPlayerFile.openOrNull(source);
+
+        if (lazy == null) {
+            load(source);
+        } else {
+            loadUnloaded(lazy.getEntries());
+        }
+
+        return lazy;
+    }
+
+    /**
+     * This method populates the map with players whose data is kept
+     * elsewhere; each is made into a PlayerInfo only when it is needed.
+     *
+     * @param loaded The players to add, keyed by player name.
+     */
+    void loadUnloaded(Map<String, ? extends UnloadedPlayerInfo> loaded) {
+        unloadedInfos.putAll(loaded);
+        historicalHomeChunks = null;
+        historicalHomeChunksBuilder = null;
+        historicalHomeChunksAdded = null;
+        homeChunkOwnersStale = true;
+        scoreMessages = null;
     }
 
     /**
@@ -462,18 +1233,53 @@ public final class PlayerInfoMap {
      * whenever anything is changed.
      */
     public void save(File destination) {
-        MapFileMap.write(destination, infos);
-        loadedGenerationCount = PlayerInfo.getGenerationCount();
+        MapFileMap.write(destination, takeSaveSnapshot());
+    }
+
+    /**
+     * This method returns a copy of the player data that can be written out
+     * on another thread; this is cheap since the PlayerInfos share their
+     * collections with the copies until they are next changed.
+     *
+     * This counts as a save as far as shouldSave() is concerned, so the caller
+     * must actually write the snapshot out.
+     *
+     * @return An immutable map of snapshots of each PlayerInfo, and entries
+     * for any players that were lazy loaded and never parsed or that were
+     * evicted.
+     */
+    public Map<String, MapFileMap.Storable> takeSaveSnapshot() {
+        ImmutableMap.Builder<String, MapFileMap.Storable> b = ImmutableMap.builder();
+
+        for (Map.Entry<String, PlayerInfo> e : infos.entrySet()) {
+            b.put(e.getKey(), e.getValue().snapshot());
+        }
+
+        // entries never parsed, or evicted, are saved as they are; the saver
+        // reads them on its own thread.
+        b.putAll(unloadedInfos);
+
+        playersChangedSinceSave.clear();
+        return b.build();
+    }
+
+    /**
+     * This method returns the names of the players whose home chunks have
+     * changed since the last save; creating or loading a PlayerInfo does not
+     * count as a change.
+     *
+     * @return An unmodifiable view of the names; this changes as players do.
+     */
+    public Set<String> getPlayersChangedSinceSave() {
+        return Collections.unmodifiableSet(playersChangedSinceSave);
     }
 
     /**
-     * This method returns true if there might be changes to save; this checks
-     * the global generation count so its not entirely accurate, but it should
-     * never return false if there are changes to save.
+     * This method returns true if there are changes to save.
      *
      * @return True if save() should be called.
      */
     public boolean shouldSave() {
-        return loadedGenerationCount != PlayerInfo.getGenerationCount();
+        return !playersChangedSinceSave.isEmpty();
     }
 }
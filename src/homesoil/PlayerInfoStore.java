@@ -0,0 +1,52 @@
+package homesoil;
+
+import java.util.*;
+
+/**
+ * PlayerInfoStore is where the player data is kept between runs of the
+ * server. The HomeSoil file is the usual store, but the data can be kept in a
+ * database instead.
+ *
+ * The store is loaded on the main thread at startup. After that it is saved
+ * and closed only on the BackgroundSaver's thread, from snapshots taken by
+ * PlayerInfoMap.takeSaveSnapshot(). Changes made between saves are kept in the
+ * PlayerInfoJournal, so a store need not save them any sooner.
+ *
+ * @author DanJ
+ */
+public interface PlayerInfoStore {
+
+    /**
+     * This method loads the stored player data into the map given.
+     *
+     * @param playerInfos The map to load the players into.
+     * @return True if the data was not stored the way this store keeps it (as
+     * when converting from one store to another), so that it should be saved
+     * again at once.
+     */
+    boolean load(PlayerInfoMap playerInfos);
+
+    /**
+     * This method saves the player data given; the store may skip players
+     * that have not changed since it last saved them.
+     *
+     * @param snapshot The player data to save.
+     */
+    void save(Map<String, ? extends MapFileMap.Storable> snapshot);
+
+    /**
+     * This method returns a number that changes whenever the stored data
+     * does, even if it is changed while the server is stopped. This is worked
+     * out from the lengths and modification times of the files, so it is
+     * cheap, but no more reliable than those are.
+     *
+     * @return The version of the stored data.
+     */
+    long getVersion();
+
+    /**
+     * This method releases anything the store holds open; it is called after
+     * the last save.
+     */
+    void close();
+}
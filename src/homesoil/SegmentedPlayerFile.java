@@ -0,0 +1,225 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * SegmentedPlayerFile stores the player data in several files in a directory,
+ * rather than all in one HomeSoil file. Each player is assigned to a segment
+ * by the hash of his name. When we save, we rewrite only the segments that
+ * contain a player that changed since the last save; each segment is written
+ * by MapFileMap.write(), so it is replaced atomically.
+ *
+ * We spot unchanged players by comparing the snapshot being saved with the
+ * one last written: a snapshot carries the version of its PlayerInfo, so an
+ * unchanged player's snapshots have the same version.
+ *
+ * The segment count is part of each file's name; if the count is changed, we
+ * can still load the old files, and the first save writes every segment anew
+ * and deletes them.
+ *
+ * write() runs on the saver thread; the other methods are used on the main
+ * thread at startup, before any write is requested.
+ *
+ * @author DanJ
+ */
+public final class SegmentedPlayerFile {
+
+    private static final Pattern fileNamePattern = Pattern.compile("HomeSoil-(\\d+)-of-(\\d+)\\.txt");
+    private final File directory;
+    private final int segmentCount;
+    private final MapFileMap.Format format;
+    private final List<Map<String, MapFileMap.Storable>> writtenSegments;
+    private boolean hasStaleFiles = true;
+
+    public SegmentedPlayerFile(File directory, int segmentCount, MapFileMap.Format format) {
+        Preconditions.checkArgument(segmentCount > 0, "There must be at least one segment.");
+
+        this.directory = Preconditions.checkNotNull(directory);
+        this.segmentCount = segmentCount;
+        this.format = Preconditions.checkNotNull(format);
+        this.writtenSegments = Lists.newArrayList(Collections.<Map<String, MapFileMap.Storable>>nCopies(segmentCount, null));
+    }
+
+    /**
+     * This method returns the file that holds a segment.
+     *
+     * @param segment The index of the segment.
+     * @return The file for the segment.
+     */
+    private File getSegmentFile(int segment) {
+        return new File(directory, String.format("HomeSoil-%d-of-%d.txt", segment, segmentCount));
+    }
+
+    /**
+     * This method returns the segment a player is stored in.
+     *
+     * @param playerName The name of the player.
+     * @return The index of his segment.
+     */
+    private int getSegmentOf(String playerName) {
+        return (playerName.hashCode() & Integer.MAX_VALUE) % segmentCount;
+    }
+
+    ////////////////////////////////
+    // Loading
+    /**
+     * This method returns every segment file in a directory, whatever segment
+     * count it was written with.
+     *
+     * @param directory The directory to look in.
+     * @return The segment files found; empty if there are none.
+     */
+    public static List<File> listFiles(File directory) {
+        List<File> files = Lists.newArrayList();
+        File[] contents = directory.listFiles();
+
+        if (contents != null) {
+            for (File file : contents) {
+                if (isSegmentFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * This method checks whether a file is named as a segment file is.
+     *
+     * @param file The file to check.
+     * @return True if it has the name of a segment file.
+     */
+    public static boolean isSegmentFile(File file) {
+        return fileNamePattern.matcher(file.getName()).matches();
+    }
+
+    /**
+     * This method tells us what the segment files contained when they were
+     * loaded; if they were all written with the current segment count, we
+     * then know which segments the next save can skip. If they weren't, this
+     * does nothing, and the next save writes every segment.
+     *
+     * @param snapshot The player data just after loading, as from
+     * PlayerInfoMap.takeSaveSnapshot().
+     */
+    public void markLoaded(Map<String, ? extends MapFileMap.Storable> snapshot) {
+        List<File> expected = Lists.newArrayList();
+
+        for (int segment = 0; segment < segmentCount; ++segment) {
+            expected.add(getSegmentFile(segment));
+        }
+
+        Collections.sort(expected);
+
+        if (expected.equals(listFiles(directory))) {
+            writtenSegments.clear();
+            writtenSegments.addAll(partition(snapshot));
+            hasStaleFiles = false;
+        }
+    }
+
+    ////////////////////////////////
+    // Saving
+    /**
+     * This method writes out each segment that differs from what was last
+     * written, and then deletes any segment files left from a different
+     * segment count.
+     *
+     * @param snapshot The player data to write, as from
+     * PlayerInfoMap.takeSaveSnapshot().
+     */
+    public void write(Map<String, ? extends MapFileMap.Storable> snapshot) {
+        List<Map<String, MapFileMap.Storable>> segments = partition(snapshot);
+        directory.mkdirs();
+
+        for (int segment = 0; segment < segmentCount; ++segment) {
+            Map<String, MapFileMap.Storable> contents = segments.get(segment);
+
+            if (!isUnchanged(writtenSegments.get(segment), contents)) {
+                MapFileMap.write(getSegmentFile(segment), contents, format);
+                writtenSegments.set(segment, contents);
+            }
+        }
+
+        if (hasStaleFiles) {
+            String suffix = String.format("-of-%d.txt", segmentCount);
+
+            for (File file : listFiles(directory)) {
+                if (!file.getName().endsWith(suffix)) {
+                    file.delete();
+                }
+            }
+
+            hasStaleFiles = false;
+        }
+    }
+
+    /**
+     * This method deletes all the segment files in a directory; we do this
+     * once the players have been saved to a single file instead, so the
+     * segments won't be loaded again later.
+     *
+     * @param directory The directory that holds the segment files.
+     */
+    public static void deleteFiles(File directory) {
+        for (File file : listFiles(directory)) {
+            file.delete();
+        }
+    }
+
+    /**
+     * This method splits the player data into a map for each segment.
+     *
+     * @param snapshot The player data to split.
+     * @return A list with a map for each segment.
+     */
+    private List<Map<String, MapFileMap.Storable>> partition(Map<String, ? extends MapFileMap.Storable> snapshot) {
+        List<Map<String, MapFileMap.Storable>> segments = Lists.newArrayListWithCapacity(segmentCount);
+
+        for (int segment = 0; segment < segmentCount; ++segment) {
+            segments.add(Maps.<String, MapFileMap.Storable>newHashMap());
+        }
+
+        for (Map.Entry<String, ? extends MapFileMap.Storable> e : snapshot.entrySet()) {
+            segments.get(getSegmentOf(e.getKey())).put(e.getKey(), e.getValue());
+        }
+
+        return segments;
+    }
+
+    /**
+     * This method decides if a segment can be skipped, because it holds just
+     * the same players, unchanged, as when it was last written.
+     *
+     * @param written The segment as last written, or null if we don't know
+     * what it holds.
+     * @param current The segment as it is now.
+     * @return True if the segment need not be written.
+     */
+    private static boolean isUnchanged(Map<String, MapFileMap.Storable> written, Map<String, MapFileMap.Storable> current) {
+        if (written == null || written.size() != current.size()) {
+            return false;
+        }
+
+        for (Map.Entry<String, MapFileMap.Storable> e : current.entrySet()) {
+            MapFileMap.Storable before = written.get(e.getKey());
+            MapFileMap.Storable now = e.getValue();
+
+            if (before != now) {
+                int version = PlayerInfo.getVersionOf(before);
+
+                if (version < 0 || version != PlayerInfo.getVersionOf(now)) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package homesoil;
+
+import java.util.*;
+
+/**
+ * UnloadedPlayerInfo is a player's data kept somewhere other than in a
+ * PlayerInfo: either an entry of a lazy loaded file that has not been parsed
+ * yet, or one that was evicted to cold storage. PlayerInfoMap keeps only
+ * these for such players, and makes a PlayerInfo when one is needed.
+ *
+ * These are Storable, so a save can write them out without making a
+ * PlayerInfo; they never change, so this is safe on any thread.
+ *
+ * @author DanJ
+ */
+interface UnloadedPlayerInfo extends MapFileMap.Storable {
+
+    /**
+     * This method returns the home chunks of the player; this is cheap, as
+     * they are kept in memory.
+     *
+     * @return An immutable list of the home chunks.
+     */
+    List<ChunkPosition> getHomeChunks();
+
+    /**
+     * This method reads just the chunks that have ever been home chunks of
+     * the player, without making a PlayerInfo for the rest; this may read
+     * from disk, so PlayerInfoMap calls it off the main thread.
+     *
+     * @return An unmodifiable set of the chunks.
+     */
+    Set<ChunkPosition> getHistoricalHomeChunks();
+
+    /**
+     * This method reads the player's data and returns a new PlayerInfo for
+     * it; this has the version given by getVersion().
+     *
+     * @return The new PlayerInfo.
+     */
+    PlayerInfo toPlayerInfo();
+
+    /**
+     * This method returns the version of the PlayerInfo this data came from,
+     * as PlayerInfo.getVersion() does; data that was never in a PlayerInfo
+     * has version 0.
+     *
+     * @return The version of the data.
+     */
+    int getVersion();
+}
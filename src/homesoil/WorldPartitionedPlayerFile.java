@@ -0,0 +1,416 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * WorldPartitionedPlayerFile stores the player data in a file for each world,
+ * rather than all in one HomeSoil file. Each world's file holds, for each
+ * player with any home chunks or historical home chunks in that world, just
+ * those chunks. When we save, we rewrite only the files of worlds where some
+ * player's chunks changed; a change in the nether does not rewrite the
+ * overworld.
+ *
+ * A player's home chunks are kept in the order he acquired them, and that
+ * order spans worlds; so each world's file keys his home chunks by their place
+ * in his whole list, and load() puts the lists back together in that order.
+ * Adding a home chunk changes only its own world's file, but removing one
+ * moves the chunks after it, so their worlds are rewritten too.
+ *
+ * A player's data spans worlds too, so we load every world's file at
+ * startup, whether the world is loaded or not; a PlayerInfo made from only
+ * some of them would lose the chunks in the others when next saved.
+ *
+ * write() runs on the saver thread; the other methods are used on the main
+ * thread at startup, before any write is requested.
+ *
+ * @author DanJ
+ */
+public final class WorldPartitionedPlayerFile {
+
+    private static final Pattern fileNamePattern = Pattern.compile("HomeSoil-(.+)\\.txt");
+    private final File directory;
+    private final MapFileMap.Format format;
+    // what we last wrote or loaded; null until we know.
+    private Map<String, ? extends MapFileMap.Storable> writtenSnapshot;
+    private final Map<String, Set<String>> writtenPlayersByWorld = Maps.newHashMap();
+
+    public WorldPartitionedPlayerFile(File directory, MapFileMap.Format format) {
+        this.directory = Preconditions.checkNotNull(directory);
+        this.format = Preconditions.checkNotNull(format);
+    }
+
+    /**
+     * This method returns the file that holds a world's part of the data.
+     *
+     * @param worldName The name of the world.
+     * @return The file for the world.
+     */
+    private File getWorldFile(String worldName) {
+        return new File(directory, String.format("HomeSoil-%s.txt", worldName));
+    }
+
+    ////////////////////////////////
+    // Loading
+    /**
+     * This method returns every world file in a directory.
+     *
+     * @param directory The directory to look in.
+     * @return The world files found; empty if there are none.
+     */
+    public static List<File> listFiles(File directory) {
+        List<File> files = Lists.newArrayList();
+        File[] contents = directory.listFiles();
+
+        if (contents != null) {
+            for (File file : contents) {
+                if (isWorldFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * This method checks whether a file is named as a world file is.
+     *
+     * @param file The file to check.
+     * @return True if it has the name of a world file.
+     */
+    public static boolean isWorldFile(File file) {
+        return fileNamePattern.matcher(file.getName()).matches();
+    }
+
+    /**
+     * This method reads every world file in a directory, and puts each
+     * player's parts back together.
+     *
+     * @param directory The directory that holds the world files.
+     * @return The player data, keyed by player name.
+     */
+    public static Map<String, PlayerInfo> load(File directory) {
+        return load(listFiles(directory));
+    }
+
+    /**
+     * This method reads the world files given, and puts each player's parts
+     * back together. A player's data is complete only if every world file
+     * he has chunks in is given.
+     *
+     * @param files The world files to read.
+     * @return The player data, keyed by player name.
+     */
+    public static Map<String, PlayerInfo> load(List<File> files) {
+        Map<String, WorldPart> merged = Maps.newHashMap();
+
+        for (File file : files) {
+            Map<String, WorldPart> parts = Maps.newHashMap();
+            MapFileMap.read(file, WorldPart.class, parts);
+
+            for (Map.Entry<String, WorldPart> e : parts.entrySet()) {
+                WorldPart part = merged.get(e.getKey());
+
+                if (part == null) {
+                    merged.put(e.getKey(), e.getValue());
+                } else {
+                    part.addAll(e.getValue());
+                }
+            }
+        }
+
+        Map<String, PlayerInfo> infos = Maps.newHashMap();
+
+        for (Map.Entry<String, WorldPart> e : merged.entrySet()) {
+            infos.put(e.getKey(), e.getValue().toPlayerInfo());
+        }
+
+        return infos;
+    }
+
+    /**
+     * This method tells us what the world files contained when they were
+     * loaded, so the next save can skip the worlds that have not changed
+     * since. If this is not called, the first save writes every world.
+     *
+     * @param snapshot The player data just after loading, as from
+     * PlayerInfoMap.takeSaveSnapshot().
+     */
+    public void markLoaded(Map<String, ? extends MapFileMap.Storable> snapshot) {
+        writtenSnapshot = snapshot;
+        writtenPlayersByWorld.clear();
+
+        for (Map.Entry<String, ? extends MapFileMap.Storable> e : snapshot.entrySet()) {
+            for (String worldName : partition(e.getValue()).keySet()) {
+                getWrittenPlayers(worldName).add(e.getKey());
+            }
+        }
+    }
+
+    ////////////////////////////////
+    // Saving
+    /**
+     * This method writes out the file of each world where a player's chunks
+     * differ from what was last written, and deletes the files of worlds
+     * where no player has any chunks now.
+     *
+     * Players who are the same object, or have the same version, as in the
+     * snapshot last written have not changed and are not even read; for the
+     * rest we compare their chunks in each world.
+     *
+     * @param snapshot The player data to write, as from
+     * PlayerInfoMap.takeSaveSnapshot().
+     */
+    public void write(Map<String, ? extends MapFileMap.Storable> snapshot) {
+        Set<String> changedWorlds = Sets.newHashSet();
+        List<File> staleFiles = Collections.emptyList();
+
+        if (writtenSnapshot == null) {
+            markLoaded(snapshot);
+            changedWorlds.addAll(writtenPlayersByWorld.keySet());
+            staleFiles = listFiles(directory);
+        } else {
+            for (String playerName : Sets.union(snapshot.keySet(), writtenSnapshot.keySet())) {
+                MapFileMap.Storable before = writtenSnapshot.get(playerName);
+                MapFileMap.Storable now = snapshot.get(playerName);
+
+                if (before == now) {
+                    continue;
+                }
+
+                int version = before != null ? PlayerInfo.getVersionOf(before) : -1;
+
+                if (version >= 0 && version == PlayerInfo.getVersionOf(now)) {
+                    continue;
+                }
+
+                Map<String, WorldPart> beforeParts = partition(before);
+                Map<String, WorldPart> nowParts = partition(now);
+
+                for (String worldName : Sets.union(beforeParts.keySet(), nowParts.keySet())) {
+                    WorldPart beforePart = beforeParts.get(worldName);
+
+                    if (beforePart == null || !beforePart.equals(nowParts.get(worldName))) {
+                        changedWorlds.add(worldName);
+
+                        if (nowParts.containsKey(worldName)) {
+                            getWrittenPlayers(worldName).add(playerName);
+                        } else {
+                            getWrittenPlayers(worldName).remove(playerName);
+                        }
+                    }
+                }
+            }
+
+            writtenSnapshot = snapshot;
+        }
+
+        directory.mkdirs();
+
+        // a player in several changed worlds is split only once.
+        Map<String, Map<String, WorldPart>> partsByPlayer = Maps.newHashMap();
+
+        for (String worldName : changedWorlds) {
+            Set<String> playerNames = getWrittenPlayers(worldName);
+
+            if (playerNames.isEmpty()) {
+                writtenPlayersByWorld.remove(worldName);
+                getWorldFile(worldName).delete();
+                continue;
+            }
+
+            Map<String, WorldPart> contents = Maps.newHashMap();
+
+            for (String playerName : playerNames) {
+                Map<String, WorldPart> parts = partsByPlayer.get(playerName);
+
+                if (parts == null) {
+                    parts = partition(snapshot.get(playerName));
+                    partsByPlayer.put(playerName, parts);
+                }
+
+                contents.put(playerName, parts.get(worldName));
+            }
+
+            MapFileMap.write(getWorldFile(worldName), contents, format);
+        }
+
+        for (File file : staleFiles) {
+            Matcher m = fileNamePattern.matcher(file.getName());
+
+            if (m.matches() && !writtenPlayersByWorld.containsKey(m.group(1))) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * This method deletes all the world files in a directory; we do this
+     * once the players have been saved in another layout instead, so the
+     * world files won't be loaded again later.
+     *
+     * @param directory The directory that holds the world files.
+     */
+    public static void deleteFiles(File directory) {
+        for (File file : listFiles(directory)) {
+            file.delete();
+        }
+    }
+
+    private Set<String> getWrittenPlayers(String worldName) {
+        Set<String> playerNames = writtenPlayersByWorld.get(worldName);
+
+        if (playerNames == null) {
+            playerNames = Sets.newHashSet();
+            writtenPlayersByWorld.put(worldName, playerNames);
+        }
+
+        return playerNames;
+    }
+
+    /**
+     * This method splits a player's data into a part for each world he has
+     * chunks in.
+     *
+     * @param value The player's data, as found in a snapshot; may be null.
+     * @return A map with a part for each world; empty if 'value' is null.
+     */
+    private static Map<String, WorldPart> partition(MapFileMap.Storable value) {
+        Map<String, WorldPart> parts = Maps.newHashMap();
+
+        if (value == null) {
+            return parts;
+        }
+
+        PlayerInfo info = PlayerInfo.fromStorable(value);
+        List<ChunkPosition> homeChunks = info.getHomeChunks();
+
+        for (int index = 0; index < homeChunks.size(); ++index) {
+            ChunkPosition homeChunk = homeChunks.get(index);
+            getPart(parts, homeChunk.worldName).homeChunks.put(index, homeChunk);
+        }
+
+        for (ChunkPosition historicalHomeChunk : info.getHistoricalHomeChunks()) {
+            getPart(parts, historicalHomeChunk.worldName).historicalHomeChunks.add(historicalHomeChunk);
+        }
+
+        return parts;
+    }
+
+    private static WorldPart getPart(Map<String, WorldPart> parts, String worldName) {
+        WorldPart part = parts.get(worldName);
+
+        if (part == null) {
+            part = new WorldPart();
+            parts.put(worldName, part);
+        }
+
+        return part;
+    }
+
+    ////////////////////////////////
+    // World Parts
+    /**
+     * This class holds one player's chunks in one world; the home chunks are
+     * keyed by their index in the player's whole list of home chunks.
+     */
+    private static final class WorldPart implements MapFileMap.StreamStorable {
+
+        public final SortedMap<Integer, ChunkPosition> homeChunks = Maps.newTreeMap();
+        public final ChunkPositionSet historicalHomeChunks = new ChunkPositionSet();
+
+        /**
+         * This method adds the chunks of another part of the same player's
+         * data to this one.
+         *
+         * @param other The other part.
+         */
+        public void addAll(WorldPart other) {
+            homeChunks.putAll(other.homeChunks);
+            historicalHomeChunks.addAll(other.historicalHomeChunks);
+        }
+
+        /**
+         * This method makes a PlayerInfo out of this part; once all the parts
+         * have been added together, this has all the player's chunks.
+         *
+         * @return The new PlayerInfo.
+         */
+        public PlayerInfo toPlayerInfo() {
+            return new PlayerInfo(homeChunks.values(), historicalHomeChunks);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof WorldPart) {
+                WorldPart other = (WorldPart) obj;
+                return homeChunks.equals(other.homeChunks)
+                        && historicalHomeChunks.equals(other.historicalHomeChunks);
+            }
+
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return homeChunks.hashCode() ^ historicalHomeChunks.hashCode();
+        }
+
+        @Override
+        public Map<?, ?> toMap() {
+            Map<String, Object> map = Maps.newHashMap();
+            map.put("homes", homeChunks);
+            map.put("history", historicalHomeChunks.toEncodedMap());
+            return map;
+        }
+
+        @Override
+        public void write(MapFileWriter writer) throws IOException {
+            writer.writeEntry("history", historicalHomeChunks.toEncodedMap());
+            writer.writeEntry("homes", homeChunks);
+        }
+        /**
+         * This decoder reads a part; the keys of the home chunks are their
+         * indices, as for a list, but there are gaps where the chunks of
+         * other worlds go.
+         */
+        public static final MapFileMap.Decoder<WorldPart> DECODER = new MapFileMap.Decoder<WorldPart>() {
+            @Override
+            public WorldPart decode(MapFileReader reader) throws IOException {
+                WorldPart part = new WorldPart();
+
+                while (reader.nextEntry()) {
+                    String key = reader.getKey();
+
+                    if (!reader.isMap()) {
+                        continue;
+                    } else if (key.equals("homes")) {
+                        while (reader.nextEntry()) {
+                            int index = Integer.parseInt(reader.getKey());
+                            part.homeChunks.put(index, MapFileMap.decodeValue(reader, ChunkPosition.class));
+                        }
+                    } else if (key.equals("historicalHomes")) {
+                        while (reader.nextEntry()) {
+                            part.historicalHomeChunks.add(MapFileMap.decodeValue(reader, ChunkPosition.class));
+                        }
+                    } else if (key.equals("history")) {
+                        PlayerInfo.decodeHistory(reader, part.historicalHomeChunks);
+                    } else {
+                        reader.skipMap();
+                    }
+                }
+
+                return part;
+            }
+        };
+    }
+
+    static {
+        MapFileMap.registerDecoder(WorldPart.class, WorldPart.DECODER);
+    }
+}
@@ -0,0 +1,110 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.bukkit.*;
+
+/**
+ * WorldRegistry gives each world name a small number, its id, the first time
+ * it is seen; ChunkPosition keeps this id so it can compare and hash positions
+ * without looking at the name. Ids are only ever added, and last as long as
+ * the server runs; they are never written to any file.
+ *
+ * We also keep the World of each id once we have looked it up, until that
+ * world is unloaded; HomeSoilPlugin tells us when that happens.
+ *
+ * Ids may be looked up and assigned on any thread, since players are read on
+ * other threads. The World handles are used only on the main thread.
+ *
+ * @author DanJ
+ */
+public final class WorldRegistry {
+
+    private static final ConcurrentMap<String, Integer> ids = Maps.newConcurrentMap();
+    // the names by id; this array is replaced, never changed, when an id is
+    // added.
+    private static volatile String[] names = new String[0];
+    // the Worlds by id; this is created only when first needed, so that
+    // HomeSoilTool can use ChunkPositions without the Bukkit API.
+    private static World[] worlds;
+
+    private WorldRegistry() {
+    }
+
+    /**
+     * This method returns the id of the world named, and assigns one if it has
+     * none yet.
+     *
+     * @param worldName The name of the world.
+     * @return The id of the world.
+     */
+    public static int getId(String worldName) {
+        Integer id = ids.get(worldName);
+        return id != null ? id : addId(worldName);
+    }
+
+    private static synchronized int addId(String worldName) {
+        Preconditions.checkNotNull(worldName);
+
+        Integer id = ids.get(worldName);
+
+        if (id == null) {
+            String[] newNames = Arrays.copyOf(names, names.length + 1);
+            id = names.length;
+            newNames[id] = worldName;
+            names = newNames;
+            ids.put(worldName, id);
+        }
+
+        return id;
+    }
+
+    /**
+     * This method returns the name of a world, given its id. Every
+     * ChunkPosition in the same world shares this string.
+     *
+     * @param id The id of the world.
+     * @return The name of the world.
+     */
+    public static String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * This method returns the world with the id given, if it is loaded; we
+     * look it up only the first time it is asked for.
+     *
+     * @param id The id of the world.
+     * @return The world, or null if it is not loaded.
+     */
+    public static World getWorld(int id) {
+        if (worlds == null || id >= worlds.length) {
+            worlds = worlds == null ? new World[names.length] : Arrays.copyOf(worlds, names.length);
+        }
+
+        World world = worlds[id];
+
+        if (world == null) {
+            world = Bukkit.getWorld(getName(id));
+            worlds[id] = world;
+        }
+
+        return world;
+    }
+
+    /**
+     * This method forgets the World we kept for a world that is being
+     * unloaded; if it is loaded again, we look it up again.
+     *
+     * @param world The world being unloaded.
+     */
+    public static void worldUnloaded(World world) {
+        Integer id = ids.get(world.getName());
+
+        if (id != null && worlds != null && id < worlds.length) {
+            worlds[id] = null;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package homesoil;
+
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests write maps in the binary format and read them back, and check
+ * that damaged files are rejected.
+ *
+ * @author DanJ
+ */
+public class BinaryMapFileTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("HomeSoil", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Map<String, Object> nested = Maps.newLinkedHashMap();
+        nested.put("world", "world");
+        nested.put("negative", -123456789);
+        nested.put("text", "a=b [c] \\ d\u00e9\u4e16");
+
+        Map<String, Object> map = Maps.newLinkedHashMap();
+        map.put("name", "world");
+        map.put("count", 42);
+        map.put("zero", 0);
+        map.put("largest", Integer.MAX_VALUE);
+        map.put("smallest", Integer.MIN_VALUE);
+        map.put("empty", "");
+        map.put("nested", nested);
+        List<Object> list = Lists.newArrayList();
+        list.add("world");
+        list.add("world");
+        list.add("nether");
+        list.add(7);
+
+        map.put("list", list);
+        map.put("emptyMap", ImmutableMap.of());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryMapFile.write(bytes, map);
+
+        MapFileMap read = MapFileMap.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(textRoundTrip(map), read);
+        assertEquals(42, read.getInteger("count"));
+        assertEquals("a=b [c] \\ d\u00e9\u4e16", read.getMapFileMap("nested").getString("text"));
+    }
+
+    @Test
+    public void testStringsAreWrittenOnce() throws IOException {
+        Map<String, Object> map = Maps.newHashMap();
+
+        for (int i = 0; i < 100; ++i) {
+            map.put("player" + i, ImmutableMap.of("world", "a rather long world name"));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryMapFile.write(bytes, map);
+
+        String text = new String(bytes.toByteArray(), "ISO-8859-1");
+        assertEquals(text.indexOf("a rather long world name"), text.lastIndexOf("a rather long world name"));
+        assertEquals(textRoundTrip(map), MapFileMap.read(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test
+    public void testPlayerInfoRoundTrip() {
+        Map<String, PlayerInfo> infos = Maps.newHashMap();
+        infos.put("Alice", new PlayerInfo(
+                Arrays.asList(new ChunkPosition(1, 2, "world"), new ChunkPosition(-3, 4, "world_nether")),
+                Arrays.asList(new ChunkPosition(1, 2, "world"), new ChunkPosition(-3, 4, "world_nether"),
+                new ChunkPosition(100000, -100000, "world"))));
+        infos.put("Bob", new PlayerInfo(
+                Arrays.asList(new ChunkPosition(0, 0, "world")),
+                Arrays.asList(new ChunkPosition(0, 0, "world"))));
+
+        for (MapFileMap.Format format : MapFileMap.Format.values()) {
+            MapFileMap.write(file, infos, format);
+            assertEquals(format, MapFileMap.getFormat(file));
+
+            Map<String, PlayerInfo> read = Maps.newHashMap();
+            MapFileMap.read(file, PlayerInfo.class, read);
+
+            assertEquals(infos.keySet(), read.keySet());
+
+            for (String playerName : infos.keySet()) {
+                assertEquals(infos.get(playerName).getHomeChunks(), read.get(playerName).getHomeChunks());
+                assertEquals(infos.get(playerName).getHistoricalHomeChunks(), read.get(playerName).getHistoricalHomeChunks());
+            }
+        }
+    }
+
+    @Test
+    public void testEntryWriter() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MapFileWriter writer = BinaryMapFile.newWriter(bytes, 3);
+        writer.writeEntry("a", "x");
+        writer.writeEntry("b", 5);
+        writer.writeEntry("c", ImmutableMap.of("x", "x"));
+
+        MapFileMap read = MapFileMap.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals("x", read.getString("a"));
+        assertEquals(5, read.getInteger("b"));
+        assertEquals("x", read.getMapFileMap("c").getString("x"));
+    }
+
+    @Test
+    public void testRejectsInvalidStringIndex() throws IOException {
+        // one entry, whose key refers to a string that was never defined
+        assertRejected(new byte[]{1, 5}, "Invalid string index");
+    }
+
+    @Test
+    public void testRejectsNegativeStringLength() throws IOException {
+        assertRejected(new byte[]{1, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}, "Invalid string length");
+    }
+
+    @Test
+    public void testRejectsInvalidTag() throws IOException {
+        assertRejected(new byte[]{1, 0, 1, 'k', 99}, "Invalid value tag");
+    }
+
+    @Test(expected = EOFException.class)
+    public void testRejectsTruncatedFile() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryMapFile.write(bytes, ImmutableMap.of("key", "value"));
+
+        byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 2);
+        InputStream in = new ByteArrayInputStream(truncated);
+        in.skip(BinaryMapFile.MAGIC.length);
+
+        MapFileReader reader = BinaryMapFile.newReader(in);
+
+        while (reader.nextEntry()) {
+        }
+    }
+
+    ////////////////////////////////
+    // Helpers
+    /**
+     * This method writes a map in the text format and reads it back; the
+     * binary format should give us the same thing.
+     */
+    private static MapFileMap textRoundTrip(Map<?, ?> map) {
+        StringWriter text = new StringWriter();
+        MapFileMap.write(text, map);
+        return MapFileMap.read(new StringReader(text.toString()));
+    }
+
+    private static void assertRejected(byte[] bytes, String message) {
+        try {
+            MapFileReader reader = BinaryMapFile.newReader(new ByteArrayInputStream(bytes));
+
+            while (reader.nextEntry()) {
+            }
+
+            fail("The damaged file was read.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package homesoil;
+
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests check ChunkBitmap against a plain set of chunks, for both
+ * kinds of container and the change from one to the other.
+ *
+ * @author DanJ
+ */
+public class ChunkBitmapTest {
+
+    @Test
+    public void testAddAndContains() {
+        Random random = new Random(1);
+        ChunkBitmap bitmap = new ChunkBitmap();
+        Set<ChunkPosition> expected = Sets.newHashSet();
+
+        for (int i = 0; i < 20000; ++i) {
+            int x = random.nextInt(2000) - 1000;
+            int z = random.nextInt(2000) - 1000;
+            assertEquals(expected.add(chunk(x, z)), bitmap.add(x, z));
+        }
+
+        assertEquals(expected.size(), bitmap.size());
+        assertEquals(expected, toSet(bitmap));
+
+        for (int i = 0; i < 20000; ++i) {
+            int x = random.nextInt(2000) - 1000;
+            int z = random.nextInt(2000) - 1000;
+            assertEquals(expected.contains(chunk(x, z)), bitmap.contains(x, z));
+        }
+    }
+
+    @Test
+    public void testExtremeCoordinates() {
+        ChunkBitmap bitmap = new ChunkBitmap();
+        int[] values = {Integer.MIN_VALUE, -257, -256, -1, 0, 255, 256, Integer.MAX_VALUE};
+
+        for (int x : values) {
+            for (int z : values) {
+                assertTrue(bitmap.add(x, z));
+            }
+        }
+
+        for (int x : values) {
+            for (int z : values) {
+                assertTrue(bitmap.contains(x, z));
+            }
+        }
+
+        assertEquals(values.length * values.length, bitmap.size());
+        assertEquals(bitmap.size(), toSet(bitmap).size());
+        assertEquals(toSet(bitmap), toSet(roundTrip(bitmap)));
+    }
+
+    @Test
+    public void testArrayBecomesBitmap() {
+        ChunkBitmap bitmap = new ChunkBitmap();
+        Set<ChunkPosition> expected = Sets.newHashSet();
+
+        // one region holds 256 x 256 chunks; this overflows its array.
+        for (int x = 0; x < 256; ++x) {
+            for (int z = 0; z < 20; ++z) {
+                bitmap.add(x, z);
+                expected.add(chunk(x, z));
+            }
+        }
+
+        assertEquals(5120, bitmap.size());
+        assertEquals(expected, toSet(bitmap));
+        assertFalse(bitmap.contains(0, 20));
+        assertFalse(bitmap.add(255, 19));
+        assertEquals(expected, toSet(roundTrip(bitmap)));
+    }
+
+    @Test
+    public void testIterationOrder() {
+        ChunkBitmap bitmap = new ChunkBitmap();
+        bitmap.add(300, 5);
+        bitmap.add(3, 7);
+        bitmap.add(3, 2);
+        bitmap.add(-3, 2);
+
+        List<ChunkPosition> chunks = Lists.newArrayList(bitmap.iterator("world"));
+        assertEquals(Arrays.asList(chunk(-3, 2), chunk(3, 2), chunk(3, 7), chunk(300, 5)), chunks);
+    }
+
+    @Test
+    public void testMerge() {
+        Random random = new Random(2);
+        ChunkBitmap first = new ChunkBitmap();
+        ChunkBitmap second = new ChunkBitmap();
+        Set<ChunkPosition> expected = Sets.newHashSet();
+        Set<ChunkPosition> firstChunks = Sets.newHashSet();
+
+        // the same region gets array containers that add up to a bitmap,
+        // and there are regions found in only one of the two.
+        for (int i = 0; i < 3000; ++i) {
+            int x = random.nextInt(256);
+            int z = random.nextInt(256);
+            first.add(x, z);
+            firstChunks.add(chunk(x, z));
+            expected.add(chunk(x, z));
+
+            x = random.nextInt(256);
+            z = random.nextInt(256);
+            second.add(x, z);
+            expected.add(chunk(x, z));
+        }
+
+        first.add(1000, 1000);
+        firstChunks.add(chunk(1000, 1000));
+        expected.add(chunk(1000, 1000));
+        second.add(-1000, -1000);
+        expected.add(chunk(-1000, -1000));
+
+        ChunkBitmap merged = new ChunkBitmap(first);
+        assertTrue(merged.addAll(second));
+        assertEquals(expected.size(), merged.size());
+        assertEquals(expected, toSet(merged));
+        assertFalse(merged.addAll(first));
+        assertFalse(merged.addAll(second));
+
+        // the copy must not share containers with the original.
+        assertEquals(firstChunks, toSet(first));
+        assertEquals(firstChunks.size(), first.size());
+
+        // merging a bitmap container into an array one works too.
+        ChunkBitmap small = new ChunkBitmap();
+        small.add(1, 1);
+        assertTrue(small.addAll(merged));
+        assertEquals(toSet(merged), toSet(small));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(3);
+        ChunkBitmap bitmap = new ChunkBitmap();
+
+        assertEquals(0, roundTrip(bitmap).size());
+
+        for (int i = 0; i < 10000; ++i) {
+            bitmap.add(random.nextInt(300), random.nextInt(300));
+            bitmap.add(random.nextInt(), random.nextInt());
+        }
+
+        ChunkBitmap read = roundTrip(bitmap);
+        assertEquals(bitmap.size(), read.size());
+        assertEquals(Lists.newArrayList(bitmap.iterator("world")), Lists.newArrayList(read.iterator("world")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadRejectsUnsortedArray() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeLong(0);
+        out.writeShort(1);
+        out.writeChar(5);
+        out.writeChar(4);
+        read(bytes.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadRejectsUnsortedRegions() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(2);
+        out.writeLong(1);
+        out.writeShort(0);
+        out.writeChar(0);
+        out.writeLong(0);
+        out.writeShort(0);
+        out.writeChar(0);
+        read(bytes.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadRejectsWrongCardinality() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeLong(0);
+        out.writeShort(5000 - 1);
+
+        for (int word = 0; word < 1024; ++word) {
+            out.writeLong(word < 10 ? -1L : 0L);
+        }
+
+        read(bytes.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadRejectsTruncatedInput() throws IOException {
+        ChunkBitmap bitmap = new ChunkBitmap();
+        bitmap.add(1, 2);
+        bitmap.add(3, 4);
+
+        byte[] bytes = write(bitmap);
+        read(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    ////////////////////////////////
+    // Helpers
+    private static ChunkPosition chunk(int x, int z) {
+        return new ChunkPosition(x, z, "world");
+    }
+
+    private static Set<ChunkPosition> toSet(ChunkBitmap bitmap) {
+        return Sets.newHashSet(bitmap.iterator("world"));
+    }
+
+    private static ChunkBitmap roundTrip(ChunkBitmap bitmap) {
+        try {
+            return read(write(bitmap));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] write(ChunkBitmap bitmap) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            bitmap.write(out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ChunkBitmap read(byte[] bytes) throws IOException {
+        return ChunkBitmap.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
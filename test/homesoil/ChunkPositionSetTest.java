@@ -0,0 +1,124 @@
+package homesoil;
+
+import com.google.common.collect.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests check ChunkPositionSet, and the unpadded base 64 encoding it
+ * stores its bitmaps in.
+ *
+ * @author DanJ
+ */
+public class ChunkPositionSetTest {
+
+    @Test
+    public void testSetOperations() {
+        ChunkPositionSet set = new ChunkPositionSet();
+
+        assertTrue(set.add(new ChunkPosition(1, 2, "world")));
+        assertTrue(set.add(new ChunkPosition(1, 2, "world_nether")));
+        assertFalse(set.add(new ChunkPosition(1, 2, "world")));
+        assertEquals(2, set.size());
+        assertTrue(set.contains(new ChunkPosition(1, 2, "world_nether")));
+        assertFalse(set.contains(new ChunkPosition(2, 1, "world")));
+        assertFalse(set.contains("not a chunk"));
+        assertEquals(ImmutableSet.of(new ChunkPosition(1, 2, "world")), set.inWorld("world"));
+        assertTrue(set.inWorld("world_the_end").isEmpty());
+    }
+
+    @Test
+    public void testCopiesAreIndependent() {
+        ChunkPositionSet set = new ChunkPositionSet();
+        set.add(new ChunkPosition(1, 2, "world"));
+
+        ChunkPositionSet copy = new ChunkPositionSet(set);
+        copy.add(new ChunkPosition(3, 4, "world"));
+        copy.addAll(Arrays.asList(new ChunkPosition(5, 6, "world_nether")));
+
+        assertEquals(1, set.size());
+        assertEquals(3, copy.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnmodifiableView() {
+        ChunkPositionSet set = new ChunkPositionSet();
+        set.unmodifiableView().add(new ChunkPosition(1, 2, "world"));
+    }
+
+    @Test
+    public void testEncodedRoundTrip() {
+        Random random = new Random(4);
+
+        // different sizes leave 0, 1 or 2 bytes over at the end of the
+        // base 64, which is where padding would go.
+        for (int count = 0; count < 40; ++count) {
+            ChunkPositionSet set = new ChunkPositionSet();
+
+            for (int i = 0; i < count * count; ++i) {
+                set.add(new ChunkPosition(random.nextInt(600) - 300, random.nextInt(600) - 300,
+                        random.nextBoolean() ? "world" : "world_nether"));
+            }
+
+            SortedMap<String, String> encoded = set.toEncodedMap();
+            ChunkPositionSet decoded = new ChunkPositionSet();
+
+            for (Map.Entry<String, String> e : encoded.entrySet()) {
+                assertTrue(e.getValue().matches("[A-Za-z0-9+/]+"));
+                decoded.addEncoded(e.getKey(), e.getValue());
+            }
+
+            assertEquals(set, decoded);
+            assertEquals(set.size(), decoded.size());
+        }
+    }
+
+    @Test
+    public void testEmptyWorldsAreNotEncoded() {
+        ChunkPositionSet set = new ChunkPositionSet();
+        set.add(new ChunkPosition(0, 0, "world_nether"));
+        set.addAll(new ChunkPositionSet());
+
+        assertEquals(ImmutableSet.of("world_nether"), set.toEncodedMap().keySet());
+    }
+
+    @Test
+    public void testAddEncodedMerges() {
+        ChunkPositionSet first = new ChunkPositionSet();
+        first.add(new ChunkPosition(1, 1, "world"));
+        ChunkPositionSet second = new ChunkPositionSet();
+        second.add(new ChunkPosition(2, 2, "world"));
+
+        ChunkPositionSet merged = new ChunkPositionSet();
+        merged.addEncoded("world", first.toEncodedMap().get("world"));
+        merged.addEncoded("world", second.toEncodedMap().get("world"));
+
+        assertEquals(Sets.union(first, second), merged);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddEncodedRejectsBadDigit() {
+        ChunkPositionSet set = new ChunkPositionSet();
+        set.add(new ChunkPosition(1, 2, "world"));
+        String encoded = set.toEncodedMap().get("world");
+
+        // padding is not part of the encoding.
+        new ChunkPositionSet().addEncoded("world", encoded + "==");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddEncodedRejectsTruncatedBitmap() {
+        ChunkPositionSet set = new ChunkPositionSet();
+        set.add(new ChunkPosition(1, 2, "world"));
+        set.add(new ChunkPosition(3, 4, "world"));
+        String encoded = set.toEncodedMap().get("world");
+
+        new ChunkPositionSet().addEncoded("world", encoded.substring(0, encoded.length() - 4));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddEncodedRejectsGarbage() {
+        new ChunkPositionSet().addEncoded("world", "////////////////////////");
+    }
+}
@@ -0,0 +1,200 @@
+package homesoil;
+
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests load, save and reload player data through
+ * DatabasePlayerInfoStore, against a real SQLite database; they need the
+ * SQLite JDBC driver on the class path.
+ *
+ * @author DanJ
+ */
+public class DatabasePlayerInfoStoreTest {
+
+    private File databaseFile;
+
+    @Before
+    public void setUp() throws IOException {
+        databaseFile = File.createTempFile("HomeSoil", ".db");
+        databaseFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        databaseFile.delete();
+    }
+
+    @Test
+    public void testEmptyDatabaseImports() {
+        Map<String, PlayerInfo> imported = Maps.newHashMap();
+        imported.put("Alice", new PlayerInfo(
+                Arrays.asList(chunk(1, 2, "world")),
+                Arrays.asList(chunk(1, 2, "world"), chunk(5, 6, "world"))));
+
+        PlayerInfoMap playerInfos = new PlayerInfoMap();
+        DatabasePlayerInfoStore store = new DatabasePlayerInfoStore(databaseFile, importFrom(imported));
+
+        assertTrue(store.load(playerInfos));
+        store.save(playerInfos.takeSaveSnapshot());
+        store.close();
+
+        assertEquals(describe(imported), reload());
+    }
+
+    @Test
+    public void testRoundTripWithDelta() {
+        Map<String, PlayerInfo> imported = Maps.newHashMap();
+        imported.put("Alice", new PlayerInfo(
+                Arrays.asList(chunk(1, 2, "world"), chunk(3, 4, "world_nether")),
+                Arrays.asList(chunk(1, 2, "world"), chunk(3, 4, "world_nether"), chunk(-7, 8, "world"))));
+        imported.put("Bob", new PlayerInfo(
+                Arrays.asList(chunk(10, 10, "world")),
+                Arrays.asList(chunk(10, 10, "world"))));
+        imported.put("Carol", new PlayerInfo(
+                Arrays.asList(chunk(-20, 30, "world")),
+                Arrays.asList(chunk(-20, 30, "world"), chunk(0, 0, "world"))));
+
+        PlayerInfoMap playerInfos = new PlayerInfoMap();
+        DatabasePlayerInfoStore store = new DatabasePlayerInfoStore(databaseFile, importFrom(imported));
+        store.load(playerInfos);
+        store.save(playerInfos.takeSaveSnapshot());
+        store.close();
+
+        // reload, change some players, and save just the change
+        playerInfos = new PlayerInfoMap();
+        store = new DatabasePlayerInfoStore(databaseFile, importFrom(ImmutableMap.<String, PlayerInfo>of()));
+        assertFalse(store.load(playerInfos));
+        assertEquals(describe(imported), describe(playerInfos.takeSaveSnapshot()));
+
+        playerInfos.getOrCreateInfo("Alice").tryRemoveHomeChunk(chunk(1, 2, "world"));
+        playerInfos.getOrCreateInfo("Alice").addHomeChunk(chunk(9, 9, "world"));
+        playerInfos.getOrCreateInfo("Bob").setHomeChunk(chunk(11, 11, "world"));
+        playerInfos.getOrCreateInfo("Dave").setHomeChunk(chunk(100, -100, "world_the_end"));
+
+        Map<String, MapFileMap.Storable> snapshot = playerInfos.takeSaveSnapshot();
+        Map<String, String> expected = describe(snapshot);
+        store.save(snapshot);
+        store.close();
+
+        assertEquals(expected, reload());
+    }
+
+    @Test
+    public void testChunkGainedAndLostBetweenSaves() {
+        PlayerInfoMap playerInfos = new PlayerInfoMap();
+        DatabasePlayerInfoStore store = new DatabasePlayerInfoStore(databaseFile, importFrom(ImmutableMap.<String, PlayerInfo>of()));
+        store.load(playerInfos);
+        playerInfos.getOrCreateInfo("Alice").setHomeChunk(chunk(0, 0, "world"));
+        store.save(playerInfos.takeSaveSnapshot());
+
+        // (1, 1) is a home only between the saves, but stays in the history
+        playerInfos.getOrCreateInfo("Alice").setHomeChunk(chunk(1, 1, "world"));
+        playerInfos.getOrCreateInfo("Alice").setHomeChunk(chunk(2, 2, "world"));
+
+        Map<String, MapFileMap.Storable> snapshot = playerInfos.takeSaveSnapshot();
+        store.save(snapshot);
+        store.close();
+
+        assertEquals(describe(snapshot), reload());
+        assertEquals(3, playerInfos.getOrCreateInfo("Alice").getHistoricalHomeChunks().size());
+    }
+
+    @Test
+    public void testUnchangedPlayersAreNotParsed() {
+        Map<String, PlayerInfo> imported = Maps.newHashMap();
+        imported.put("Alice", new PlayerInfo(
+                Arrays.asList(chunk(1, 2, "world")),
+                Arrays.asList(chunk(1, 2, "world"), chunk(5, 6, "world"))));
+
+        PlayerInfoMap playerInfos = new PlayerInfoMap();
+        DatabasePlayerInfoStore store = new DatabasePlayerInfoStore(databaseFile, importFrom(imported));
+        store.load(playerInfos);
+        store.save(playerInfos.takeSaveSnapshot());
+        store.close();
+
+        playerInfos = new PlayerInfoMap();
+        store = new DatabasePlayerInfoStore(databaseFile, importFrom(ImmutableMap.<String, PlayerInfo>of()));
+        store.load(playerInfos);
+
+        Map<String, MapFileMap.Storable> snapshot = playerInfos.takeSaveSnapshot();
+        assertTrue(snapshot.get("Alice") instanceof UnloadedPlayerInfo);
+        assertEquals(Arrays.asList(chunk(1, 2, "world")), ((UnloadedPlayerInfo) snapshot.get("Alice")).getHomeChunks());
+
+        store.save(snapshot);
+        store.close();
+
+        assertEquals(describe(imported), reload());
+    }
+
+    ////////////////////////////////
+    // Helpers
+    /**
+     * This method loads the database again, and describes what it holds; the
+     * unloaded players read from the database, so we describe them before
+     * closing it.
+     */
+    private Map<String, String> reload() {
+        PlayerInfoMap playerInfos = new PlayerInfoMap();
+        DatabasePlayerInfoStore store = new DatabasePlayerInfoStore(databaseFile, importFrom(ImmutableMap.<String, PlayerInfo>of()));
+
+        try {
+            assertFalse(store.load(playerInfos));
+            return describe(playerInfos.takeSaveSnapshot());
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * This method reduces player data to something we can compare; home
+     * chunk order matters, but historical home chunk order does not.
+     */
+    private static Map<String, String> describe(Map<String, ? extends MapFileMap.Storable> infos) {
+        Map<String, String> descriptions = Maps.newTreeMap();
+
+        for (Map.Entry<String, ? extends MapFileMap.Storable> e : infos.entrySet()) {
+            PlayerInfo info = PlayerInfo.fromStorable(e.getValue());
+            descriptions.put(e.getKey(), info.getHomeChunks() + " "
+                    + ImmutableSortedSet.copyOf(info.getHistoricalHomeChunks()));
+        }
+
+        return descriptions;
+    }
+
+    private static ChunkPosition chunk(int x, int z, String worldName) {
+        return new ChunkPosition(x, z, worldName);
+    }
+
+    private static PlayerInfoStore importFrom(final Map<String, PlayerInfo> infos) {
+        return new PlayerInfoStore() {
+            @Override
+            public boolean load(PlayerInfoMap playerInfos) {
+                Map<String, PlayerInfo> copies = Maps.newHashMap();
+
+                for (Map.Entry<String, PlayerInfo> e : infos.entrySet()) {
+                    copies.put(e.getKey(), e.getValue().snapshot());
+                }
+
+                playerInfos.load(copies);
+                return false;
+            }
+
+            @Override
+            public void save(Map<String, ? extends MapFileMap.Storable> snapshot) {
+            }
+
+            @Override
+            public long getVersion() {
+                return 0;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+package homesoil;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.io.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests read player files lazily, with either kind of line ending,
+ * and check that the entries give the same players a full load does.
+ *
+ * @author DanJ
+ */
+public class LazyPlayerFileTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("HomeSoil", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testUnixLineEndings() throws IOException {
+        checkEntries("\n");
+    }
+
+    @Test
+    public void testWindowsLineEndings() throws IOException {
+        checkEntries("\r\n");
+    }
+
+    @Test
+    public void testOldHistoryFormat() throws IOException {
+        String text = Joiner.on("\r\n").join(
+                "Alice=[",
+                "historicalHomes=[",
+                "0=[",
+                "world=world",
+                "x=5",
+                "z=6",
+                "]",
+                "]",
+                "homes=[",
+                "0=[",
+                "world=world",
+                "x=5",
+                "z=6",
+                "]",
+                "]",
+                "]",
+                "");
+        Files.write(text, file, Charsets.UTF_8);
+
+        LazyPlayerFile lazy = LazyPlayerFile.openOrNull(file);
+
+        try {
+            LazyPlayerFile.Entry entry = lazy.getEntries().get("Alice");
+            assertEquals(Arrays.asList(new ChunkPosition(5, 6, "world")), entry.getHomeChunks());
+            assertEquals(ImmutableSet.of(new ChunkPosition(5, 6, "world")), entry.getHistoricalHomeChunks());
+            assertEquals(entry.getHomeChunks(), entry.toPlayerInfo().getHomeChunks());
+        } finally {
+            lazy.close();
+        }
+    }
+
+    @Test
+    public void testNotPlainText() {
+        Map<String, PlayerInfo> infos = makePlayers();
+        MapFileMap.write(file, infos, MapFileMap.Format.BINARY);
+        assertNull(LazyPlayerFile.openOrNull(file));
+    }
+
+    ////////////////////////////////
+    // Helpers
+    /**
+     * This method writes some players in the text format, with the line
+     * ending given, and checks what a lazy load of the file gives us.
+     */
+    private void checkEntries(String lineEnding) throws IOException {
+        Map<String, PlayerInfo> infos = makePlayers();
+        StringWriter text = new StringWriter();
+        MapFileMap.write(text, infos);
+
+        String normalized = text.toString().replace("\r\n", "\n");
+        Files.write(normalized.replace("\n", lineEnding), file, Charsets.UTF_8);
+
+        LazyPlayerFile lazy = LazyPlayerFile.openOrNull(file);
+
+        try {
+            Map<String, LazyPlayerFile.Entry> entries = lazy.getEntries();
+            assertEquals(infos.keySet(), entries.keySet());
+
+            for (String playerName : infos.keySet()) {
+                PlayerInfo expected = infos.get(playerName);
+                LazyPlayerFile.Entry entry = entries.get(playerName);
+
+                assertEquals(expected.getHomeChunks(), entry.getHomeChunks());
+                assertEquals(expected.getHistoricalHomeChunks(), entry.getHistoricalHomeChunks());
+                assertEquals(expected.getHomeChunks(), entry.toPlayerInfo().getHomeChunks());
+                assertEquals(expected.getHistoricalHomeChunks(), entry.toPlayerInfo().getHistoricalHomeChunks());
+                assertEquals(expected.getHomeChunks(), PlayerInfo.fromStorable(entry).getHomeChunks());
+            }
+        } finally {
+            lazy.close();
+        }
+    }
+
+    private static Map<String, PlayerInfo> makePlayers() {
+        Map<String, PlayerInfo> infos = Maps.newHashMap();
+        infos.put("Alice", new PlayerInfo(
+                Arrays.asList(new ChunkPosition(1, 2, "world"), new ChunkPosition(-3, 4, "world_nether")),
+                Arrays.asList(new ChunkPosition(1, 2, "world"), new ChunkPosition(-3, 4, "world_nether"),
+                new ChunkPosition(500, -500, "world"))));
+        infos.put("Bob=the [builder]", new PlayerInfo(
+                Arrays.asList(new ChunkPosition(5, 5, "world")),
+                Arrays.asList(new ChunkPosition(5, 5, "world"))));
+        return infos;
+    }
+}
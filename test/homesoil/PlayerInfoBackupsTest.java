@@ -0,0 +1,138 @@
+package homesoil;
+
+import com.google.common.collect.*;
+import java.io.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * These tests write chains of backups, a full backup followed by deltas,
+ * and check that restore() rebuilds the player data as of each one.
+ *
+ * @author DanJ
+ */
+public class PlayerInfoBackupsTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("HomeSoil", ".backups");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+
+        directory.delete();
+    }
+
+    @Test
+    public void testDeltaChainRoundTrip() throws InterruptedException {
+        PlayerInfoBackups backups = new PlayerInfoBackups(directory, MapFileMap.Format.TEXT, 10, 2);
+        PlayerInfoMap playerInfos = new PlayerInfoMap();
+        List<Long> times = Lists.newArrayList();
+        List<Map<String, String>> states = Lists.newArrayList();
+
+        playerInfos.getOrCreateInfo("Alice").setHomeChunk(chunk(1, 1));
+        playerInfos.getOrCreateInfo("Bob").setHomeChunk(chunk(2, 2));
+        backUp(backups, playerInfos, times, states);
+
+        // gain chunks, in order
+        playerInfos.getOrCreateInfo("Alice").addHomeChunk(chunk(3, 3));
+        playerInfos.getOrCreateInfo("Alice").addHomeChunk(chunk(-4, 4));
+        backUp(backups, playerInfos, times, states);
+
+        // lose one from the middle, which must not reorder the rest
+        playerInfos.getOrCreateInfo("Alice").tryRemoveHomeChunk(chunk(3, 3));
+        playerInfos.getOrCreateInfo("Carol").setHomeChunk(new ChunkPosition(5, 5, "world_nether"));
+        backUp(backups, playerInfos, times, states);
+
+        // start over with a single chunk
+        playerInfos.getOrCreateInfo("Bob").setHomeChunk(chunk(6, 6));
+        playerInfos.getOrCreateInfo("Alice").addHomeChunk(chunk(3, 3));
+        backUp(backups, playerInfos, times, states);
+
+        // nothing changed, so this writes no delta
+        int fileCount = directory.listFiles().length;
+        backUp(backups, playerInfos, times, states);
+        assertEquals(fileCount, directory.listFiles().length);
+
+        for (int index = 0; index < times.size(); ++index) {
+            assertEquals(states.get(index), describe(PlayerInfoBackups.restore(directory, times.get(index))));
+        }
+
+        assertEquals(states.get(states.size() - 1), describe(PlayerInfoBackups.restore(directory, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testNewChains() throws InterruptedException {
+        PlayerInfoBackups backups = new PlayerInfoBackups(directory, MapFileMap.Format.BINARY, 1, 2);
+        PlayerInfoMap playerInfos = new PlayerInfoMap();
+        List<Long> times = Lists.newArrayList();
+        List<Map<String, String>> states = Lists.newArrayList();
+
+        for (int i = 0; i < 6; ++i) {
+            playerInfos.getOrCreateInfo("Alice").addHomeChunk(chunk(i, i));
+            backUp(backups, playerInfos, times, states);
+        }
+
+        // full, delta, full, delta, full, delta; only two chains are kept.
+        assertEquals(4, directory.listFiles().length);
+
+        for (int index = 2; index < times.size(); ++index) {
+            assertEquals(states.get(index), describe(PlayerInfoBackups.restore(directory, times.get(index))));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRestoreBeforeFirstBackup() throws InterruptedException {
+        PlayerInfoBackups backups = new PlayerInfoBackups(directory, MapFileMap.Format.TEXT, 10, 2);
+        PlayerInfoMap playerInfos = new PlayerInfoMap();
+        playerInfos.getOrCreateInfo("Alice").setHomeChunk(chunk(1, 1));
+
+        long before = System.currentTimeMillis() - 1;
+        backUp(backups, playerInfos, Lists.<Long>newArrayList(), Lists.<Map<String, String>>newArrayList());
+        PlayerInfoBackups.restore(directory, before);
+    }
+
+    ////////////////////////////////
+    // Helpers
+    /**
+     * This method backs up the player data, and records the time and what
+     * was backed up. Backup files are named by the millisecond, so we wait
+     * a little so that the next backup gets a later name.
+     */
+    private static void backUp(PlayerInfoBackups backups, PlayerInfoMap playerInfos, List<Long> times, List<Map<String, String>> states) throws InterruptedException {
+        Map<String, MapFileMap.Storable> snapshot = playerInfos.takeSaveSnapshot();
+        backups.write(snapshot);
+        times.add(System.currentTimeMillis());
+        states.add(describe(snapshot));
+        Thread.sleep(5);
+    }
+
+    /**
+     * This method reduces player data to something we can compare; home
+     * chunk order matters, but historical home chunk order does not.
+     */
+    private static Map<String, String> describe(Map<String, ? extends MapFileMap.Storable> infos) {
+        Map<String, String> descriptions = Maps.newTreeMap();
+
+        for (Map.Entry<String, ? extends MapFileMap.Storable> e : infos.entrySet()) {
+            PlayerInfo info = PlayerInfo.fromStorable(e.getValue());
+            descriptions.put(e.getKey(), info.getHomeChunks() + " "
+                    + ImmutableSortedSet.copyOf(info.getHistoricalHomeChunks()));
+        }
+
+        return descriptions;
+    }
+
+    private static ChunkPosition chunk(int x, int z) {
+        return new ChunkPosition(x, z, "world");
+    }
+}